@@ -0,0 +1,72 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.json;
+
+
+import java.lang.StringBuilder;
+
+
+public class JSON {
+
+	/* The string as JSON string literal, including the quotes */
+	public static String quote(String param) {
+		if (param == null) {
+			return "null";
+		}
+		int n = param.length();
+		StringBuilder sb = new StringBuilder(n+2);
+		sb.append('"');
+		for (int i = 0;  i < n;  i++) {
+			char c = param.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x",
+								(int)c));
+				} else {
+					sb.append(c);
+				}
+				break;
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+}
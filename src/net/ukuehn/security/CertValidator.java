@@ -244,8 +244,12 @@ public class CertValidator {
 
 	public boolean checkCertificateDN(X509Certificate cert,
 				                       String host) {
+		return checkCertificateDN(cert.getSubjectDN().getName(), host);
+	}
+
+
+	public boolean checkCertificateDN(String foundDN, String host) {
 
-		String foundDN = cert.getSubjectDN().getName();
 		String expectedDN = "CN="+host;
 		String foundDNLower = foundDN.toLowerCase();
 		String expectedDNLower = expectedDN.toLowerCase();
@@ -263,20 +267,14 @@ public class CertValidator {
 		try {
 			Collection altNames =
 				cert.getSubjectAlternativeNames();
-			String expNam = host.toLowerCase();
 			if (altNames != null) {
+				String[] names = new String[altNames.size()];
+				int i = 0;
 				for (Iterator it = altNames.iterator();
 				     it.hasNext();  ) {
-					String nam=it.next().toString();
-					String lnam = nam.toLowerCase();
-
-					// BUG: must not be substring in name
-					// need to parse string and check
-					// full name
-					if (lnam.indexOf(expNam) >= 0) {
-						altMatch = true;
-					}
+					names[i++] = it.next().toString();
 				}
+				altMatch = checkSubjAltNames(names, host);
 			}
 		} catch (CertificateParsingException e) {
 			// Ignore, default return value is false
@@ -285,4 +283,29 @@ public class CertValidator {
 	}
 
 
+	/* Check the alternative names as given by toString() of the
+	 * entries of getSubjectAlternativeNames().
+	 */
+	public boolean checkSubjAltNames(String[] altNames, String host) {
+
+		boolean altMatch = false;
+
+		if (altNames == null) {
+			return false;
+		}
+		String expNam = host.toLowerCase();
+		for (int i = 0;  i < altNames.length;  i++) {
+			String lnam = altNames[i].toLowerCase();
+
+			// BUG: must not be substring in name
+			// need to parse string and check
+			// full name
+			if (lnam.indexOf(expNam) >= 0) {
+				altMatch = true;
+			}
+		}
+		return altMatch;
+	}
+
+
 }
@@ -0,0 +1,129 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+
+/* A concurrency limit controlled by additive increase and
+ * multiplicative decrease, as known from TCP congestion control.
+ *
+ * Every completed connection reports its outcome. The limit grows by
+ * about one per limit connections completed without trouble, i.e.
+ * by one per round of connections. The rate of timeouts and resets
+ * is tracked as moving average, and whenever it exceeds the
+ * threshold, the limit is cut by the decrease factor. As the
+ * connections still in flight at that time will report their
+ * timeouts later, the limit is cut at most once per hold-off time.
+ *
+ * Not thread-safe, the scheduler owning the limit synchronizes.
+ */
+public class AdaptiveLimit {
+
+	static final double defaultDecrease = 0.5;
+	static final double defaultThreshold = 0.25;
+	static final double alpha = 0.1;
+	static final long defaultHoldOff = 2000;
+
+	String name;
+	double limit;
+	int minLimit;
+	int maxLimit;
+	double decrease;
+	double threshold;
+	long holdOff;
+
+	double failRate;
+	long lastDecrease;
+
+
+	public AdaptiveLimit(String limitName, int initial, int max) {
+		name = limitName;
+		minLimit = 1;
+		maxLimit = Math.max(max, minLimit);
+		limit = Math.max(minLimit, Math.min(initial, maxLimit));
+		decrease = defaultDecrease;
+		threshold = defaultThreshold;
+		holdOff = defaultHoldOff;
+		failRate = 0.0;
+		lastDecrease = 0;
+	}
+
+
+	public int get() {
+		return (int)limit;
+	}
+
+
+	public boolean isReduced() {
+		return (int)limit < maxLimit;
+	}
+
+
+	public void update(int outcome, long now) {
+		double fail;
+
+		if (ConnectOutcome.isCongestion(outcome)) {
+			fail = 1.0;
+		} else if (outcome == ConnectOutcome.OK) {
+			fail = 0.0;
+		} else {
+			/* Refused connections and other errors tell
+			 * nothing about the load of the path.
+			 */
+			return;
+		}
+		failRate = (1.0-alpha) * failRate + alpha * fail;
+
+		if (failRate > threshold) {
+			if (now - lastDecrease >= holdOff) {
+				lastDecrease = now;
+				int old = get();
+				limit = Math.max(minLimit, limit * decrease);
+				report(old, "rate "+String.format("%.2f",
+								failRate));
+			}
+		} else if (fail == 0.0) {
+			int old = get();
+			limit = Math.min(maxLimit, limit + 1.0/limit);
+			if (get() != old) {
+				report(old, "increase");
+			}
+		}
+	}
+
+
+	protected void report(int old, String why) {
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("AdaptiveLimit: "+name+" "+old
+					   +" -> "+get()+" ("+why+")");
+		}
+	}
+
+
+	public String toString() {
+		return name+": limit "+get()+" of "+maxLimit
+			+" failure rate "+String.format("%.2f", failRate);
+	}
+
+}
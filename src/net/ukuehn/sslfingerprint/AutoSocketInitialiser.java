@@ -0,0 +1,205 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+
+import java.net.*;
+import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/* Picks the socket initialiser for each target by its port, for
+ * scanning hosts with mixed services. Well-known ports of implicit
+ * TLS (443, 465, 993, 995, ...) get plain TLS, those of STARTTLS
+ * (25 and 587, 143, 110) the respective protocol. On other ports,
+ * the first bytes sent by the server decide: a greeting of SMTP, IMAP
+ * or POP3 selects that protocol, while silence means the server
+ * waits for the client hello, so plain TLS continues on the same
+ * connection. After a greeting, the connection is made again, as the
+ * initialiser has to read the greeting itself. The choice is kept
+ * for the host and port recently used, so mostly only the first
+ * connection sniffs.
+ */
+public class AutoSocketInitialiser extends SocketInitialiser {
+
+	static final int sniffTimeout = 3; /* seconds */
+	static final int sniffLength = 64;
+	static final int maxChoices = 1024;
+
+	static final Map<Integer,String> wellKnown
+		= new HashMap<Integer,String>();
+	static {
+		wellKnown.put(443, "plain");
+		wellKnown.put(465, "plain");
+		wellKnown.put(636, "plain");
+		wellKnown.put(993, "plain");
+		wellKnown.put(995, "plain");
+		wellKnown.put(8443, "plain");
+		wellKnown.put(25, "smtp");
+		wellKnown.put(587, "smtp");
+		wellKnown.put(143, "imap");
+		wellKnown.put(110, "pop3");
+	}
+
+	Map<String,String> choices;
+
+
+	public AutoSocketInitialiser() {
+		choices = newChoices();
+	}
+
+
+	public AutoSocketInitialiser(SocketInitialiser sockInit) {
+		super(sockInit);
+		choices = newChoices();
+	}
+
+
+	/* The initialiser lasts for the whole run, so only the targets
+	 * scanned lately are remembered.
+	 */
+	static Map<String,String> newChoices() {
+		return new LinkedHashMap<String,String>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+				      Map.Entry<String,String> e) {
+				return size() > maxChoices;
+			}
+		};
+	}
+
+
+	/* The protocol used for the target, or null if it is not
+	 * known yet.
+	 */
+	public String getChoice(String host, int port) {
+		String proto = wellKnown.get(port);
+		if (proto == null) {
+			synchronized (choices) {
+				proto = choices.get(host+":"+port);
+			}
+		}
+		return proto;
+	}
+
+
+	public Socket createSocket(String host, int port, Deadline d)
+		throws IOException, FingerprintException, FingerprintError {
+
+		String proto = getChoice(host, port);
+		if (proto != null) {
+			return initialiserFor(proto).createSocket(host, port, d);
+		}
+
+		Socket s = super.createSocket(host, port, d);
+		String banner;
+		int soTimeout = s.getSoTimeout();
+		try {
+			banner = sniff(s, Deadline.timeout(d, 1000*sniffTimeout));
+		} catch (IOException e) {
+			discard(s);
+			throw e;
+		}
+		proto = classify(banner);
+		synchronized (choices) {
+			choices.put(host+":"+port, proto);
+		}
+		if (Debug.get(Debug.SockInit)) {
+			System.err.println("AutoSocketInitialiser: "
+					   +host+":"+port+" is "+proto);
+		}
+		if (banner == null) {
+			/* Nothing read, so the connection is unused */
+			s.setSoTimeout(soTimeout);
+			return s;
+		}
+		discard(s);
+		return initialiserFor(proto).createSocket(host, port, d);
+	}
+
+
+	/* Wait a short while for the server to speak first. Returns
+	 * what it sent, or null if it kept silent.
+	 */
+	protected String sniff(Socket s, int timeout)
+		throws IOException {
+
+		byte[] buf = new byte[sniffLength];
+		s.setSoTimeout(timeout);
+		int n;
+		try {
+			n = s.getInputStream().read(buf);
+		} catch (SocketTimeoutException e) {
+			return null;
+		}
+		if (n < 0) {
+			throw new EOFException();
+		}
+		String banner = new String(buf, 0, n, "ISO-8859-1");
+		if (Debug.get(Debug.Communication)) {
+			System.err.println("<<<" + banner.trim());
+		}
+		return banner;
+	}
+
+
+	protected static String classify(String banner) {
+		if (banner == null) {
+			return "plain";
+		} else if (banner.startsWith("220")) {
+			return "smtp";
+		} else if (banner.startsWith("* OK")
+			   || banner.startsWith("* PREAUTH")) {
+			return "imap";
+		} else if (banner.startsWith("+OK")) {
+			return "pop3";
+		}
+		/* Some other greeting, let plain TLS fail on it */
+		return "plain";
+	}
+
+
+	protected SocketInitialiser initialiserFor(String proto) {
+		SocketInitialiser si = SocketInitialiser.forProtocol(proto);
+		si.setChainedInitialiser(chainedInit);
+		return si;
+	}
+
+
+	protected static void discard(Socket s) {
+		SocketWatchdog.getDefault().release(s);
+		try {
+			s.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+	}
+
+
+	public String getName() {
+		return "Auto (by port or greeting)";
+	}
+}
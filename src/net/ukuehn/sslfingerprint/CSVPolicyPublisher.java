@@ -0,0 +1,108 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.Iterator;
+import java.util.List;
+import java.text.SimpleDateFormat;
+
+
+
+/* One line per host with the verdict for each rule of the policy,
+ * and whether the host complies with all of them.
+ */
+public class CSVPolicyPublisher extends Publisher {
+
+	Log log;
+	List<PolicyRule> rules;
+
+
+	public CSVPolicyPublisher(Log logger, List<PolicyRule> policy) {
+		log = logger;
+		rules = policy;
+	}
+
+
+	public void publishHeader() throws IOException, FingerprintError {
+		StringBuilder sb
+			= new StringBuilder(LocMsg.pr("s_prompt_policy"));
+		for (Iterator<PolicyRule> it = rules.iterator();  it.hasNext();
+		     /* */ ) {
+			sb.append(";").append(it.next().getName());
+		}
+		log.log(Log.ESSENTIAL, sb.toString());
+	}
+
+
+	public void publish(SSLResult sr)
+		throws IOException, FingerprintError {
+		if (sr instanceof PolicyResult) {
+			publish((PolicyResult)sr);
+		} else {
+			throw new FingerprintError(
+				     "Trying to publish mismatching type"
+				     );
+		}
+	}
+
+
+	public void publish(PolicyResult pr)
+		throws IOException, FingerprintError {
+
+		String resSupport;
+		SimpleDateFormat format
+			= new SimpleDateFormat(LocMsg.pr("s_dateformat"));
+
+		switch (pr.sslSupport) {
+		case SSLResult.UNSUPPORTED:
+			resSupport = LocMsg.pr("r_checkres_nosupport");
+			break;
+		case SSLResult.SUPPORTED:
+			resSupport = LocMsg.pr("r_checkres_support");
+			break;
+		case SSLResult.UNKNOWN:
+		default:
+			resSupport = LocMsg.pr("r_checkres_unknown");
+			break;
+		}
+
+		StringBuilder sb = new StringBuilder(
+			LocMsg.pr("r_probe_summary",
+				  pr.host, String.valueOf(pr.port),
+				  resSupport,
+				  format.format(pr.startDate)));
+		sb.append(";").append(String.valueOf(pr.passes()));
+		for (int i = 0;  i < pr.getRuleCount();  i++) {
+			sb.append(";").append(pr.getVerdictName(i));
+			if (pr.getEvidence(i) != null) {
+				sb.append(" ").append(pr.getEvidence(i));
+			}
+		}
+		log.log(Log.ESSENTIAL, sb.toString());
+	}
+
+}
@@ -68,6 +68,15 @@ public class CSVProbePublisher extends Publisher {
 	}
 
 
+	public void publishEvent(ScanEvent e)
+		throws IOException, FingerprintError {
+		log.log(Log.ESSENTIAL,
+			LocMsg.pr("r_event", e.host, String.valueOf(e.port),
+				  e.getTypeName(),
+				  (e.detail != null) ? e.detail : ""));
+	}
+
+
 	public void publish(SSLResult sr)
 		throws IOException, FingerprintError {
 		if (sr instanceof ProbeResult) {
@@ -101,37 +110,28 @@ public class CSVProbePublisher extends Publisher {
 		}
 
 		if (verbLevel > 0) {
-			boolean nameMatch = false;
 			String keyhash = new String();
-			X509Certificate xcert = null;
-			RSAPublicKey rpk = null;
 			String certAlg = new String();
 			String sLength = new String();
 			String sNameMatch = new String();
 			String sCertVerifies = new String();
-			if (pr.certs != null) {
-				if (pr.certs[0] instanceof X509Certificate) {
-					xcert = (X509Certificate)pr.certs[0];
-				}
-				sNameMatch = String.valueOf(nameMatch);
+			CertSummary cert = pr.getServerCertSummary();
+			if ((pr.certs != null) || (pr.certSummaries != null)) {
+				sNameMatch = String.valueOf(false);
 				sCertVerifies
 					= String.valueOf(pr.certVerifies);
 			}
-			if (xcert != null) {
-				nameMatch = cv.nameMatches(xcert, pr.host);
-				sNameMatch = String.valueOf(nameMatch);
-				PublicKey pk = xcert.getPublicKey();
-				certAlg = pk.getAlgorithm();
-				if (pk instanceof RSAPublicKey) {
-					rpk = (RSAPublicKey)pk;
-					int n = rpk.getModulus().bitLength();
-					sLength = String.valueOf(n);
-					keyhash = getRSAKeyHash(rpk);
-				} else if (pk instanceof DHPublicKey) {
-					DHPublicKey dpk = (DHPublicKey)pk;
+			if (cert != null) {
+				sNameMatch = String.valueOf(pr.certNameMatch);
+				certAlg = cert.getKeyAlgorithm();
+				if (cert.getKeyType() == CertSummary.KEY_RSA) {
+					sLength = String.valueOf(
+						       cert.getKeySize());
+					keyhash = getKeyHash(cert);
+				} else if (cert.getKeyType()
+					   == CertSummary.KEY_DH) {
 					sLength = String.valueOf(
-					     dpk.getParams().getP().bitLength()
-					     );
+						       cert.getKeySize());
 				}
 			}
 			log.log(Log.ESSENTIAL,
@@ -0,0 +1,344 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import javax.crypto.interfaces.DHPublicKey;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.*;
+import java.security.interfaces.*;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import javax.security.auth.x500.X500Principal;
+
+
+
+/* The facts about a certificate the publishers report, taken out
+ * of the certificate once. A summary takes a few hundred bytes,
+ * where the parsed certificate with its key and extensions takes
+ * several kilobytes, so a result can drop its chain for the
+ * summaries once the chain is validated, see
+ * SSLResult.setSummarise(). The DER digest still identifies the
+ * certificate.
+ */
+public class CertSummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int KEY_OTHER = 0;
+	public static final int KEY_RSA = 1;
+	public static final int KEY_DH = 2;
+	public static final int KEY_DSA = 3;
+	public static final int KEY_EC = 4;
+
+	static final String hexchar = "0123456789abcdef";
+
+	String subject;
+	String subjectDN;
+	String issuer;
+	String sigAlg;
+	Date notBefore;
+	Date notAfter;
+
+	String keyAlgorithm;
+	int keyType;
+	int keySize;
+	int keyParam;
+	String keyHash;
+	String modHash;
+
+	String[] altNames;
+	boolean altNamesBroken;
+	String digest;
+
+
+	public CertSummary(X509Certificate cert) throws FingerprintError {
+		subject = cert.getSubjectX500Principal().getName();
+		subjectDN = cert.getSubjectX500Principal()
+			.getName(X500Principal.RFC1779);
+		issuer = cert.getIssuerX500Principal().getName();
+		sigAlg = cert.getSigAlgName();
+		notBefore = cert.getNotBefore();
+		notAfter = cert.getNotAfter();
+		summariseKey(cert.getPublicKey());
+		summariseAltNames(cert);
+		try {
+			digest = hex(digest("SHA-256", cert.getEncoded()));
+		} catch (CertificateEncodingException e) {
+			digest = null;
+		}
+	}
+
+
+	/* Summaries of the certificates of a chain, with null for
+	 * those which are not X.509 certificates.
+	 */
+	public static CertSummary[] of(Certificate[] chain)
+		throws FingerprintError {
+
+		if (chain == null) {
+			return null;
+		}
+		CertSummary[] res = new CertSummary[chain.length];
+		for (int i = 0;  i < chain.length;  i++) {
+			if (chain[i] instanceof X509Certificate) {
+				res[i] = new CertSummary(
+					       (X509Certificate)chain[i]);
+			}
+		}
+		return res;
+	}
+
+
+	protected void summariseKey(PublicKey pk) throws FingerprintError {
+		keyAlgorithm = pk.getAlgorithm();
+		keySize = -1;
+		keyParam = -1;
+		keyHash = null;
+		modHash = null;
+		if (pk instanceof RSAPublicKey) {
+			RSAPublicKey rpk = (RSAPublicKey)pk;
+			keyType = KEY_RSA;
+			keySize = rpk.getModulus().bitLength();
+			keyHash = rsaKeyHash(rpk, false);
+			modHash = rsaKeyHash(rpk, true);
+		} else if (pk instanceof DHPublicKey) {
+			DHPublicKey dpk = (DHPublicKey)pk;
+			keyType = KEY_DH;
+			keySize = dpk.getParams().getP().bitLength();
+			keyParam = dpk.getParams().getL();
+		} else if (pk instanceof DSAPublicKey) {
+			DSAPublicKey dpk = (DSAPublicKey)pk;
+			keyType = KEY_DSA;
+			keySize = dpk.getParams().getP().bitLength();
+			keyParam = dpk.getParams().getQ().bitLength();
+		} else if (pk instanceof ECPublicKey) {
+			keyType = KEY_EC;
+		} else {
+			keyType = KEY_OTHER;
+		}
+	}
+
+
+	protected void summariseAltNames(X509Certificate cert) {
+		altNames = null;
+		altNamesBroken = false;
+		try {
+			Collection<List<?>> names
+				= cert.getSubjectAlternativeNames();
+			if (names != null) {
+				altNames = new String[names.size()];
+				int i = 0;
+				for (Iterator<List<?>> it = names.iterator();
+				     it.hasNext();  /* */ ) {
+					altNames[i++] = it.next().toString();
+				}
+			}
+		} catch (CertificateParsingException e) {
+			altNamesBroken = true;
+		}
+	}
+
+
+	public String getSubject() {
+		return subject;
+	}
+
+
+	/* The subject in the RFC 1779 form, with a space after each
+	 * comma like the deprecated getSubjectDN(), which the name
+	 * checks of CertValidator look at.
+	 */
+	public String getSubjectDN() {
+		return subjectDN;
+	}
+
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+
+	public boolean isSelfSigned() {
+		return subject.equals(issuer);
+	}
+
+
+	public String getSigAlgName() {
+		return sigAlg;
+	}
+
+
+	public Date getNotBefore() {
+		return notBefore;
+	}
+
+
+	public Date getNotAfter() {
+		return notAfter;
+	}
+
+
+	public String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+
+
+	public int getKeyType() {
+		return keyType;
+	}
+
+
+	/* Bits of the RSA modulus or of the DH or DSA prime, or -1 */
+	public int getKeySize() {
+		return keySize;
+	}
+
+
+	/* The DH private value length or the DSA subprime bits, or -1 */
+	public int getKeyParam() {
+		return keyParam;
+	}
+
+
+	/* The hash of an RSA key, in the OpenSSL way if asked for, or
+	 * null for other keys.
+	 */
+	public String getKeyHash(boolean opensslModHash) {
+		return opensslModHash ? modHash : keyHash;
+	}
+
+
+	/* The subject alternative names, or null if there are none */
+	public String[] getAltNames() {
+		return altNames;
+	}
+
+
+	public boolean altNamesUnparsable() {
+		return altNamesBroken;
+	}
+
+
+	/* SHA-256 of the DER encoding in hex, or null */
+	public String getDigest() {
+		return digest;
+	}
+
+
+	/* Format a string in the way OpenSSL formats the RSA modulus
+	 * in order to compute a hash of the modulus in the same way.
+	 * The format is
+	 *          Modulus=......\n
+	 */
+	protected static String formatOpenSSLModulus(byte[] data) {
+		String hexchar = "0123456789ABCDEF";
+		StringBuilder sb = new StringBuilder();
+		sb.append("Modulus=");
+		if (data == null) {
+			return sb.toString();
+		}
+		int start;
+		for (start = 0;  start < data.length;  start++) {
+			if (data[start] != 0) {
+				break;
+			}
+		}
+		for (int i = start;  i < data.length;  i++) {
+			int hi = (data[i] >> 4) & 0x0f;
+			int lo = data[i] & 0x0f;
+			sb.append(hexchar.charAt(hi));
+			sb.append(hexchar.charAt(lo));
+		}
+		sb.append("\n");
+		return sb.toString();
+	}
+
+
+	/* Compute the SHA-1 hash of the key. Depending on opensslModHash
+	 * format the hash input like OpenSSL, otherwise use length,
+	 * exponent and modulus as input.
+	 */
+	public static String rsaKeyHash(RSAPublicKey rpk,
+					boolean opensslModHash)
+		throws FingerprintError {
+
+		byte[] modbytes = rpk.getModulus().toByteArray();
+		byte[] expbytes = rpk.getPublicExponent().toByteArray();
+		int len = expbytes.length;
+		byte[] lenbytes;
+		if (len < 255) {
+			lenbytes = new byte[1];
+			lenbytes[0] = (byte)(len & 0xff);
+		} else {
+			lenbytes = new byte[3];
+			lenbytes[0] = 0;
+			lenbytes[1] = (byte)((len >> 8) & 0xff);
+			lenbytes[2] = (byte)(len & 0xff);
+		}
+		if (opensslModHash) {
+			String ms = formatOpenSSLModulus(modbytes);
+			return hex(digest("SHA", ms.getBytes()));
+		}
+		byte[] input = new byte[lenbytes.length + expbytes.length
+					+ modbytes.length];
+		System.arraycopy(lenbytes, 0, input, 0, lenbytes.length);
+		System.arraycopy(expbytes, 0, input, lenbytes.length,
+				 expbytes.length);
+		System.arraycopy(modbytes, 0, input,
+				 lenbytes.length + expbytes.length,
+				 modbytes.length);
+		return hex(digest("SHA", input));
+	}
+
+
+	protected static byte[] digest(String alg, byte[] data)
+		throws FingerprintError {
+		try {
+			return MessageDigest.getInstance(alg).digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InstallationError(
+				    alg+" algorithm not available", e);
+		}
+	}
+
+
+	protected static String hex(byte[] data) {
+		StringBuilder res = new StringBuilder(2*data.length);
+		for (int i = 0;  i < data.length;  i++) {
+			int hi = (data[i] >> 4) & 0x0f;
+			int lo = data[i] & 0x0f;
+			res.append(hexchar.charAt(hi));
+			res.append(hexchar.charAt(lo));
+		}
+		return res.toString();
+	}
+
+
+}
@@ -26,11 +26,13 @@ package net.ukuehn.sslfingerprint;
 
 
 
-//import java.io.*;
+import java.io.Serializable;
 
 
 
-public class CipherSuiteData {
+public class CipherSuiteData implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	String name;
 	String proto;
@@ -0,0 +1,169 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+
+
+/* Counts consecutive failed connections per key, i.e. per address
+ * or per subnet. After the threshold is reached, the circuit opens
+ * and connections to the key fail fast, so a dead or firewalled
+ * range does not cost a full timeout for every host and every
+ * request. After the cool-down time, a single trial connection is
+ * let through (half-open). If it succeeds, the circuit closes again,
+ * otherwise it stays open for another cool-down period.
+ *
+ * Only failures to get an answer from the server count, i.e. timeouts,
+ * refused connections and other network errors. A rejected
+ * handshake is an answer.
+ *
+ * Not thread-safe, the scheduler owning the breaker synchronizes.
+ */
+public class CircuitBreaker {
+
+	static final long defaultCoolDown = 30000;
+
+	int threshold;
+	long coolDown;
+	HashMap<String, State> states;
+
+
+	public CircuitBreaker(int failureThreshold) {
+		threshold = Math.max(1, failureThreshold);
+		coolDown = defaultCoolDown;
+		states = new HashMap<String, State>();
+	}
+
+
+	public void setCoolDown(long msec) {
+		coolDown = Math.max(0, msec);
+	}
+
+
+	/* Returns null if a connection to the key may be made,
+	 * otherwise the reason why not.
+	 */
+	public String check(String key, long now) {
+		State st = states.get(key);
+		if ((st == null) || !st.open) {
+			return null;
+		}
+		if (!st.trial && (now - st.openedAt >= coolDown)) {
+			return null;
+		}
+		return LocMsg.pr("e_circuit_open", key,
+				 String.valueOf(st.failures));
+	}
+
+
+	/* A connection to the key is made. If the circuit is half-open,
+	 * this is the trial connection, and no other is let through
+	 * until it has finished.
+	 */
+	public void started(String key) {
+		State st = states.get(key);
+		if ((st != null) && st.open) {
+			st.trial = true;
+		}
+	}
+
+
+	public void record(String key, int outcome, long now) {
+		State st = states.get(key);
+		if (outcome == ConnectOutcome.NONE) {
+			/* No connection made, nothing learned; a trial
+			 * that did not happen leaves the circuit as it is.
+			 */
+			if (st != null) {
+				st.trial = false;
+			}
+			return;
+		}
+		if (ConnectOutcome.isFailure(outcome)) {
+			if (st == null) {
+				st = new State();
+				states.put(key, st);
+			}
+			st.failures += 1;
+			st.lastFailure = now;
+			st.trial = false;
+			if (st.failures >= threshold) {
+				if (!st.open) {
+					report(key, "open");
+				}
+				st.open = true;
+				st.openedAt = now;
+			}
+		} else if (st != null) {
+			if (st.open) {
+				report(key, "closed");
+			}
+			states.remove(key);
+		}
+	}
+
+
+	/* Forget about failures long ago */
+	public void sweep(long now) {
+		long forget = Math.max(10*coolDown, 1);
+		for (Iterator<State> it = states.values().iterator();
+		     it.hasNext();  /* */ ) {
+			State st = it.next();
+			if (!st.trial && (now - st.lastFailure > forget)) {
+				it.remove();
+			}
+		}
+	}
+
+
+	public int getOpenCount() {
+		int n = 0;
+		for (State st : states.values()) {
+			if (st.open) {
+				n += 1;
+			}
+		}
+		return n;
+	}
+
+
+	protected void report(String key, String what) {
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("CircuitBreaker: "+key+" "+what);
+		}
+	}
+
+
+	static class State {
+		int failures = 0;
+		boolean open = false;
+		boolean trial = false;
+		long openedAt = 0;
+		long lastFailure = 0;
+	}
+
+}
@@ -86,7 +86,12 @@ public class ClassifyingPublisher extends Publisher {
 		Iterator<CipherSuiteData> itr = fr.ciphersuites.iterator();
 		while (itr.hasNext()) {
 			CipherSuiteData d = (CipherSuiteData)itr.next();
-			int res = cls.classifyCipherSuite(d, protos);
+			/* With the matrix, a suite is judged by the
+			 * protocols it is actually accepted with.
+			 */
+			String[] suiteProtos = fr.getSuiteProtos(d.name);
+			int res = cls.classifyCipherSuite(d,
+				 (suiteProtos != null) ? suiteProtos : protos);
 			if (res == Classification.STRENGTH_SECURE) {
 				secCS.add(d);
 			} else if (res ==
@@ -0,0 +1,119 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.EOFException;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLException;
+
+
+
+/* What happened to a single connection to a target, as far as the
+ * network is concerned. A handshake rejected by the server is a
+ * perfectly healthy answer and counts as OK; timeouts and resets are
+ * the signs of an overloaded path or of a rate limiter.
+ */
+public class ConnectOutcome {
+
+	public static final int OK = 0;
+	public static final int TIMEOUT = 1;
+	public static final int RESET = 2;
+	public static final int REFUSED = 3;
+	public static final int ERROR = 4;
+	public static final int NONE = 5;
+
+
+	/* Find the outcome from the exception of a failed request,
+	 * which may be wrapped by the collectors, e.g. into a
+	 * NoSSLException. A handshake failure or a closed connection
+	 * is an answer of the server, anything unknown is an ERROR.
+	 */
+	public static int classify(Throwable t) {
+		boolean answered = false;
+
+		if (t instanceof DeadlineExceededException) {
+			/* Stopped before connecting */
+			return NONE;
+		}
+		for (int depth = 0;  (t != null) && (depth < 8);  depth++) {
+			String msg = t.getMessage();
+			if (t instanceof SocketTimeoutException) {
+				return TIMEOUT;
+			} else if (t instanceof ConnectException) {
+				if ((msg != null)
+				    && (msg.indexOf("timed out") >= 0)) {
+					return TIMEOUT;
+				}
+				return REFUSED;
+			} else if (t instanceof SocketException) {
+				if ((msg != null)
+				    && (msg.indexOf("Connection reset") >= 0)) {
+					return RESET;
+				}
+			} else if ((t instanceof SSLException)
+				   || (t instanceof EOFException)
+				   || (t instanceof NoStartTlsException)) {
+				answered = true;
+			}
+			t = t.getCause();
+		}
+		return answered ? OK : ERROR;
+	}
+
+
+	public static boolean isCongestion(int outcome) {
+		return (outcome == TIMEOUT) || (outcome == RESET);
+	}
+
+
+	/* No answer from the server at all */
+	public static boolean isFailure(int outcome) {
+		return (outcome == TIMEOUT) || (outcome == REFUSED)
+			|| (outcome == ERROR);
+	}
+
+
+	public static String toString(int outcome) {
+		switch (outcome) {
+		case OK:
+			return "ok";
+		case TIMEOUT:
+			return "timeout";
+		case RESET:
+			return "reset";
+		case REFUSED:
+			return "refused";
+		case NONE:
+			return "none";
+		default:
+			return "error";
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.IOException;
+import java.net.Socket;
+
+import java.util.HashSet;
+import java.util.Set;
+
+
+/* The point in time by which the scan of a host has to be done, for
+ * connect, read and handshake timeouts alike. Every blocking
+ * operation takes the smaller of its usual timeout and the remaining
+ * time. The deadline can also be cancelled from another thread, which
+ * the collectors notice before their next request. A request in
+ * progress is aborted by closing its socket, if the collector has
+ * attached it to the deadline. Collectors running partitions of the
+ * suites in parallel share the deadline, so several sockets may be
+ * attached at a time.
+ */
+public class Deadline {
+
+	long expires;
+	volatile boolean cancelled;
+	volatile String reason;
+	Set<Socket> sockets;
+
+
+	/* A deadline in the given number of milliseconds from now.
+	 * Zero or less means there is no time limit, the deadline can
+	 * still be cancelled.
+	 */
+	public Deadline(long msec) {
+		if (msec > 0) {
+			expires = System.currentTimeMillis() + msec;
+		} else {
+			expires = Long.MAX_VALUE;
+		}
+		cancelled = false;
+		reason = null;
+		sockets = new HashSet<Socket>();
+	}
+
+
+	public void cancel(String why) {
+		Socket[] open;
+		synchronized (this) {
+			reason = why;
+			cancelled = true;
+			open = sockets.toArray(new Socket[sockets.size()]);
+		}
+		for (int i = 0;  i < open.length;  i++) {
+			closeQuietly(open[i]);
+		}
+	}
+
+
+	/* A socket of a request in progress, to be closed if the
+	 * deadline is cancelled.
+	 */
+	public void attach(Socket s) {
+		synchronized (this) {
+			sockets.add(s);
+			if (!cancelled) {
+				return;
+			}
+		}
+		closeQuietly(s);
+	}
+
+
+	public synchronized void detach(Socket s) {
+		sockets.remove(s);
+	}
+
+
+	protected void closeQuietly(Socket s) {
+		if (s == null) {
+			return;
+		}
+		try {
+			s.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+	}
+
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+
+	public boolean isExpired() {
+		return cancelled || (System.currentTimeMillis() >= expires);
+	}
+
+
+	/* Remaining time in milliseconds, at most Integer.MAX_VALUE */
+	public long remaining() {
+		if (expires == Long.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		return Math.max(0, expires - System.currentTimeMillis());
+	}
+
+
+	/* Throws if the time is up, to be called before each request */
+	public void check() throws DeadlineExceededException {
+		if (isExpired()) {
+			throw new DeadlineExceededException(getReason());
+		}
+	}
+
+
+	public String getReason() {
+		if (cancelled && (reason != null)) {
+			return reason;
+		}
+		return LocMsg.pr("e_deadline");
+	}
+
+
+	/* The timeout in milliseconds to use for a blocking operation
+	 * with the given maximum, bounded by the deadline, which may be
+	 * null. Never returns 0, as this means infinite for sockets.
+	 */
+	public static int timeout(Deadline d, int maxMsec)
+		throws DeadlineExceededException {
+
+		if (d == null) {
+			return maxMsec;
+		}
+		d.check();
+		return (int)Math.max(1, Math.min(maxMsec, d.remaining()));
+	}
+
+}
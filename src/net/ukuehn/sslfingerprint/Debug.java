@@ -44,6 +44,7 @@ public class Debug {
 
 	public static final int Delay = 11;
 	public static final int CharEncoding = 12;
+	public static final int Engine = 13;
 
 
 
@@ -60,6 +61,9 @@ public class Debug {
 			System.err.println("Setting debug level "+debug);
 		}
 
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("Debug: Engine");
+		}
 		if (Debug.get(Debug.CharEncoding)) {
 			System.err.println("Debug: CharEncoding");
 		}
@@ -0,0 +1,313 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * One end of a connection between coordinator and worker, carrying
+ * DistMessage objects over a plain TCP socket using Java
+ * serialization. As results come from the network, only the exact
+ * classes a message is made of are accepted when reading, and the
+ * size of a message, the nesting of its objects and the length of
+ * its arrays are limited.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+import java.net.Socket;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+
+public class DistConnection {
+
+	static final String[] allowed = {
+		"net.ukuehn.sslfingerprint.DistMessage",
+		"net.ukuehn.sslfingerprint.Host",
+		"net.ukuehn.sslfingerprint.SSLResult",
+		"net.ukuehn.sslfingerprint.FingerprintResult",
+		"net.ukuehn.sslfingerprint.ProbeResult",
+		"net.ukuehn.sslfingerprint.PolicyResult",
+		"net.ukuehn.sslfingerprint.PolicyRule",
+		"net.ukuehn.sslfingerprint.CipherSuiteData",
+		"net.ukuehn.sslfingerprint.CertSummary",
+		"java.util.Date",
+		"java.util.HashSet",
+		"java.util.LinkedHashSet",
+		"java.util.HashMap",
+		"java.util.LinkedHashMap",
+		"java.net.InetAddress",
+		"java.net.Inet4Address",
+		"java.net.Inet6Address",
+		"java.security.cert.Certificate$CertificateRep",
+		"[B",
+		"[I",
+		"[J",
+		"[Ljava.lang.String;",
+		"[Lnet.ukuehn.sslfingerprint.Host;",
+		"[Lnet.ukuehn.sslfingerprint.CertSummary;",
+		"[Lnet.ukuehn.sslfingerprint.PolicyRule;",
+		"[Ljava.security.cert.Certificate;",
+		"[Ljava.security.cert.X509Certificate;",
+	};
+	static final HashSet<String> allowedSet
+		= new HashSet<String>(java.util.Arrays.asList(allowed));
+
+	/* A batch of hosts or a result with its certificates is far
+	 * below these.
+	 */
+	static final int maxMessageBytes = 16*1024*1024;
+	static final int maxDepth = 16;
+	static final int maxArray = 1024*1024;
+	static final int maxRefs = 200000;
+
+	Socket sock;
+	ObjectOutputStream out;
+	ObjectInputStream in;
+	LimitedInputStream limit;
+
+
+	public DistConnection(Socket s) throws IOException {
+		sock = s;
+		sock.setTcpNoDelay(true);
+		out = new ObjectOutputStream(
+			     new BufferedOutputStream(s.getOutputStream()));
+		/* the peer waits for the stream header */
+		out.flush();
+		limit = new LimitedInputStream(
+			     new BufferedInputStream(s.getInputStream()));
+		in = new MessageInputStream(limit);
+	}
+
+
+	public String getPeer() {
+		return sock.getInetAddress().getHostAddress()
+			+":"+sock.getPort();
+	}
+
+
+	/* Can be called from any thread */
+	public void send(DistMessage m) throws IOException {
+		synchronized (out) {
+			out.writeObject(m);
+			/* Forget the objects written, as they are
+			 * not sent again.
+			 */
+			out.reset();
+			out.flush();
+		}
+	}
+
+
+	/* Wait for the next message. Throws EOFException when the
+	 * peer has closed the connection.
+	 */
+	public DistMessage receive() throws IOException {
+		try {
+			limit.restart();
+			Object o = in.readObject();
+			if (o instanceof DistMessage) {
+				return (DistMessage)o;
+			}
+			throw new InvalidObjectException(
+				     o.getClass().getName());
+		} catch (ClassNotFoundException e) {
+			throw new InvalidClassException(e.getMessage());
+		}
+	}
+
+
+	/* Ask the peer to prove it knows the secret. Returns false
+	 * if it does not.
+	 */
+	public boolean challenge(byte[] secret) throws IOException {
+		byte[] nonce = new byte[32];
+		new SecureRandom().nextBytes(nonce);
+		send(DistMessage.hello(nonce));
+		DistMessage m = receive();
+		if ((m.type != DistMessage.HELLO) || (m.token == null)
+		    || !MessageDigest.isEqual(m.token, mac(secret, nonce))) {
+			return false;
+		}
+		send(DistMessage.hello(null));
+		return true;
+	}
+
+
+	/* Answer the challenge of the peer */
+	public void answer(byte[] secret) throws IOException {
+		DistMessage m = receive();
+		if ((m.type != DistMessage.HELLO) || (m.token == null)) {
+			throw new IOException(LocMsg.pr("e_dist_hello"));
+		}
+		send(DistMessage.hello(mac(secret, m.token)));
+		try {
+			m = receive();
+		} catch (EOFException e) {
+			m = null;
+		}
+		if ((m == null) || (m.type != DistMessage.HELLO)) {
+			throw new IOException(LocMsg.pr("e_dist_refused"));
+		}
+	}
+
+
+	protected static byte[] mac(byte[] secret, byte[] nonce)
+		throws IOException {
+
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			return mac.doFinal(nonce);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+
+	public void close() {
+		try {
+			sock.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+	}
+
+
+	static class MessageInputStream extends ObjectInputStream {
+
+		MessageInputStream(InputStream is) throws IOException {
+			super(is);
+			setLimits();
+		}
+
+
+		/* The nesting of objects and the length of arrays can
+		 * only be checked by the filter of the Java 9 runtime
+		 * (or 8u121), which is set up by name so this still
+		 * runs on older ones. There, only the size of a message
+		 * is limited.
+		 */
+		protected void setLimits() throws IOException {
+			String spec = "maxdepth="+maxDepth
+				+";maxarray="+maxArray
+				+";maxrefs="+maxRefs;
+			try {
+				Class<?> config = Class.forName(
+				     "java.io.ObjectInputFilter$Config");
+				Class<?> filter = Class.forName(
+				     "java.io.ObjectInputFilter");
+				Method create = config.getMethod(
+				     "createFilter", String.class);
+				Method set = ObjectInputStream.class.getMethod(
+				     "setObjectInputFilter", filter);
+				set.invoke(this, create.invoke(null, spec));
+			} catch (ClassNotFoundException e) {
+				/* older runtime */
+			} catch (NoSuchMethodException e) {
+				/* older runtime */
+			} catch (Exception e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+			throws IOException, ClassNotFoundException {
+
+			String name = desc.getName();
+			if (!allowedSet.contains(name)) {
+				throw new InvalidClassException(name,
+					 LocMsg.pr("e_dist_class"));
+			}
+			return super.resolveClass(desc);
+		}
+
+
+		protected Class<?> resolveProxyClass(String[] interfaces)
+			throws IOException, ClassNotFoundException {
+
+			throw new InvalidClassException("Proxy",
+				 LocMsg.pr("e_dist_class"));
+		}
+	}
+
+
+	/* Fails the read of a message beyond maxMessageBytes */
+	static class LimitedInputStream extends FilterInputStream {
+
+		long count;
+
+		LimitedInputStream(InputStream is) {
+			super(is);
+			count = 0;
+		}
+
+		void restart() {
+			count = 0;
+		}
+
+		protected void add(long n) throws IOException {
+			count += n;
+			if (count > maxMessageBytes) {
+				throw new StreamCorruptedException(
+					 LocMsg.pr("e_dist_size",
+					   String.valueOf(maxMessageBytes)));
+			}
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				add(1);
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len)
+			throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				add(n);
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long k = super.skip(n);
+			add(k);
+			return k;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+}
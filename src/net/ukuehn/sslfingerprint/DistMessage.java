@@ -0,0 +1,138 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A message between the coordinator and a worker of a distributed
+ * scan. The worker asks for hosts, the coordinator hands out batches
+ * of hosts, each with its position in the host list, and the worker
+ * sends back a result or an error per host. Before any hosts, the
+ * worker has to prove it knows the secret shared with the
+ * coordinator:
+ *
+ *   worker        coordinator
+ *              <- HELLO nonce  random challenge
+ *   HELLO mac  ->              HMAC of the nonce under the secret
+ *              <- HELLO        accepted, else the link is closed
+ *   REQUEST n  ->              ask for up to n more hosts
+ *              <- WORK         batch of hosts
+ *   RESULT     ->              result for one host
+ *   FAILED     ->              host could not be scanned
+ *              <- STEAL n      give back up to n hosts not started
+ *   GIVE       ->              the hosts given back, maybe none
+ *              <- DONE         no more hosts, finish and disconnect
+ *
+ * STEAL lets the coordinator move hosts queued at a busy worker to an
+ * idle one when it has no hosts left to hand out.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.Serializable;
+
+
+
+public class DistMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int REQUEST = 1;
+	public static final int WORK = 2;
+	public static final int RESULT = 3;
+	public static final int FAILED = 4;
+	public static final int STEAL = 5;
+	public static final int GIVE = 6;
+	public static final int DONE = 7;
+	public static final int HELLO = 8;
+
+	int type;
+	int count;
+	long[] seqs;
+	Host[] hosts;
+	SSLResult result;
+	String error;
+	byte[] token;
+
+
+	protected DistMessage(int msgType) {
+		type = msgType;
+	}
+
+
+	public static DistMessage hello(byte[] t) {
+		DistMessage m = new DistMessage(HELLO);
+		m.token = t;
+		return m;
+	}
+
+
+	public static DistMessage request(int n) {
+		DistMessage m = new DistMessage(REQUEST);
+		m.count = n;
+		return m;
+	}
+
+
+	public static DistMessage work(long[] seqNos, Host[] batch) {
+		DistMessage m = new DistMessage(WORK);
+		m.seqs = seqNos;
+		m.hosts = batch;
+		return m;
+	}
+
+
+	public static DistMessage result(long seqNo, SSLResult res) {
+		DistMessage m = new DistMessage(RESULT);
+		m.seqs = new long[] { seqNo };
+		m.result = res;
+		return m;
+	}
+
+
+	public static DistMessage failed(long seqNo, String why) {
+		DistMessage m = new DistMessage(FAILED);
+		m.seqs = new long[] { seqNo };
+		m.error = why;
+		return m;
+	}
+
+
+	public static DistMessage steal(int n) {
+		DistMessage m = new DistMessage(STEAL);
+		m.count = n;
+		return m;
+	}
+
+
+	public static DistMessage give(long[] seqNos) {
+		DistMessage m = new DistMessage(GIVE);
+		m.seqs = seqNos;
+		return m;
+	}
+
+
+	public static DistMessage done() {
+		return new DistMessage(DONE);
+	}
+
+}
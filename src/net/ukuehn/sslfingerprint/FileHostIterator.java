@@ -26,6 +26,7 @@ package net.ukuehn.sslfingerprint;
 
 import java.io.*;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.StringTokenizer;
 
 
@@ -33,13 +34,13 @@ import java.util.StringTokenizer;
 public class FileHostIterator implements Iterator<Host> {
 
 	BufferedReader bReader;
-	Host nextHost;
+	LinkedList<Host> pending;
 	boolean done;
 	int defPort;
 
 	protected FileHostIterator(BufferedReader reader, int defaultPort) {
 		bReader = reader;
-		nextHost = null;
+		pending = new LinkedList<Host>();
 		done = false;
 		defPort = defaultPort;
 	}
@@ -72,16 +73,20 @@ public class FileHostIterator implements Iterator<Host> {
 		if (done) {
 			return false;
 		}
-		if (nextHost != null) {
+		if (!pending.isEmpty()) {
 			return true;
 		}
-		while (!done && (nextHost == null)) {
+		/* A line may list several services of a host, which
+		 * are handed out one by one.
+		 */
+		while (!done && pending.isEmpty()) {
 			try {
 				String hostStr = bReader.readLine();
 				if (hostStr == null) {
 					break;
 				}
-				nextHost = Host.parse(hostStr, defPort);
+				pending.addAll(Host.parseList(hostStr,
+							      defPort));
 			} catch (IOException e) {
 				try {
 					bReader.close();
@@ -91,14 +96,12 @@ public class FileHostIterator implements Iterator<Host> {
 				done = true;
 			}
 		}
-		return (!done && (nextHost != null));
+		return (!done && !pending.isEmpty());
 	}
 
 
 	public Host next() {
-		Host res = nextHost;
-		nextHost = null;
-		return res;
+		return pending.poll();
 	}
 
 }
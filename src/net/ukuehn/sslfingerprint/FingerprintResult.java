@@ -39,19 +39,36 @@ import java.security.KeyStore;
 
 import java.util.Date;
 import java.util.Set;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.ArrayList;
 
 
 
 
 public class FingerprintResult extends SSLResult {
 
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEPTH_PROBE = 0;
+	public static final int DEPTH_PROTOCOLS = 1;
+	public static final int DEPTH_FULL = 2;
+
+	static final String[] depthNames = { "probe", "protocols", "full" };
+
 	Set<String> protos;
 	Set<CipherSuiteData> ciphersuites;
 	Set<CipherSuiteData> sslv2CS;
 
 	boolean supportsSSLv2;
 	int sslv2Behavior;
+	int depth;
 
+	Set<String> undecidedProtos;
+	Set<String> undecidedSuites;
+
+	Map<String, Set<String>> suiteMatrix;
+	Map<String, Set<String>> undecidedPairs;
 
 
 	public FingerprintResult(String theHost, int thePort,
@@ -67,6 +84,11 @@ public class FingerprintResult extends SSLResult {
 		protos = null;
 		ciphersuites = null;
 		sslv2CS = null;
+		depth = DEPTH_FULL;
+		undecidedProtos = null;
+		undecidedSuites = null;
+		suiteMatrix = null;
+		undecidedPairs = null;
 	}
 
 
@@ -85,4 +107,103 @@ public class FingerprintResult extends SSLResult {
 	}
 
 
+	/* What an incomplete scan could not decide, i.e. the protocols
+	 * and cipher suites neither found accepted nor rejected.
+	 */
+	public void setUndecided(Set<String> protocols, Set<String> suites) {
+		undecidedProtos = protocols;
+		undecidedSuites = suites;
+	}
+
+
+	public Set<String> getUndecidedProtos() {
+		return undecidedProtos;
+	}
+
+
+	public Set<String> getUndecidedSuites() {
+		return undecidedSuites;
+	}
+
+
+	/* The pairs of protocol and cipher suite of the matrix left
+	 * undecided, by protocol. Null or empty if there are none.
+	 */
+	public void setUndecidedPairs(Map<String, Set<String>> pairs) {
+		undecidedPairs = pairs;
+	}
+
+
+	public Map<String, Set<String>> getUndecidedPairs() {
+		return undecidedPairs;
+	}
+
+
+	/* Number of undecided pairs of the matrix */
+	public int countUndecidedPairs() {
+		if (undecidedPairs == null) {
+			return 0;
+		}
+		int n = 0;
+		for (Iterator<Set<String>> it
+			     = undecidedPairs.values().iterator();
+		     it.hasNext();  /* */ ) {
+			n += it.next().size();
+		}
+		return n;
+	}
+
+
+	/* The cipher suites accepted with each protocol, by name of
+	 * the protocol. Null if not collected, or not complete.
+	 */
+	public void setSuiteMatrix(Map<String, Set<String>> matrix) {
+		suiteMatrix = matrix;
+	}
+
+
+	public Map<String, Set<String>> getSuiteMatrix() {
+		return suiteMatrix;
+	}
+
+
+	/* The protocols a cipher suite is accepted with, or null if
+	 * there is no matrix.
+	 */
+	public String[] getSuiteProtos(String suite) {
+		if (suiteMatrix == null) {
+			return null;
+		}
+		ArrayList<String> res = new ArrayList<String>();
+		for (Iterator<Map.Entry<String, Set<String>>>
+			     it = suiteMatrix.entrySet().iterator();
+		     it.hasNext();  /* */ ) {
+			Map.Entry<String, Set<String>> e = it.next();
+			if (e.getValue().contains(suite)) {
+				res.add(e.getKey());
+			}
+		}
+		return res.toArray(new String[0]);
+	}
+
+
+	/* How far a tiered scan went, see SSLTieredFingerprint. Below
+	 * full depth, the protocols and cipher suites are only those
+	 * seen so far, and SSLv2 was not checked.
+	 */
+	public void setDepth(int scanDepth) {
+		depth = scanDepth;
+	}
+
+
+	public int getDepth() {
+		return depth;
+	}
+
+
+	public String getDepthName() {
+		return depthNames[depth];
+	}
+
+
 }
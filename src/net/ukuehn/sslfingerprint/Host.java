@@ -24,19 +24,55 @@
 
 package net.ukuehn.sslfingerprint;
 
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 
-public class Host {
+public class Host implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	public String name;
 	public int port;
+	public InetAddress addr;
+
+	/* The protocol spoken on the port, e.g. smtp, or null to use
+	 * the one given for the whole scan.
+	 */
+	public String service;
+
+	/* The other services of the same host share the address
+	 * lookup of the first one.
+	 */
+	Host primary;
 
 	public Host(String hostName, int portNo) {
 		name = hostName;
 		port = portNo;
+		addr = null;
+		service = null;
+		primary = null;
+	}
+
+
+	/* Look up the address of the host once, which also primes
+	 * the resolver cache for later connects by name.
+	 */
+	public synchronized InetAddress resolve() throws UnknownHostException {
+		if (addr == null) {
+			if (primary != null) {
+				addr = primary.resolve();
+			} else {
+				addr = InetAddress.getByName(name);
+			}
+		}
+		return addr;
 	}
 
 
@@ -125,4 +161,89 @@ public class Host {
 	}
 
 
+	/* Split off a trailing /service from a port or host spec, and
+	 * check that the service is one we know.
+	 */
+	protected static String splitService(String spec, String[] service)
+		throws IllegalArgumentException {
+
+		int slash = spec.lastIndexOf('/');
+		if (slash < 0) {
+			service[0] = null;
+			return spec;
+		}
+		service[0] = spec.substring(slash+1);
+		if (SocketInitialiser.forProtocol(service[0]) == null) {
+			throw new IllegalArgumentException(
+				      LocMsg.pr("e_unsupp_proto", service[0])
+				      );
+		}
+		return spec.substring(0, slash);
+	}
+
+
+	protected static int serviceDefaultPort(String service,
+						int defaultPort) {
+		if (service == null) {
+			return defaultPort;
+		}
+		return SocketInitialiser.forProtocol(service).getDefaultPort();
+	}
+
+
+	/* Parse a host with a list of services, as in
+	 * host:443/plain,587/smtp,143/imap, into one entry per
+	 * service. Without a service, a port is scanned with the
+	 * protocol given for the whole scan. The entries share the
+	 * address lookup, and are returned in the order given, so
+	 * the results of a host stay together.
+	 */
+	public static List<Host> parseList(String hostStr, int defaultPort)
+		throws IllegalArgumentException {
+
+		List<Host> res = new ArrayList<Host>();
+		if (hostStr == null) {
+			return res;
+		}
+		StringTokenizer st = new StringTokenizer(hostStr, ",");
+		if (!st.hasMoreTokens()) {
+			return res;
+		}
+		String[] service = new String[1];
+		String spec = splitService(st.nextToken().trim(), service);
+		Host first = parse(spec, -1);
+		if (first == null) {
+			return res;
+		}
+		if (first.port == -1) {
+			first.port = serviceDefaultPort(service[0],
+							defaultPort);
+		}
+		first.service = service[0];
+		res.add(first);
+
+		while (st.hasMoreTokens()) {
+			String sPort = splitService(st.nextToken().trim(),
+						    service);
+			Host h = new Host(first.name, 0);
+			if (sPort.length() == 0) {
+				h.port = serviceDefaultPort(service[0],
+							    defaultPort);
+			} else {
+				try {
+					h.port = Integer.parseInt(sPort);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(
+					       LocMsg.pr("e_port_num", sPort)
+					       );
+				}
+			}
+			h.service = service[0];
+			h.primary = first;
+			res.add(h);
+		}
+		return res;
+	}
+
+
 }
@@ -0,0 +1,155 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A uniform random sample of fixed size from a list of hosts, drawn
+ * in a single pass by reservoir sampling (Vitter's algorithm R): the
+ * i-th host replaces a random member of the reservoir with
+ * probability size/i. Only the sample is kept in memory, however long
+ * the list is, and its length is counted on the way, as the size of
+ * the population for the estimates (see SampleEstimator).
+ *
+ * The sample is handed out in the order of the list. The same seed
+ * gives the same sample of the same list, e.g. to resume a scan.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+
+
+public class HostSample implements Iterator<Host> {
+
+	Host[] hosts;
+	long[] positions;
+	int count;
+	int next;
+	long population;
+
+
+	public HostSample(Iterator<Host> hostIter, int size, long seed)
+		throws IllegalArgumentException {
+
+		if (size < 1) {
+			throw new IllegalArgumentException(
+				     LocMsg.pr("e_sample_spec",
+					       String.valueOf(size)));
+		}
+		hosts = new Host[size];
+		positions = new long[size];
+		count = 0;
+		next = 0;
+		population = 0;
+		draw(hostIter, new Random(seed));
+	}
+
+
+	protected void draw(Iterator<Host> hostIter, Random rnd) {
+		while (hostIter.hasNext()) {
+			Host h = hostIter.next();
+			if (h == null) {
+				continue;
+			}
+			population += 1;
+			if (count < hosts.length) {
+				hosts[count] = h;
+				positions[count] = population;
+				count += 1;
+			} else {
+				long j = (long)(rnd.nextDouble() * population);
+				if (j < hosts.length) {
+					hosts[(int)j] = h;
+					positions[(int)j] = population;
+				}
+			}
+		}
+		sortByPosition();
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("HostSample: "+count+" of "
+					   +population+" hosts");
+		}
+	}
+
+
+	protected void sortByPosition() {
+		Integer[] idx = new Integer[count];
+		for (int i = 0;  i < count;  i++) {
+			idx[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(idx, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					long pa = positions[a.intValue()];
+					long pb = positions[b.intValue()];
+					return (pa < pb) ? -1 : ((pa > pb) ? 1 : 0);
+				}
+			});
+		Host[] sorted = new Host[count];
+		for (int i = 0;  i < count;  i++) {
+			sorted[i] = hosts[idx[i].intValue()];
+		}
+		hosts = sorted;
+		positions = null;
+	}
+
+
+	/* Number of hosts in the list the sample was drawn from */
+	public long getPopulation() {
+		return population;
+	}
+
+
+	/* Number of hosts in the sample, less than the size asked for
+	 * if the list is shorter.
+	 */
+	public int getSize() {
+		return count;
+	}
+
+
+	public boolean hasNext() {
+		return next < count;
+	}
+
+
+	public Host next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Host h = hosts[next];
+		hosts[next] = null;
+		next += 1;
+		return h;
+	}
+
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -46,11 +46,11 @@ public class HttpProxySocketInitialiser extends SocketInitialiser {
 
 	private int timeout;
 
-	boolean authRequired;
+	volatile boolean authRequired;
 
 	String authID;
 	String authPW;
-	String authenticator; 
+	volatile String authenticator; 
 
 
 	public HttpProxySocketInitialiser() {
@@ -100,12 +100,10 @@ public class HttpProxySocketInitialiser extends SocketInitialiser {
 	}
 
 
-	public Socket createSocket(String host, int port)
+	public Socket createSocket(String host, int port, Deadline d)
 		throws IOException, FingerprintException, FingerprintError {
 
-		Socket s = new Socket();
-		s.connect(new InetSocketAddress(proxyHost, proxyPort),
-			  1000*timeout);
+		Socket s = openSocket(proxyHost, proxyPort, d, 1000*timeout);
 
 		PrintWriter out = new PrintWriter(s.getOutputStream());
 		InputStreamReader isr
@@ -171,7 +169,9 @@ public class HttpProxySocketInitialiser extends SocketInitialiser {
 			}
 			prepareAuthorisation(hdr.getProxyAuthInfo());
 			authRequired = true;
-			return createSocket(host, port);
+			SocketWatchdog.getDefault().release(s);
+			s.close();
+			return createSocket(host, port, d);
 		}
 		return s;
 	}
@@ -70,19 +70,17 @@ public class ImapSocketInitialiser extends SocketInitialiser {
 	}
 
 
-	public Socket createSocket(String host, int port)
+	public Socket createSocket(String host, int port, Deadline d)
 		throws IOException, FingerprintException, FingerprintError {
 
 		Socket s;
 
 		if (chainedInit != null) {
-			s = chainedInit.createSocket(host, port);
+			s = chainedInit.createSocket(host, port, d);
 		} else {
 			//SocketFactory f = SocketFactory.getDefault();
 			//s = (Socket)f.createSocket(host, port);
-			s = new Socket();
-			s.connect(new InetSocketAddress(host, port),
-				  1000*timeout);
+			s = openSocket(host, port, d, 1000*timeout);
 		}
 		startTLSwithImap(s);
 		return s;
@@ -209,8 +207,16 @@ public class ImapSocketInitialiser extends SocketInitialiser {
 	}
 
 
+	/* The initialiser is shared by concurrent scan workers, and
+	 * NumberFormat is not thread-safe.
+	 */
+	protected synchronized String nextTag() {
+		return TAGSTART+tnf.format(tagCount++);
+	}
+
+
 	protected void sendCommand(PrintWriter out, String msg) {
-		String tag = TAGSTART+tnf.format(tagCount++);
+		String tag = nextTag();
 		if (Debug.get(Debug.Communication)) {
 			System.err.println(">>>" + tag + TAGSEP + msg);
 		}
@@ -0,0 +1,266 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import javax.crypto.interfaces.*;
+import java.io.*;
+
+import java.security.cert.*;
+import java.security.interfaces.*;
+import java.security.PublicKey;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Map;
+import java.text.SimpleDateFormat;
+
+import net.ukuehn.json.JSON;
+
+
+
+/* Publishes each result as one JSON object on a line of its own, so
+ * results can be read one by one as they arrive. Handles the results
+ * of both fingerprinting and probing, and always gives all details.
+ */
+public class JSONPublisher extends ClassifyingPublisher {
+
+	Writer out;
+
+
+	public JSONPublisher(Writer w, Classifier cl) {
+		out = w;
+		cls = cl;
+	}
+
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+
+	/* Events go on lines of their own, told apart from results
+	 * by their event member.
+	 */
+	public void publishEvent(ScanEvent e)
+		throws IOException, FingerprintError {
+
+		SimpleDateFormat format
+			= new SimpleDateFormat(LocMsg.pr("s_dateformat"));
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"event\":").append(JSON.quote(e.getTypeName()));
+		sb.append(",\"host\":").append(JSON.quote(e.host));
+		sb.append(",\"port\":").append(e.port);
+		sb.append(",\"date\":")
+			.append(JSON.quote(format.format(e.date)));
+		if (e.detail != null) {
+			sb.append(",\"detail\":").append(JSON.quote(e.detail));
+		}
+		sb.append("}\n");
+		out.write(sb.toString());
+	}
+
+
+	public void publish(SSLResult sr)
+		throws IOException, FingerprintError {
+
+		SimpleDateFormat format
+			= new SimpleDateFormat(LocMsg.pr("s_dateformat"));
+		String resSupport;
+
+		switch (sr.sslSupport) {
+		case SSLResult.UNSUPPORTED:
+			resSupport = "false";
+			break;
+		case SSLResult.SUPPORTED:
+			resSupport = "true";
+			break;
+		case SSLResult.UNKNOWN:
+		default:
+			resSupport = "unknown";
+			break;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"host\":").append(JSON.quote(sr.host));
+		sb.append(",\"port\":").append(sr.port);
+		if (sr.service != null) {
+			sb.append(",\"service\":")
+				.append(JSON.quote(sr.service));
+		}
+		sb.append(",\"ssl\":").append(JSON.quote(resSupport));
+		sb.append(",\"date\":")
+			.append(JSON.quote(format.format(sr.startDate)));
+		if (sr.sslSupport != SSLResult.SUPPORTED) {
+			sb.append(",\"reason\":")
+				.append(JSON.quote(sr.reasonNoSupport));
+		}
+		if (sr.incomplete) {
+			sb.append(",\"incomplete\":true,\"incompleteReason\":")
+				.append(JSON.quote(sr.incompleteReason));
+			if ((sr instanceof FingerprintResult)
+			    && (((FingerprintResult)sr).undecidedProtos
+				!= null)) {
+				FingerprintResult fr = (FingerprintResult)sr;
+				sb.append(",\"undecidedProtocols\":");
+				stringsToJSON(sb, fr.undecidedProtos);
+				sb.append(",\"undecidedCiphersuites\":");
+				stringsToJSON(sb, fr.undecidedSuites);
+				if (fr.countUndecidedPairs() > 0) {
+					sb.append(",\"undecidedPairs\":");
+					pairsToJSON(sb, fr.undecidedPairs);
+				}
+			}
+		}
+		if (sr.sslSupport == SSLResult.SUPPORTED) {
+			if (sr instanceof FingerprintResult) {
+				FingerprintResult fr = (FingerprintResult)sr;
+				classify(fr);
+				sb.append(",\"depth\":")
+					.append(JSON.quote(fr.getDepthName()));
+				protoToJSON(sb, fr);
+				ciphersuitesToJSON(sb, fr);
+				matrixToJSON(sb, fr);
+			}
+			certificateToJSON(sb, sr);
+		}
+		sb.append("}");
+		out.write(sb.toString());
+		out.write("\n");
+	}
+
+
+	protected void protoToJSON(StringBuilder sb, FingerprintResult fr) {
+		sb.append(",\"protocols\":[");
+		String sep = "";
+		for (Iterator<String> it = fr.protos.iterator();
+		     it.hasNext();  /* in loop */ ) {
+			sb.append(sep).append(JSON.quote(it.next()));
+			sep = ",";
+		}
+		sb.append("],\"insecureProto\":").append(fr.supportsSSLv2);
+	}
+
+
+	protected void stringsToJSON(StringBuilder sb, Set<String> strings) {
+		sb.append("[");
+		String sep = "";
+		for (Iterator<String> it = strings.iterator();
+		     it.hasNext();  /* in loop */ ) {
+			sb.append(sep).append(JSON.quote(it.next()));
+			sep = ",";
+		}
+		sb.append("]");
+	}
+
+
+	protected void matrixToJSON(StringBuilder sb, FingerprintResult fr) {
+		if (fr.suiteMatrix == null) {
+			return;
+		}
+		sb.append(",\"matrix\":");
+		pairsToJSON(sb, fr.suiteMatrix);
+	}
+
+
+	/* Suites by protocol, as an object of arrays */
+	protected void pairsToJSON(StringBuilder sb,
+				   Map<String, Set<String>> pairs) {
+		sb.append("{");
+		String sep = "";
+		for (Iterator<Map.Entry<String, Set<String>>>
+			     it = pairs.entrySet().iterator();
+		     it.hasNext();  /* in loop */ ) {
+			Map.Entry<String, Set<String>> e = it.next();
+			sb.append(sep).append(JSON.quote(e.getKey()));
+			sb.append(":");
+			stringsToJSON(sb, e.getValue());
+			sep = ",";
+		}
+		sb.append("}");
+	}
+
+
+	protected void ciphersuitesToJSON(StringBuilder sb,
+					  FingerprintResult fr) {
+		sb.append(",\"ciphersuites\":[");
+		String sep = suitesToJSON(sb, "", secCS, "secure");
+		sep = suitesToJSON(sb, sep, probCS, "problematic");
+		sep = suitesToJSON(sb, sep, insecCS, "insecure");
+		suitesToJSON(sb, sep, unknownCS, "unknown");
+		sb.append("]");
+	}
+
+
+	protected String suitesToJSON(StringBuilder sb, String sep,
+				      Set<CipherSuiteData> suites,
+				      String security) {
+		if (suites == null) {
+			return sep;
+		}
+		for (Iterator<CipherSuiteData> it = suites.iterator();
+		     it.hasNext();  /* in loop */ ) {
+			CipherSuiteData d = it.next();
+			sb.append(sep);
+			sb.append("{\"name\":").append(JSON.quote(d.name));
+			sb.append(",\"security\":").append(JSON.quote(security));
+			sb.append("}");
+			sep = ",";
+		}
+		return sep;
+	}
+
+
+	protected void certificateToJSON(StringBuilder sb, SSLResult sr)
+		throws FingerprintError {
+
+		CertSummary cert = sr.getServerCertSummary();
+		if (cert == null) {
+			return;
+		}
+
+		sb.append(",\"certificate\":{");
+		sb.append("\"valid\":").append(sr.certVerifies);
+		sb.append(",\"nameMatch\":").append(sr.certNameMatch);
+		sb.append(",\"algorithm\":")
+			.append(JSON.quote(cert.getKeyAlgorithm()));
+		if (cert.getKeyType() == CertSummary.KEY_RSA) {
+			sb.append(",\"keyLength\":").append(cert.getKeySize());
+			sb.append(opensslModHash ? ",\"modHash\":"
+				  : ",\"keyHash\":");
+			sb.append(JSON.quote(getKeyHash(cert)));
+		} else if (cert.getKeyType() == CertSummary.KEY_DH) {
+			sb.append(",\"keyLength\":").append(cert.getKeySize());
+		}
+		sb.append(",\"selfSigned\":").append(cert.isSelfSigned());
+		sb.append(",\"subject\":").append(JSON.quote(cert.getSubject()));
+		sb.append(",\"issuer\":").append(JSON.quote(cert.getIssuer()));
+		sb.append(",\"validFrom\":")
+			.append(JSON.quote(cert.getNotBefore().toString()));
+		sb.append(",\"validUntil\":")
+			.append(JSON.quote(cert.getNotAfter().toString()));
+		sb.append("}");
+	}
+
+}
@@ -48,6 +48,12 @@ public class Log {
 	}
 
 
+	public Log(Writer w) {
+		out = new PrintWriter(w);
+		logLevel = 0;
+	}
+
+
 	public void setLogLevel(int level) {
 		logLevel = level;
 	}
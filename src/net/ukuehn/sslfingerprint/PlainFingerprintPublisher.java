@@ -38,6 +38,8 @@ import java.security.PublicKey;
 import java.util.Date;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.text.SimpleDateFormat;
 
 
@@ -108,11 +110,25 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 					  format.format(fr.startDate))
 			);
 		}
+		if (fr.service != null) {
+			log.log(Log.ESSENTIAL,
+				LocMsg.pr("r_service", fr.service));
+		}
 
 		log.log(Log.ESSENTIAL,
 			LocMsg.pr("s_collection_done",
 				  format.format(fr.endDate))
 			);
+		if (fr.incomplete) {
+			log.log(Log.ESSENTIAL,
+				LocMsg.pr("r_incomplete", fr.incompleteReason));
+			publishUndecided(fr);
+		}
+		if ((fr.depth < FingerprintResult.DEPTH_FULL)
+		    && (fr.sslSupport == SSLResult.SUPPORTED)) {
+			log.log(Log.ESSENTIAL,
+				LocMsg.pr("r_depth", fr.getDepthName()));
+		}
 		/*
 		 * Ok, here we have all results, so start
 		 * with output
@@ -126,8 +142,9 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 			publishProtoDetails(fr);
 			publishCSSummary(fr);
 			publishCSDetails(fr);
+			publishSuiteMatrix(fr);
 
-			if (fr.certs != null) {
+			if ((fr.certs != null) || (fr.certSummaries != null)) {
 				publishCertificates(fr);
 			}
 		} else if (fr.sslSupport == SSLResult.UNSUPPORTED) {
@@ -141,6 +158,45 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
+	protected void publishUndecided(FingerprintResult fr) {
+		if ((fr.undecidedProtos == null)
+		    || (fr.undecidedSuites == null)) {
+			return;
+		}
+		log.log(Log.ESSENTIAL,
+			LocMsg.pr("r_undecided",
+				  String.valueOf(fr.undecidedProtos.size()),
+				  String.valueOf(fr.undecidedSuites.size())));
+		for (Iterator<String> itr = fr.undecidedProtos.iterator();
+		     itr.hasNext();  /* nothing */ ) {
+			log.log(Log.VERBOSE,
+				LocMsg.pr("r_undecided_proto", itr.next()));
+		}
+		for (Iterator<String> itr = fr.undecidedSuites.iterator();
+		     itr.hasNext();  /* nothing */ ) {
+			log.log(Log.VERBOSE,
+				LocMsg.pr("r_undecided_suite", itr.next()));
+		}
+		if (fr.countUndecidedPairs() == 0) {
+			return;
+		}
+		log.log(Log.ESSENTIAL,
+			LocMsg.pr("r_undecided_pairs",
+				  String.valueOf(fr.countUndecidedPairs())));
+		for (Iterator<Map.Entry<String, Set<String>>>
+			     it = fr.undecidedPairs.entrySet().iterator();
+		     it.hasNext();  /* nothing */ ) {
+			Map.Entry<String, Set<String>> e = it.next();
+			for (Iterator<String> itr = e.getValue().iterator();
+			     itr.hasNext();  /* nothing */ ) {
+				log.log(Log.VERBOSE,
+					LocMsg.pr("r_undecided_pair",
+						  e.getKey(), itr.next()));
+			}
+		}
+	}
+
+
 	protected void publishProtoSummary(FingerprintResult fr) {
 		if (fr.supportsSSLv2) {
 			log.log(Log.ESSENTIAL, LocMsg.pr("r_handshake_insec"));
@@ -228,6 +284,27 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
+	protected void publishSuiteMatrix(FingerprintResult fr) {
+		if (fr.suiteMatrix == null) {
+			return;
+		}
+		log.log(Log.VERBOSE, LocMsg.pr("r_matrix_hl"));
+		for (Iterator<Map.Entry<String, Set<String>>>
+			     it = fr.suiteMatrix.entrySet().iterator();
+		     it.hasNext();  /* nothing */ ) {
+			Map.Entry<String, Set<String>> e = it.next();
+			log.log(Log.VERBOSE,
+				LocMsg.pr("r_matrix_proto", e.getKey()));
+			for (Iterator<String> itr = e.getValue().iterator();
+			     itr.hasNext();  /* nothing */ ) {
+				log.log(Log.VERBOSE,
+					LocMsg.pr("r_matrix_suite",
+						  itr.next()));
+			}
+		}
+	}
+
+
 	protected void publishCSDetails(FingerprintResult fr) {
 		if (fr.supportsSSLv2) {
 			if (fr.sslv2CS.size() > 0) {
@@ -284,18 +361,14 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
-	protected String getCertificateAlgorithmInfo(X509Certificate cert)
-		throws FingerprintError {
+	protected String getCertificateAlgorithmInfo(CertSummary cert) {
 
 		StringBuilder res = new StringBuilder();
-		PublicKey pk = cert.getPublicKey();
-		String alg = pk.getAlgorithm();
 
-		if (pk instanceof RSAPublicKey) {
-			RSAPublicKey rpk = (RSAPublicKey)pk;
-			int size = rpk.getModulus().bitLength();
+		switch (cert.getKeyType()) {
+		case CertSummary.KEY_RSA:
 			res.append("RSA (");
-			res.append(Integer.toString(size));
+			res.append(Integer.toString(cert.getKeySize()));
 			res.append(")");
 
 			if (opensslModHash) {
@@ -303,41 +376,46 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 			} else {
 				res.append(" hash: ");
 			}
-			String hashVal = getRSAKeyHash(rpk);
-			res.append(hashVal);
-		} else if (pk instanceof DHPublicKey) {
-			DHPublicKey dpk = (DHPublicKey)pk;
-			int gsize = dpk.getParams().getP().bitLength();
-			int lsize = dpk.getParams().getL();
-			res.append("DH ("+Integer.toString(gsize)
-				   +"/"+Integer.toString(lsize)+")");
-		} else if (pk instanceof DSAPublicKey) {
-			DSAPublicKey dpk = (DSAPublicKey)pk;
-			int gsize = dpk.getParams().getP().bitLength();
-			int ssize = dpk.getParams().getQ().bitLength();
-			res.append("DA ("+Integer.toString(gsize)
-				   +"/"+Integer.toString(ssize)+")");
-		} else if (pk instanceof ECPublicKey) {
+			res.append(getKeyHash(cert));
+			break;
+		case CertSummary.KEY_DH:
+			res.append("DH ("+Integer.toString(cert.getKeySize())
+				   +"/"+Integer.toString(cert.getKeyParam())
+				   +")");
+			break;
+		case CertSummary.KEY_DSA:
+			res.append("DA ("+Integer.toString(cert.getKeySize())
+				   +"/"+Integer.toString(cert.getKeyParam())
+				   +")");
+			break;
+		case CertSummary.KEY_EC:
 			res.append("EC Public Key");
-		} else {
-			res.append(alg.toString());
+			break;
+		default:
+			res.append(cert.getKeyAlgorithm());
 		}
 
 		return res.toString();
 	}
 
 
-	protected void checkCertificateName(X509Certificate cert,
-					                 String host) {
+	/* The match by the Java hostname validator has been found
+	 * when validating the certificate.
+	 */
+	protected void checkCertificateName(CertSummary cert,
+					    FingerprintResult fr) {
 
-		boolean nameMatch = cv.checkCertificateDN(cert, host);
-		boolean altMatch = cv.checkCertificateSubjAltName(cert, host);
+		String host = fr.host;
+		boolean nameMatch = cv.checkCertificateDN(cert.getSubjectDN(),
+							  host);
+		boolean altMatch = cv.checkSubjAltNames(cert.getAltNames(),
+							host);
 		boolean jmatch = false;
 
 		printSubjAltNames(cert);
 
 		if (!nameMatch) {
-			jmatch = cv.nameMatches(cert, host);
+			jmatch = fr.certNameMatch;
 			if (Debug.get(Debug.Certs)) {
 				System.err.println("Direct name mismatch "
 						   +"found. Java "
@@ -358,39 +436,33 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
-	protected void printSubjAltNames(X509Certificate cert) {
-		try {
-			Collection altNames =
-				cert.getSubjectAlternativeNames();
-			if (altNames != null) {
-				log.log(Log.VERBOSE,
-					LocMsg.pr("r_subalt_names"));
-				for (Iterator it = altNames.iterator();
-				     it.hasNext();  ) {
-					String nam=it.next().toString();
-					log.log(Log.VERBOSE,
-						LocMsg.pr("r_altname", nam));
-				}
-			}
-		} catch (CertificateParsingException e) {
+	protected void printSubjAltNames(CertSummary cert) {
+		if (cert.altNamesUnparsable()) {
 			// Ignore
 			log.log(Log.VERBOSE,
 				LocMsg.pr("e_certparse_subjaltname"));
+			return;
+		}
+		String[] altNames = cert.getAltNames();
+		if (altNames != null) {
+			log.log(Log.VERBOSE,
+				LocMsg.pr("r_subalt_names"));
+			for (int i = 0;  i < altNames.length;  i++) {
+				log.log(Log.VERBOSE,
+					LocMsg.pr("r_altname", altNames[i]));
+			}
 		}
 	}
 
 
-	protected void printX509CertificateInfo(X509Certificate cert,
-						String prefix)
-		throws FingerprintError {
+	protected void printX509CertificateInfo(CertSummary cert,
+						String prefix) {
 
-		String subjDN =	cert.getSubjectX500Principal().getName();
-		String issuerDN = cert.getIssuerX500Principal().getName();
+		String subjDN =	cert.getSubject();
+		String issuerDN = cert.getIssuer();
 		String sigAlg = cert.getSigAlgName();
-		boolean selfSigned;
-		String selfMsg = "";
+		boolean selfSigned = cert.isSelfSigned();
 
-		selfSigned = subjDN.equals(issuerDN);
 		log.log(Log.VERBOSE,
 			LocMsg.pr("r_cert_alg",
 				  getCertificateAlgorithmInfo(cert),
@@ -422,9 +494,9 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 	protected void publishCertificates(FingerprintResult fr)
 		throws FingerprintError {
 
-		if (fr.certs[0] instanceof X509Certificate) {
-			checkCertificateName(
-				    (X509Certificate)fr.certs[0], fr.host);
+		CertSummary[] chain = fr.getCertSummaries();
+		if (chain[0] != null) {
+			checkCertificateName(chain[0], fr);
 		}
 		if (fr.certVerifies) {
 			log.log(Log.ESSENTIAL, LocMsg.pr("r_cert_valid"));
@@ -433,20 +505,18 @@ public class PlainFingerprintPublisher extends ClassifyingPublisher {
 		}
 
 		log.log(Log.VERBOSE, LocMsg.pr("s_certchain"));
-		for (int i = 0;  i < fr.certs.length;  i++) {
-			if (fr.certs[i] instanceof X509Certificate) {
-				X509Certificate cert =
-					(X509Certificate)fr.certs[i];
+		for (int i = 0;  i < chain.length;  i++) {
+			if (chain[i] != null) {
 				StringBuffer buf = new StringBuffer(" #");
 				for (int j =
-				      String.valueOf(fr.certs.length).length()
+				      String.valueOf(chain.length).length()
 					     -String.valueOf(i).length();
 				     j--> 0;  ) {
 					buf.append(" ");
 				}
 				buf.append(Integer.toString(i));
 				buf.append(":");
-				printX509CertificateInfo(cert,
+				printX509CertificateInfo(chain[i],
 							 new String(buf));
 			} else {
 				log.log(Log.VERBOSE,
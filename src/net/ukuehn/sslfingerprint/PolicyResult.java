@@ -0,0 +1,116 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.Date;
+
+
+
+/* The verdicts of a policy check, one per rule, together with what
+ * the server accepted in breach of a rule, if it did.
+ */
+public class PolicyResult extends SSLResult {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int PASS = 0;
+	public static final int FAIL = 1;
+	public static final int UNDECIDED = 2;
+
+	static final String[] verdictNames = { "pass", "fail", "undecided" };
+
+	PolicyRule[] rules;
+	int[] verdicts;
+	String[] evidence;
+	int handshakes;
+
+
+	public PolicyResult(String theHost, int thePort,
+			    Date start, Date end,
+			    int supportsSSL,
+			    String reason) {
+
+		super(theHost, thePort, start, end, supportsSSL, reason,
+		      null, false, false);
+		rules = new PolicyRule[0];
+		verdicts = new int[0];
+		evidence = new String[0];
+		handshakes = 0;
+	}
+
+
+	public void setVerdicts(PolicyRule[] policy, int[] ruleVerdicts,
+				String[] ruleEvidence) {
+		rules = policy;
+		verdicts = ruleVerdicts;
+		evidence = ruleEvidence;
+	}
+
+
+	public void setHandshakes(int n) {
+		handshakes = n;
+	}
+
+
+	public int getRuleCount() {
+		return rules.length;
+	}
+
+
+	public PolicyRule getRule(int i) {
+		return rules[i];
+	}
+
+
+	public int getVerdict(int i) {
+		return verdicts[i];
+	}
+
+
+	public String getVerdictName(int i) {
+		return verdictNames[verdicts[i]];
+	}
+
+
+	/* The protocol or cipher suite breaking the rule, if any */
+	public String getEvidence(int i) {
+		return evidence[i];
+	}
+
+
+	/* Whether the host complies with all rules for sure */
+	public boolean passes() {
+		if (sslSupport != SUPPORTED) {
+			return false;
+		}
+		for (int i = 0;  i < verdicts.length;  i++) {
+			if (verdicts[i] != PASS) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
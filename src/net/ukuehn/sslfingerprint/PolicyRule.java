@@ -0,0 +1,216 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A rule of a policy check, see SSLPolicyCheck. A rule names what a
+ * host must not accept, in terms of the Classifier or by name:
+ *
+ *   suites=<level>  no cipher suite classified below <level>
+ *   protos=<level>  no protocol classified below <level>
+ *   noproto=<proto> not the protocol <proto>, e.g. SSLv3 or SSL2
+ *
+ * where <level> is secure or problematic. Suites and protocols of
+ * unknown strength are never counted against a rule.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+
+
+public class PolicyRule implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int SUITES = 0;
+	public static final int PROTOS = 1;
+	public static final int NOPROTO = 2;
+
+	static final String[] typeNames = { "suites", "protos", "noproto" };
+	static final String sslv2 = "SSL2";
+
+	String name;
+	int type;
+	int level;
+	String proto;
+
+
+	public PolicyRule(int ruleType, int minLevel, String protoName) {
+		type = ruleType;
+		level = minLevel;
+		proto = protoName;
+		if (type == NOPROTO) {
+			name = typeNames[type]+"="+proto;
+		} else if (level == Classification.STRENGTH_SECURE) {
+			name = typeNames[type]+"=secure";
+		} else {
+			name = typeNames[type]+"=problematic";
+		}
+	}
+
+
+	/* Parse a comma separated list of rules */
+	public static List<PolicyRule> parseList(String spec)
+		throws IllegalArgumentException {
+
+		List<PolicyRule> rules = new ArrayList<PolicyRule>();
+		StringTokenizer st = new StringTokenizer(spec, ",");
+		while (st.hasMoreTokens()) {
+			rules.add(parse(st.nextToken().trim()));
+		}
+		if (rules.size() == 0) {
+			throw new IllegalArgumentException(
+				LocMsg.pr("e_policy_rule", spec));
+		}
+		return rules;
+	}
+
+
+	public static PolicyRule parse(String spec)
+		throws IllegalArgumentException {
+
+		int idx = spec.indexOf('=');
+		if ((idx <= 0) || (idx == spec.length()-1)) {
+			throw new IllegalArgumentException(
+				LocMsg.pr("e_policy_rule", spec));
+		}
+		String t = spec.substring(0, idx);
+		String arg = spec.substring(idx+1);
+		if (t.equals(typeNames[NOPROTO])) {
+			return new PolicyRule(NOPROTO,
+					      Classification.STRENGTH_UNKNOWN,
+					      arg);
+		}
+		int ruleType;
+		if (t.equals(typeNames[SUITES])) {
+			ruleType = SUITES;
+		} else if (t.equals(typeNames[PROTOS])) {
+			ruleType = PROTOS;
+		} else {
+			throw new IllegalArgumentException(
+				LocMsg.pr("e_policy_rule", spec));
+		}
+		if (arg.equals("secure")) {
+			return new PolicyRule(ruleType,
+					      Classification.STRENGTH_SECURE,
+					      null);
+		} else if (arg.equals("problematic")) {
+			return new PolicyRule(ruleType,
+					      Classification.STRENGTH_PROBLEMATIC,
+					      null);
+		}
+		throw new IllegalArgumentException(
+			LocMsg.pr("e_policy_rule", spec));
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+
+	public boolean isSuiteRule() {
+		return type == SUITES;
+	}
+
+
+	protected static boolean below(int strength, int level) {
+		return (strength != Classification.STRENGTH_UNKNOWN)
+			&& (strength < level);
+	}
+
+
+	/* Whether the rule forbids the cipher suite */
+	public boolean forbidsSuite(Classifier cls, String suite) {
+		if (type != SUITES) {
+			return false;
+		}
+		return below(cls.classifyCipherSuite(
+				     new CipherSuiteData(suite)), level);
+	}
+
+
+	/* Whether the rule forbids the protocol */
+	public boolean forbidsProto(Classifier cls, String p) {
+		if (type == NOPROTO) {
+			return proto.equals(p);
+		} else if (type == PROTOS) {
+			return below(cls.classifyProto(p), level);
+		}
+		return false;
+	}
+
+
+	/* The suites to offer to find out whether a server breaks the
+	 * rule
+	 */
+	public Set<String> forbiddenSuites(Classifier cls,
+					   Set<String> suites) {
+		Set<String> res = new LinkedHashSet<String>();
+		for (Iterator<String> it = suites.iterator();  it.hasNext();
+		     /* */ ) {
+			String s = it.next();
+			if (forbidsSuite(cls, s)) {
+				res.add(s);
+			}
+		}
+		return res;
+	}
+
+
+	/* The protocols to offer to find out whether a server breaks
+	 * the rule. SSLv2 is checked separately, see forbidsSSLv2().
+	 */
+	public Set<String> forbiddenProtos(Classifier cls,
+					   Set<String> protos) {
+		Set<String> res = new LinkedHashSet<String>();
+		for (Iterator<String> it = protos.iterator();  it.hasNext();
+		     /* */ ) {
+			String p = it.next();
+			if (forbidsProto(cls, p)) {
+				res.add(p);
+			}
+		}
+		return res;
+	}
+
+
+	public boolean forbidsSSLv2(Classifier cls) {
+		return forbidsProto(cls, sslv2);
+	}
+
+
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,448 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2014 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * The politeness scheduler decides when the next connection to a
+ * target may be made. Each connection needs a permit, which is only
+ * handed out if all of the following limits are met:
+ *
+ *  - the number of open connections to the target address,
+ *  - the number of open connections to the subnet of the target,
+ *    with configurable prefix lengths for IPv4 and IPv6,
+ *  - the minimum interval between two connections to the target
+ *    address (formerly the delay of the collectors),
+ *  - the global rate of handshakes per second, as a token bucket.
+ *
+ * A limit of zero means no limit. The scheduler is shared by all
+ * workers of a scan.
+ *
+ * Optionally, the number of connections in flight is adapted to the
+ * network, both globally and per subnet: every connection reports
+ * its outcome on release, and timeouts and resets shrink the limits
+ * while successful connections let them grow again, see
+ * AdaptiveLimit.
+ *
+ * Also optionally, a circuit breaker per address and per subnet
+ * stops connecting to targets which failed repeatedly; a request for
+ * a permit then fails fast with a CircuitOpenException.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.net.InetAddress;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+
+public class PolitenessScheduler {
+
+	static final int defaultIPv4Prefix = 24;
+	static final int defaultIPv6Prefix = 64;
+	static final int sweepInterval = 1024;
+	static final long forgetInterval = 60000;
+
+	int maxPerHost;
+	int maxPerSubnet;
+	int ipv4Prefix;
+	int ipv6Prefix;
+	int hostInterval;
+	double rate;
+	int adaptiveMax;
+
+	HashMap<String, Slot> hostSlots;
+	HashMap<String, Slot> subnetSlots;
+
+	double tokens;
+	long lastRefill;
+	int acquired;
+
+	AdaptiveLimit globalLimit;
+	int inFlight;
+
+	CircuitBreaker breaker;
+
+
+	public PolitenessScheduler() {
+		maxPerHost = 0;
+		maxPerSubnet = 0;
+		ipv4Prefix = defaultIPv4Prefix;
+		ipv6Prefix = defaultIPv6Prefix;
+		hostInterval = 0;
+		rate = 0.0;
+		hostSlots = new HashMap<String, Slot>();
+		subnetSlots = new HashMap<String, Slot>();
+		tokens = 0.0;
+		lastRefill = System.currentTimeMillis();
+		acquired = 0;
+		adaptiveMax = 0;
+		globalLimit = null;
+		inFlight = 0;
+		breaker = null;
+	}
+
+
+	public synchronized void setMaxPerHost(int n) {
+		maxPerHost = (n > 0) ? n : 0;
+	}
+
+
+	public synchronized void setMaxPerSubnet(int n) {
+		maxPerSubnet = (n > 0) ? n : 0;
+	}
+
+
+	public synchronized void setSubnetPrefix(int v4, int v6) {
+		ipv4Prefix = Math.max(0, Math.min(v4, 32));
+		ipv6Prefix = Math.max(0, Math.min(v6, 128));
+	}
+
+
+	/* Minimum time in milliseconds between the start of two
+	 * connections to the same address.
+	 */
+	public synchronized void setHostInterval(int msec) {
+		hostInterval = (msec > 0) ? msec : 0;
+	}
+
+
+	public synchronized int getHostInterval() {
+		return hostInterval;
+	}
+
+
+	/* Global limit of handshakes per second */
+	public synchronized void setRate(double perSecond) {
+		rate = (perSecond > 0.0) ? perSecond : 0.0;
+		tokens = Math.min(1.0, rate);
+		lastRefill = System.currentTimeMillis();
+	}
+
+
+	/* Adapt the number of connections in flight to timeouts and
+	 * resets, between one and the given maximum, globally and per
+	 * subnet. Zero switches adaption off.
+	 */
+	public synchronized void setAdaptive(int maxInFlight) {
+		adaptiveMax = (maxInFlight > 0) ? maxInFlight : 0;
+		if (adaptiveMax > 0) {
+			globalLimit = new AdaptiveLimit("global", adaptiveMax,
+							adaptiveMax);
+		} else {
+			globalLimit = null;
+		}
+	}
+
+
+	/* Fail fast on an address or subnet after the given number of
+	 * consecutive failed connections. Zero switches it off.
+	 */
+	public synchronized void setCircuitBreaker(int failures) {
+		if (failures > 0) {
+			breaker = new CircuitBreaker(failures);
+		} else {
+			breaker = null;
+		}
+	}
+
+
+	/* Try to get a permit for a connection to the given host. The
+	 * address may be null if it is not known, e.g. when connecting
+	 * through a proxy, in which case the host name is used as the
+	 * key and no subnet limit applies. Returns 0 if the permit
+	 * was granted, otherwise the time in milliseconds after which
+	 * to try again.
+	 */
+	public synchronized long tryAcquire(String host, InetAddress addr)
+		throws CircuitOpenException {
+
+		long now = System.currentTimeMillis();
+		String hostKey = hostKey(host, addr);
+		String netKey = subnetKey(addr);
+
+		if (breaker != null) {
+			String why = breaker.check(hostKey, now);
+			if ((why == null) && (netKey != null)) {
+				why = breaker.check(netKey, now);
+			}
+			if (why != null) {
+				throw new CircuitOpenException(why);
+			}
+		}
+
+		Slot hs = hostSlots.get(hostKey);
+		Slot ns = (netKey != null) ? subnetSlots.get(netKey) : null;
+		long wait = 0;
+
+		if ((hs != null) && (maxPerHost > 0)
+		    && (hs.inUse >= maxPerHost)) {
+			wait = Math.max(wait, retryWait());
+		}
+		if ((ns != null) && (maxPerSubnet > 0)
+		    && (ns.inUse >= maxPerSubnet)) {
+			wait = Math.max(wait, retryWait());
+		}
+		if ((globalLimit != null) && (inFlight >= globalLimit.get())) {
+			wait = Math.max(wait, retryWait());
+		}
+		if ((ns != null) && (ns.limit != null)
+		    && (ns.inUse >= ns.limit.get())) {
+			wait = Math.max(wait, retryWait());
+		}
+		if ((hs != null) && (hostInterval > 0)) {
+			long next = hs.lastStart + hostInterval;
+			if (next > now) {
+				wait = Math.max(wait, next - now);
+			}
+		}
+		if (rate > 0.0) {
+			refill(now);
+			if (tokens < 1.0) {
+				long t = (long)Math.ceil(1000.0 * (1.0-tokens)
+							 / rate);
+				wait = Math.max(wait, Math.max(t, 1));
+			}
+		}
+		if (wait > 0) {
+			return wait;
+		}
+
+		if (rate > 0.0) {
+			tokens -= 1.0;
+		}
+		if (hs == null) {
+			hs = new Slot();
+			hostSlots.put(hostKey, hs);
+		}
+		hs.inUse += 1;
+		hs.lastStart = now;
+		inFlight += 1;
+		if (breaker != null) {
+			breaker.started(hostKey);
+			if (netKey != null) {
+				breaker.started(netKey);
+			}
+		}
+		if (netKey != null) {
+			if (ns == null) {
+				ns = new Slot();
+				if (adaptiveMax > 0) {
+					int max = adaptiveMax;
+					if (maxPerSubnet > 0) {
+						max = Math.min(max,
+							       maxPerSubnet);
+					}
+					ns.limit = new AdaptiveLimit(netKey,
+								     max, max);
+				}
+				subnetSlots.put(netKey, ns);
+			}
+			ns.inUse += 1;
+			ns.lastStart = now;
+		}
+		if (++acquired >= sweepInterval) {
+			acquired = 0;
+			sweep(now);
+		}
+		return 0;
+	}
+
+
+	/* Get a permit, waiting as long as necessary */
+	public synchronized void acquire(String host, InetAddress addr)
+		throws InterruptedException, CircuitOpenException {
+
+		long wait;
+		while ((wait = tryAcquire(host, addr)) > 0) {
+			if (Debug.get(Debug.Delay)) {
+				System.err.println("Delaying request.");
+			}
+			wait(wait);
+		}
+	}
+
+
+	/* Give back the permit, with the outcome of the connection as
+	 * one of the constants in ConnectOutcome.
+	 */
+	public synchronized void release(String host, InetAddress addr,
+					 int outcome) {
+		long now = System.currentTimeMillis();
+		String hostKey = hostKey(host, addr);
+		Slot hs = hostSlots.get(hostKey);
+		if ((hs != null) && (hs.inUse > 0)) {
+			hs.inUse -= 1;
+		}
+		String netKey = subnetKey(addr);
+		if (breaker != null) {
+			breaker.record(hostKey, outcome, now);
+			if (netKey != null) {
+				breaker.record(netKey, outcome, now);
+			}
+		}
+		if (netKey != null) {
+			Slot ns = subnetSlots.get(netKey);
+			if ((ns != null) && (ns.inUse > 0)) {
+				ns.inUse -= 1;
+			}
+			if ((ns != null) && (ns.limit != null)) {
+				ns.limit.update(outcome, now);
+			}
+		}
+		if (inFlight > 0) {
+			inFlight -= 1;
+		}
+		if (globalLimit != null) {
+			globalLimit.update(outcome, now);
+		}
+		notifyAll();
+	}
+
+
+	protected long retryWait() {
+		/* Connections are released when a handshake is done,
+		 * so there is no point in asking again too soon.
+		 */
+		return 50;
+	}
+
+
+	protected void refill(long now) {
+		double burst = Math.max(1.0, rate);
+		tokens = Math.min(burst,
+				  tokens + (now - lastRefill) * rate / 1000.0);
+		lastRefill = now;
+	}
+
+
+	/* Forget about idle targets, so the maps do not grow with
+	 * the number of hosts scanned.
+	 */
+	protected void sweep(long now) {
+		sweepMap(hostSlots, now);
+		sweepMap(subnetSlots, now);
+		if (breaker != null) {
+			breaker.sweep(now);
+		}
+	}
+
+
+	protected void sweepMap(Map<String, Slot> m, long now) {
+		for (Iterator<Slot> it = m.values().iterator();
+		     it.hasNext();  /* */ ) {
+			Slot s = it.next();
+			if (s.inUse > 0) {
+				continue;
+			}
+			/* Keep what was learned about a congested
+			 * subnet for a while.
+			 */
+			long idle = hostInterval;
+			if ((s.limit != null) && s.limit.isReduced()) {
+				idle = Math.max(idle, forgetInterval);
+			}
+			if (now - s.lastStart > idle) {
+				it.remove();
+			}
+		}
+	}
+
+
+	protected String hostKey(String host, InetAddress addr) {
+		if (addr != null) {
+			return addr.getHostAddress();
+		}
+		return host;
+	}
+
+
+	/* The subnet of an address as string, e.g. 192.0.2.0/24 */
+	protected String subnetKey(InetAddress addr) {
+		if (addr == null) {
+			return null;
+		}
+		byte[] b = addr.getAddress();
+		int prefix = (b.length == 4) ? ipv4Prefix : ipv6Prefix;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0;  i < b.length;  i++) {
+			int bits = prefix - 8*i;
+			int mask;
+			if (bits >= 8) {
+				mask = 0xff;
+			} else if (bits <= 0) {
+				mask = 0;
+			} else {
+				mask = (0xff << (8-bits)) & 0xff;
+			}
+			if (b.length == 4) {
+				if (i > 0) {
+					sb.append(".");
+				}
+				sb.append(b[i] & mask);
+			} else {
+				if (i > 0) {
+					sb.append(":");
+				}
+				sb.append(Integer.toHexString(b[i] & mask));
+			}
+		}
+		sb.append("/");
+		sb.append(prefix);
+		return sb.toString();
+	}
+
+
+	public synchronized String toString() {
+		int reduced = 0;
+		for (Slot s : subnetSlots.values()) {
+			if ((s.limit != null) && s.limit.isReduced()) {
+				reduced += 1;
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("scheduler: in flight "+inFlight);
+		if (globalLimit != null) {
+			sb.append(" limit "+globalLimit.get()
+				  +" of "+adaptiveMax);
+		}
+		sb.append(" subnets "+subnetSlots.size());
+		if (adaptiveMax > 0) {
+			sb.append(" reduced "+reduced);
+		}
+		if (breaker != null) {
+			sb.append(" open circuits "+breaker.getOpenCount());
+		}
+		return sb.toString();
+	}
+
+
+	static class Slot {
+		int inUse = 0;
+		long lastStart = 0;
+		AdaptiveLimit limit = null;
+	}
+
+}
@@ -52,6 +52,8 @@ import net.ukuehn.xml.*;
 
 public class ProbeResult extends SSLResult {
 
+	private static final long serialVersionUID = 1L;
+
 	Set<String> protos;
 
 	public ProbeResult(String theHost, int thePort,
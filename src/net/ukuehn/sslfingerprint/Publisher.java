@@ -46,12 +46,14 @@ import java.util.LinkedHashSet;
 import java.util.Iterator;
 import java.text.SimpleDateFormat;
 
+import org.xml.sax.SAXException;
+
 import net.ukuehn.xml.*;
 import net.ukuehn.security.CertValidator;
 
 
 
-public class Publisher {
+public class Publisher implements Flushable {
 
 	boolean opensslModHash;
 	CertValidator cv;
@@ -89,88 +91,62 @@ public class Publisher {
 	}
 
 
+	/* An event of a host still in progress, see ScanEvent. Only
+	 * streaming publishers forward them, as a line or element of
+	 * their own.
+	 */
+	public void publishEvent(ScanEvent e)
+		throws IOException, FingerprintError {
+		// nothing
+	}
+
+
+	/* Make sure everything published so far has been written */
+	public void flush() throws IOException {
+		// nothing
+	}
+
+
 
 	/*
 	 * Here are some methods for use by subclasses
 	 */
 
-	/* Format a string in the way OpenSSL formats the RSA modulus
-	 * in order to compute a hash of the modulus in the same way.
-	 * The format is
-	 *          Modulus=......\n
+	/* Write an event as an empty element, between the elements of
+	 * the hosts.
 	 */
-	protected String formatOpenSSLModulus(byte[] data) {
-		String hexchar = "0123456789ABCDEF";
-		StringBuilder sb = new StringBuilder();
-		sb.append("Modulus=");
-		if (data == null) {
-			return sb.toString();
-		}
-		int start;
-		for (start = 0;  start < data.length;  start++) {
-			if (data[start] != 0) {
-				break;
+	protected void writeEvent(SimpleXMLWriter xw, ScanEvent e,
+				  SimpleDateFormat format)
+		throws IOException, FingerprintError {
+
+		try {
+			xw.startElement("Event");
+			xw.attribute("Type", e.getTypeName());
+			xw.attribute("Host", e.host);
+			xw.attribute("Port", String.valueOf(e.port));
+			xw.attribute("Date", format.format(e.date));
+			if (e.detail != null) {
+				xw.attribute("Detail", e.detail);
 			}
+			xw.endElement();
+		} catch (SAXException ex) {
+			throw new FingerprintError(ex);
 		}
-		for (int i = start;  i < data.length;  i++) {
-			int hi = (data[i] >> 4) & 0x0f;
-			int lo = data[i] & 0x0f;
-			sb.append(hexchar.charAt(hi));
-			sb.append(hexchar.charAt(lo));
-		}
-		sb.append("\n");
-		return sb.toString();
 	}
 
 
-	/* Compute the SHA-1 hash of the key. Depending on the value
-	 * of opensslModHash format the hash input like OpenSSL, otherwise
-	 * use length, exponent and modulus as input.
-	 */
+	/* Compute the SHA-1 hash of the key, see CertSummary.rsaKeyHash */
 	protected String getRSAKeyHash(RSAPublicKey rpk)
 		throws FingerprintError {
-		StringBuilder res = new StringBuilder(40); // sha1 hash
-
-		int size = rpk.getModulus().bitLength();
-		byte[] modbytes = rpk.getModulus().toByteArray();
-		byte[] expbytes = rpk.getPublicExponent().toByteArray();
-		int len = expbytes.length;
-		byte[] lenbytes;
-		if (len < 255) {
-			lenbytes = new byte[1];
-			lenbytes[0] = (byte)(len & 0xff);
-		} else {
-			lenbytes = new byte[3];
-			lenbytes[0] = 0;
-			lenbytes[1] = (byte)((len >> 8) & 0xff);
-			lenbytes[2] = (byte)(len & 0xff);
-		}
-		try {
-			MessageDigest md =
-				MessageDigest.getInstance("SHA");
-			if (opensslModHash) {
-				String ms =
-					formatOpenSSLModulus(modbytes);
-				//System.err.println("mod hash:"+ms);
-				md.update(ms.getBytes());
-			} else {
-				md.update(lenbytes);
-				md.update(expbytes);
-				md.update(modbytes);
-			}
-			byte[] digest = md.digest();
-			String hexchar = "0123456789abcdef";
-			for (int i = 0;  i < digest.length;  i++) {
-				int hi = (digest[i] >> 4) & 0x0f;
-				int lo = digest[i] & 0x0f;
-				res.append(hexchar.charAt(hi));
-				res.append(hexchar.charAt(lo));
-			}
-		} catch (NoSuchAlgorithmException e) {
-			throw new InstallationError(
-				    "SHA-1 algorithm not available", e);
-		}
-		return res.toString();
+		return CertSummary.rsaKeyHash(rpk, opensslModHash);
+	}
+
+
+	/* The hash of the key of the certificate, in the format asked
+	 * for, or null if it is not an RSA key.
+	 */
+	protected String getKeyHash(CertSummary cs) {
+		return cs.getKeyHash(opensslModHash);
 	}
 
 
@@ -53,6 +53,18 @@ import java.io.*;
 import java.util.Set;
 import java.util.LinkedHashSet;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import net.ukuehn.security.NullTrustManager;
 import net.ukuehn.security.CertValidator;
@@ -68,8 +80,6 @@ public class SSLConfigCollector {
 	int port;
 	SocketInitialiser si;
 	CertValidator cv;
-	int delay;
-	boolean initialRequest;
 
 	boolean allowSSLv2Hello = false;
 	String[] disabledProtos = { "SSLv2Hello" };
@@ -77,25 +87,97 @@ public class SSLConfigCollector {
 	String[] disabledSuites;
 	boolean allowKerb = false;
 	boolean allSupported = false;
+	boolean protocolsOnly = false;
 
 	LinkedHashSet<String> acceptedProto;
-	LinkedHashSet acceptedCS;
-	LinkedHashSet rejectedCS;
+	LinkedHashSet<CipherSuiteData> acceptedCS;
+	LinkedHashSet<CipherSuiteData> rejectedCS;
+	LinkedHashSet<String> knownSuites;
+	Map<String, String> knownProto;
+	LinkedHashMap<String, CipherSuiteData> knownTops;
+	ArrayList<CipherSuiteData> suiteOrder;
+
+	static final int PHASE_PROTOCOLS = 0;
+	static final int PHASE_SUITES = 1;
+	static final int PHASE_DONE = 2;
+	static final int PHASE_MATRIX = 3;
+
+	public static final int OFFER_ACCEPTED = 0;
+	public static final int OFFER_REJECTED = 1;
+	public static final int OFFER_IMPOSSIBLE = 2;
+	static final String noAppropriate = "No appropriate protocol";
+	static final String[] protoOrder = {
+		"SSLv3", "TLSv1", "TLSv1.1", "TLSv1.2", "TLSv1.3"
+	};
+	String offerProto;
+	String offerSuite;
+
+	SSLSocketFactory factory;
+	LinkedHashSet<String> fullProtoSet;
+	LinkedHashSet<String> fullSuiteSet;
+	LinkedHashSet<String> currProtoSet;
+	LinkedHashSet<String> currSuiteSet;
+	int phase;
+	int outcome;
+
+	int maxProtoSteps;
+	int maxSuiteSteps;
+	int protoSteps;
+	int suiteSteps;
+	String cutReason;
+	LinkedHashSet<String> undecidedProtos;
+	LinkedHashSet<String> undecidedSuites;
+	Map<String, Set<String>> undecidedPairs;
+
+	static final int defaultTimeout = 30000;
+	static SSLSocketFactory sharedFactory = null;
+	Deadline deadline;
+	Socket current;
+	ScanListener listener;
+	boolean connectedTold;
+
+	int suitePartitions;
+	int stepWidth;
+	int lastWidth;
+	SSLConfigCollector[] partitions;
+	SSLConfigCollector parent;
+
+	boolean suiteMatrix;
+	boolean matrixDone;
+	LinkedHashMap<String, LinkedHashSet<String>> matrix;
+	LinkedList<String> matrixProtos;
+	String matrixProto;
+	LinkedHashSet<String> matrixSuites;
+	static ExecutorService partitionPool = null;
 
 	Certificate[] certs;
 	String certCipherSuiteName;
+	String certAuthType;
 	boolean certsVerify;
 	boolean certNameMatch;
 
 
 	protected void reset() {
 		acceptedProto = new LinkedHashSet<String>();
-		acceptedCS = new LinkedHashSet();
-		rejectedCS = new LinkedHashSet();
+		acceptedCS = new LinkedHashSet<CipherSuiteData>();
+		rejectedCS = new LinkedHashSet<CipherSuiteData>();
+		knownSuites = new LinkedHashSet<String>();
+		knownProto = new HashMap<String, String>();
+		knownTops = new LinkedHashMap<String, CipherSuiteData>();
+		suiteOrder = new ArrayList<CipherSuiteData>();
 		cv = null;
 		certsVerify = false;
 		certNameMatch = false;
-		initialRequest = true;
+		phase = PHASE_DONE;
+		protoSteps = 0;
+		suiteSteps = 0;
+		cutReason = null;
+		undecidedProtos = new LinkedHashSet<String>();
+		undecidedSuites = new LinkedHashSet<String>();
+		undecidedPairs = new LinkedHashMap<String, Set<String>>();
+		partitions = null;
+		matrix = new LinkedHashMap<String, LinkedHashSet<String>>();
+		matrixDone = false;
 	}
 
 
@@ -109,10 +191,27 @@ public class SSLConfigCollector {
 		host = theHost;
 		port = thePort;
 		si = null;
-		delay = 0;
 		setSocketInitialiser(theSI);
 		reset();
 		disabledSuites = null;
+		deadline = null;
+		maxProtoSteps = 0;
+		maxSuiteSteps = 0;
+		listener = null;
+		connectedTold = false;
+		suitePartitions = 1;
+		stepWidth = 0;
+		lastWidth = 0;
+		parent = null;
+		suiteMatrix = false;
+	}
+
+
+	/* All connections and handshakes have to be done before the
+	 * deadline, which can also be used to cancel the collection.
+	 */
+	public void setDeadline(Deadline d) {
+		deadline = d;
 	}
 
 
@@ -194,8 +293,17 @@ public class SSLConfigCollector {
 	}
 
 
-	public void setDelay(int parmDelay) {
-		delay = parmDelay;
+	/* Tell the listener about the progress of the collection */
+	public void setScanListener(ScanListener l) {
+		listener = l;
+	}
+
+
+	protected void tell(int type, String detail) {
+		if (listener != null) {
+			listener.scanEvent(new ScanEvent(type, host, port,
+							 detail));
+		}
 	}
 
 
@@ -210,13 +318,142 @@ public class SSLConfigCollector {
 	}
 
 
+	/* Limit the number of handshakes of the protocol and of the
+	 * cipher suite phase. When a phase runs out of its budget, it
+	 * stops, leaving the rest undecided, see getCutReason(). Zero
+	 * means no limit.
+	 */
+	public void setStageBudgets(int protocols, int suites) {
+		maxProtoSteps = (protocols > 0) ? protocols : 0;
+		maxSuiteSteps = (suites > 0) ? suites : 0;
+	}
+
+
+	/* Split the cipher suites into as many disjoint partitions,
+	 * each collected subtractively on a connection of its own, so
+	 * that a step of the suite phase makes up to that many
+	 * handshakes at once. The union of the partitions gives the
+	 * same accepted and rejected suites as a single set, but the
+	 * order of the accepted suites follows the server preference
+	 * only within each partition.
+	 */
+	public void setSuitePartitions(int k) {
+		suitePartitions = (k > 1) ? k : 1;
+	}
+
+
+	/* Limit the number of partitions the next step works on at
+	 * once, e.g. to the connections to the host still allowed.
+	 * Zero means all of them.
+	 */
+	public void setStepWidth(int n) {
+		stepWidth = (n > 0) ? n : 0;
+	}
+
+
+	/* Let the next step work on at most n partitions, whatever the
+	 * width set before.
+	 */
+	public void limitStepWidth(int n) {
+		if (n < 1) {
+			n = 1;
+		}
+		if ((stepWidth == 0) || (stepWidth > n)) {
+			stepWidth = n;
+		}
+	}
+
+
+	/* Number of partitions of the suite phase not done yet, or
+	 * zero if the suites are not partitioned.
+	 */
+	public int getPendingPartitions() {
+		if ((phase != PHASE_SUITES) || (partitions == null)) {
+			return 0;
+		}
+		int n = 0;
+		for (int i = 0;  i < partitions.length;  i++) {
+			if (partitions[i].hasMoreSteps()) {
+				n += 1;
+			}
+		}
+		return n;
+	}
+
+
+	/* After the cipher suites, find out which of them each of the
+	 * accepted protocols takes, see getSuiteMatrix().
+	 */
+	public void setSuiteMatrix(boolean m) {
+		suiteMatrix = m;
+	}
+
+
+	/* Number of handshakes made by the last step */
+	public int getLastWidth() {
+		return lastWidth;
+	}
+
+
+	/* Stop after the protocol phase, and go on with the cipher
+	 * suites only when collectSuites() is called.
+	 */
+	public void setProtocolsOnly(boolean only) {
+		protocolsOnly = only;
+	}
+
+
 	public void setAllSupported(boolean parmAllow) {
 		allSupported = parmAllow;
 	}
 
 
+	/* The suites accepted, in the order of preference of the
+	 * server as far as the suite phase found it. The suite known
+	 * from the protocol phase for a protocol goes ahead of the
+	 * first suite found which that protocol can use, best
+	 * protocol first. The suites found otherwise, e.g. when the
+	 * scan was cut short, follow in the order found.
+	 */
 	public Set getAcceptedCipherSuites() {
-		return (Set)acceptedCS;
+		ArrayList<CipherSuiteData> order
+			= new ArrayList<CipherSuiteData>();
+		Set<String> placed = new HashSet<String>();
+		for (Iterator<CipherSuiteData> it = suiteOrder.iterator();
+		     it.hasNext();  /* */ ) {
+			CipherSuiteData d = it.next();
+			if (placed.add(d.name)) {
+				order.add(d);
+			}
+		}
+		for (int r = protoOrder.length-1;  r >= 0;  r--) {
+			CipherSuiteData top = knownTops.get(protoOrder[r]);
+			if ((top == null) || !placed.add(top.name)) {
+				continue;
+			}
+			int i = 0;
+			while ((i < order.size())
+			       && !suitsProtocol(protoOrder[r],
+						 order.get(i).name)) {
+				i += 1;
+			}
+			order.add(i, top);
+		}
+		LinkedHashMap<String, CipherSuiteData> res
+			= new LinkedHashMap<String, CipherSuiteData>();
+		for (Iterator<CipherSuiteData> it = order.iterator();
+		     it.hasNext();  /* */ ) {
+			CipherSuiteData d = it.next();
+			res.put(d.name, d);
+		}
+		for (Iterator<CipherSuiteData> it = acceptedCS.iterator();
+		     it.hasNext();  /* */ ) {
+			CipherSuiteData d = it.next();
+			if (!res.containsKey(d.name)) {
+				res.put(d.name, d);
+			}
+		}
+		return new LinkedHashSet<CipherSuiteData>(res.values());
 	}
 
 
@@ -245,15 +482,36 @@ public class SSLConfigCollector {
 	}
 
 
+	/* Key exchange of the handshake the certificates were
+	 * recorded from, as needed for validating the chain.
+	 */
+	public String getServerCertAuthType() {
+		return certAuthType;
+	}
+
+
 	protected Socket newSocket(String host, int port)
 		throws IOException, FingerprintException, FingerprintError {
 
 		Socket s;
 		if (si != null) {
-			s = si.createSocket(host, port);
+			s = si.createSocket(host, port, deadline);
 		} else {
-			s = new Socket(host, port);
+			s = SocketInitialiser.openSocket(host, port, deadline,
+							 defaultTimeout);
+		}
+		current = s;
+		if (deadline != null) {
+			deadline.attach(s);
 		}
+		if (!connectedTold) {
+			connectedTold = true;
+			tell(ScanEvent.CONNECTED, null);
+		}
+		/* The preamble of the socket initialiser may have used
+		 * up some of the time left for the handshake.
+		 */
+		s.setSoTimeout(Deadline.timeout(deadline, defaultTimeout));
 		return s;
 	}
 
@@ -261,13 +519,86 @@ public class SSLConfigCollector {
 	protected Socket newSocket()
 		throws IOException, FingerprintException, FingerprintError {
 
-		Socket s;
-		if (si != null) {
-			s = si.createSocket(host, port);
-		} else {
-			s = new Socket(host, port);
+		return newSocket(host, port);
+	}
+
+
+	/* The socket factory of an SSL context with certificate
+	 * verification disabled by an "accept all" trust manager. Its
+	 * setup is costly, so it is done once and shared by all
+	 * collectors. See handshake() on its session cache.
+	 */
+	protected static synchronized SSLSocketFactory getFactory()
+		throws InstallationError {
+
+		if (sharedFactory != null) {
+			return sharedFactory;
+		}
+		X509TrustManager[] tm = { new NullTrustManager() };
+		try {
+			SSLContext sc = SSLContext.getInstance("SSL");
+			sc.init(null, tm, null);
+			sharedFactory = (SSLSocketFactory)sc.getSocketFactory();
+		} catch (java.security.KeyManagementException e) {
+			/* Should not occur, as key manager is not
+			 * provided anyway in the call, but otherwise
+			 * there seems to be a serious problem with
+			 * the installation.
+			 */
+			throw new InstallationError(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InstallationError(
+				      LocMsg.pr("e_no_java_ssl"), e);
+		}
+		return sharedFactory;
+	}
+
+
+	/* Run the handshake. If it fails because the watchdog closed
+	 * the socket, report this as timeout instead of as a rejected
+	 * handshake.
+	 *
+	 * The session is invalidated right away, as the context is
+	 * shared: a later handshake with the same server must not
+	 * resume it, but negotiate afresh to show what the server
+	 * accepts.
+	 */
+	protected void handshake(SSLSocket ssock) throws IOException {
+		try {
+			ssock.startHandshake();
+			ssock.getSession().invalidate();
+		} catch (IOException e) {
+			if (SocketWatchdog.getDefault().hasExpired(current)) {
+				SocketTimeoutException te =
+					new SocketTimeoutException(
+						 LocMsg.pr("e_watchdog"));
+				te.initCause(e);
+				throw te;
+			}
+			throw e;
 		}
-		return s;
+	}
+
+
+	/* Done with the connection of the last request, whatever its
+	 * state. Returns true if the watchdog had to close it.
+	 */
+	protected boolean releaseSocket() {
+		Socket s = current;
+		current = null;
+		if (s == null) {
+			return false;
+		}
+		if (deadline != null) {
+			deadline.detach(s);
+		}
+		boolean expired = SocketWatchdog.getDefault().release(s);
+		try {
+			s.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+		return expired;
 	}
 
 
@@ -287,38 +618,32 @@ public class SSLConfigCollector {
 	}
 
 
+	/* Collect the full configuration in one go. This is the same
+	 * as calling startCollection() and then collectStep() until it
+	 * returns false. Callers wanting to pace or interleave the
+	 * requests use the latter directly.
+	 */
 	public void collectConfig()
 		throws IOException, FingerprintException, FingerprintError {
 
-		LinkedHashSet<String> fullProtoSet
-			= new LinkedHashSet<String>();
-		LinkedHashSet<String> fullSuiteSet
-			= new LinkedHashSet<String>();
+		startCollection();
+		while (collectStep()) {
+			/* next request */
+		}
+	}
 
-		SSLContext sc = null;
-		X509TrustManager[] tm = { new NullTrustManager() };
 
-		/* Get SSL Context, and disable certificate verification
-		 * by using an "accept all" trust manager
-		 */
-		try {
-			sc = SSLContext.getInstance("SSL");
-			sc.init(null, tm, null);
-		} catch (java.security.KeyManagementException e) {
-			/* Ignore, should not occur, as key manager is
-			 * not provided anyway in the call
-			 */
-		} catch (NoSuchAlgorithmException e) {
-			throw new InstallationError(
-				      LocMsg.pr("e_no_java_ssl"), e);
-		}
+	public void startCollection()
+		throws IOException, FingerprintException, FingerprintError {
+
+		fullProtoSet = new LinkedHashSet<String>();
+		fullSuiteSet = new LinkedHashSet<String>();
 
-		SSLSocketFactory f =
-			(SSLSocketFactory)sc.getSocketFactory();
+		factory = getFactory();
 		if (disabledSuites == null) {
-			initDisabledSuites(f);
+			initDisabledSuites(factory);
 		}
-		SSLSocket tssock = (SSLSocket)f.createSocket();
+		SSLSocket tssock = (SSLSocket)factory.createSocket();
 		String[] protos;
 		String[] suites;
 
@@ -339,332 +664,928 @@ public class SSLConfigCollector {
 		disableProtos(fullProtoSet);
 		disableCiphers(fullSuiteSet);
 
-		collectProtocols(f, fullSuiteSet, fullProtoSet);
-		collectCipherSuites(f, fullSuiteSet, fullProtoSet);
+		startProtocolPhase();
 	}
 
 
-	private void addRejectedSet(LinkedHashSet<String> suiteSet) {
+	/* Perform the next request of the collection, i.e. a single
+	 * handshake. Returns true if there are more requests to be
+	 * done.
+	 */
+	public boolean collectStep()
+		throws IOException, FingerprintException, FingerprintError {
 
-		for (Iterator<String>
-			     it = suiteSet.iterator();
-		     it.hasNext();  /* */ ) {
-			String cs = (String)it.next();
-			CipherSuiteData d =
-				new CipherSuiteData(cs);
-			rejectedCS.add(d);
-			if (Debug.get(Debug.CollectSuites)) {
-				System.err.println(
-						   "-- adding "
-						   +cs+" to rejected "
-						   +"cipher suites");
+		outcome = ConnectOutcome.OK;
+		lastWidth = 1;
+		try {
+			if (phase == PHASE_PROTOCOLS) {
+				protoSteps += 1;
+				if (!protocolStep()) {
+					endProtocolPhase();
+				} else if ((maxProtoSteps > 0)
+					   && (protoSteps >= maxProtoSteps)) {
+					cut(LocMsg.pr("r_budget_protos",
+					      String.valueOf(maxProtoSteps)));
+					undecidedProtos.addAll(currProtoSet);
+					endProtocolPhase();
+				}
+			} else if (phase == PHASE_SUITES) {
+				suiteSteps += 1;
+				boolean more = (partitions != null)
+					? partitionStep() : suiteStep();
+				if (!more) {
+					endSuitePhase();
+				} else if ((maxSuiteSteps > 0)
+					   && (suiteSteps >= maxSuiteSteps)) {
+					cut(LocMsg.pr("r_budget_suites",
+					      String.valueOf(maxSuiteSteps)));
+					undecidedSuites.addAll(currSuiteSet);
+					phase = PHASE_DONE;
+				}
+			} else if (phase == PHASE_MATRIX) {
+				/* each pair asked for is a suite step */
+				suiteSteps += 1;
+				if (!matrixStep()) {
+					matrixDone = true;
+					phase = PHASE_DONE;
+				} else if ((maxSuiteSteps > 0)
+					   && (suiteSteps >= maxSuiteSteps)) {
+					cut(LocMsg.pr("r_budget_suites",
+					      String.valueOf(maxSuiteSteps)));
+					undecidedPairs = openPairs();
+					/* done as far as it goes */
+					matrixDone = true;
+					phase = PHASE_DONE;
+				}
 			}
+		} finally {
+			stepWidth = 0;
+			releaseSocket();
 		}
+		return hasMoreSteps();
 	}
 
 
-	protected void collectCipherSuites(SSLSocketFactory f,
-					   LinkedHashSet<String> suiteSet,
-					   LinkedHashSet<String> protoSet)
-		throws IOException, FingerprintException, FingerprintError {
+	/* Outcome of the connection made by the last step, if it did
+	 * not throw. A reset is taken as rejection of the handshake,
+	 * but may as well be a sign of a rate limiter.
+	 */
+	public int getLastOutcome() {
+		return outcome;
+	}
 
-		LinkedHashSet<String> currSuiteSet
-			= (LinkedHashSet<String>)suiteSet.clone();
-		LinkedHashSet<String> currProtoSet
-			= (LinkedHashSet<String>)protoSet.clone();
-		String[] currProtos;
-		String[] currSuites;
 
+	protected void cut(String reason) {
+		cutReason = reason;
 		if (Debug.get(Debug.CollectSuites)) {
-			System.err.println("Start collecting ciphersuites");
+			System.err.println("Collection cut short: "+reason);
 		}
-		
-		while (currSuiteSet.size() > 0) {
+	}
 
-			if (Debug.get(Debug.CollectSuites)) {
-				debugSets(currProtoSet, currSuiteSet);
-			}
 
-			Socket s = null;
-			SSLSocket ssock = null;
+	/* Why a phase of the collection was cut short, or null */
+	public String getCutReason() {
+		return cutReason;
+	}
 
-			try {
-				s = newSocket();
-				ssock = (SSLSocket)f.createSocket(s,
-				                          host, port, true);
-			} catch (ConnectException e) {
-				throw new
-				      NoSSLException(LocMsg.pr("e_conn_err",
-						       e.getMessage()), e);
-			} catch (HttpProxyIOException e) {
-				throw new IOException(e);
-			} catch (NoStartTlsException e) {
-				throw new NoSSLException(e);
-			} catch (InitialiserException e) {
-				throw new NoSSLException(e);
-			} catch (FingerprintException e) {
-				throw new NoSSLException(e);
-			} catch (SocketTimeoutException e) {
-				throw new NoSSLException(e);
-			}
-
-			currProtos
-				= currProtoSet.toArray(new String[1]);
-			currSuites
-				= currSuiteSet.toArray(new String[1]);
-			ssock.setEnabledProtocols(currProtos);
-			ssock.setEnabledCipherSuites(currSuites);
-
-			// If a delay is set, wait some time, except for
-			// the first request
-			if (!initialRequest && (delay > 0)) {
-				if (Debug.get(Debug.Delay)) {
-					System.err.println(
-						    "Delaying request.");
-				}
-				try {
-					Thread.sleep(delay);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
-			}
-			initialRequest = false;
 
-			try {
-				ssock.startHandshake();
-				SSLSession session = ssock.getSession();
-				String cs = session.getCipherSuite();
+	/* The protocols and cipher suites neither found accepted nor
+	 * rejected, as the collection was cut short or is not done
+	 * yet.
+	 */
+	public Set<String> getUndecidedProtos() {
+		LinkedHashSet<String> res
+			= new LinkedHashSet<String>(undecidedProtos);
+		if (phase == PHASE_PROTOCOLS) {
+			res.addAll(currProtoSet);
+		}
+		return res;
+	}
 
-				CipherSuiteData d = new CipherSuiteData(cs);
-				recordServerCertificate(ssock, d);
-				acceptedCS.add(d);
 
-				session.invalidate();
-				currSuiteSet.remove(cs);
+	public Set<String> getUndecidedSuites() {
+		LinkedHashSet<String> res
+			= new LinkedHashSet<String>(undecidedSuites);
+		if (phase == PHASE_PROTOCOLS) {
+			res.addAll(fullSuiteSet);
+		} else if (phase == PHASE_SUITES) {
+			res.addAll(currSuiteSet);
+		}
+		return res;
+	}
 
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"completed with "
-							   +cs);
-				}
-				ssock.close();
-			} catch (SSLHandshakeException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				addRejectedSet(currSuiteSet);
-				currSuiteSet.clear();
-				break;
-			} catch (ConnectException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				addRejectedSet(currSuiteSet);
-				currSuiteSet.clear();
-				throw new NoSSLException(e);
-			} catch (EOFException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				addRejectedSet(currSuiteSet);
-				currSuiteSet.clear();
-				break;
-			} catch (SocketException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				// FIXME: This is a hack to detect
-				// a connection reset. Java seems to
-				// throw only a SocketException, but
-				// nothing more specific.
-				// Thus we have to catch all SocketExceptions
-				// and possibly pass them on...
-				if (e.getMessage()
-				    .equals("Connection reset")) {
-					addRejectedSet(currSuiteSet);
-					currSuiteSet.clear();
-					break;
-				} else {
-					throw new IOException(e);
-				}
+
+	/* The pairs of protocol and cipher suite the matrix phase was
+	 * left to ask for, by protocol. Empty without a matrix.
+	 */
+	public Map<String, Set<String>> getUndecidedPairs() {
+		if (phase == PHASE_MATRIX) {
+			return openPairs();
+		}
+		return new LinkedHashMap<String, Set<String>>(undecidedPairs);
+	}
+
+
+	protected Map<String, Set<String>> openPairs() {
+		LinkedHashMap<String, Set<String>> res
+			= new LinkedHashMap<String, Set<String>>();
+		if (matrixSuites.size() > 0) {
+			res.put(matrixProto,
+				new LinkedHashSet<String>(matrixSuites));
+		}
+		for (Iterator<String> it = matrixProtos.iterator();
+		     it.hasNext();  /* */ ) {
+			String proto = it.next();
+			Set<String> suites = matrixCandidates(proto);
+			if (suites.size() > 0) {
+				res.put(proto, suites);
 			}
 		}
+		return res;
 	}
 
 
-	protected void collectProtocols(SSLSocketFactory f,
-					LinkedHashSet<String> suiteSet,
-					LinkedHashSet<String> protoSet)
-		throws IOException, FingerprintException, FingerprintError {
+	public boolean hasMoreSteps() {
+		return (phase != PHASE_DONE);
+	}
 
-		LinkedHashSet<String> currSuiteSet
-			= (LinkedHashSet<String>)suiteSet.clone();
-		LinkedHashSet<String> currProtoSet
-			= (LinkedHashSet<String>)protoSet.clone();
-		String[] currProtos;
-		String[] currSuites;
 
+	protected void startProtocolPhase() {
+		currSuiteSet = (LinkedHashSet<String>)fullSuiteSet.clone();
+		currProtoSet = (LinkedHashSet<String>)fullProtoSet.clone();
+		phase = PHASE_PROTOCOLS;
 		if (Debug.get(Debug.CollectSuites)) {
 			System.err.println("Start collecting protocols");
 		}
-		
-		while (currProtoSet.size() > 0) {
+		if (currProtoSet.size() == 0) {
+			endProtocolPhase();
+		}
+	}
 
-			if (Debug.get(Debug.CollectSuites)) {
-				debugSets(currProtoSet, currSuiteSet);
+
+	protected void endProtocolPhase() {
+		tell(ScanEvent.PROTOCOLS_COLLECTED,
+		     ScanEvent.join(acceptedProto));
+		if (protocolsOnly) {
+			phase = PHASE_DONE;
+		} else {
+			startSuitePhase();
+		}
+	}
+
+
+	/* The server takes the best protocol offered it knows, so the
+	 * better ones offered are not supported. Offering them again
+	 * with the worse ones left would make this client take the
+	 * answer as a downgrade attack, and end the protocol phase
+	 * before the worse protocols are found.
+	 */
+	protected static void removeAbove(Set<String> protos, String proto) {
+		int rank = protoRank(proto);
+		if (rank < 0) {
+			return;
+		}
+		for (Iterator<String> it = protos.iterator();
+		     it.hasNext();  /* */ ) {
+			if (protoRank(it.next()) > rank) {
+				it.remove();
 			}
+		}
+	}
 
-			Socket s = null;
-			SSLSocket ssock = null;
 
-			try {
-				s = newSocket();
-				ssock = (SSLSocket)f.createSocket(s,
-				                          host, port, true);
-			} catch (ConnectException e) {
-				throw new
-				      NoSSLException(LocMsg.pr("e_conn_err",
-						       e.getMessage()), e);
-			} catch (HttpProxyIOException e) {
-				throw new IOException(e);
-			} catch (NoStartTlsException e) {
-				throw new NoSSLException(e);
-			} catch (InitialiserException e) {
-				throw new NoSSLException(e);
-			} catch (FingerprintException e) {
-				throw new NoSSLException(e);
-			} catch (SocketTimeoutException e) {
-				throw new NoSSLException(e);
-			}
-
-			currProtos
-				= currProtoSet.toArray(new String[0]);
-			currSuites
-				= currSuiteSet.toArray(new String[0]);
-			ssock.setEnabledProtocols(currProtos);
-			ssock.setEnabledCipherSuites(currSuites);
-
-			// If a delay is set, wait some time, except for
-			// the first request
-			if (!initialRequest && (delay > 0)) {
-				if (Debug.get(Debug.Delay)) {
-					System.err.println(
-						    "Delaying request.");
-				}
-				try {
-					Thread.sleep(delay);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
+	protected static int protoRank(String proto) {
+		for (int i = 0;  i < protoOrder.length;  i++) {
+			if (protoOrder[i].equals(proto)) {
+				return i;
 			}
-			initialRequest = false;
+		}
+		return -1;
+	}
+
+
+	/* Leave out protocols already seen, e.g. by a probe, from the
+	 * protocol phase. As the server picks the best protocol
+	 * offered, the handshake of the probe counts as the first
+	 * step of the phase.
+	 */
+	public void skipProtocols(Set<String> seen) {
+		if (phase != PHASE_PROTOCOLS) {
+			return;
+		}
+		currProtoSet.removeAll(seen);
+		if (currProtoSet.size() == 0) {
+			endProtocolPhase();
+		}
+	}
 
-			try {
-				ssock.startHandshake();
-				SSLSession session = ssock.getSession();
-				String proto = session.getProtocol();
 
-				//String cs = session.getCipherSuite();
-				//CipherSuiteData d = new CipherSuiteData(cs);
-				//recordServerCertificate(ssock, d);
+	/* Go on with the cipher suites after the protocol phase has
+	 * been stopped by setProtocolsOnly(). Suites seen so far, e.g.
+	 * by a probe, are kept and not offered again.
+	 */
+	public void collectSuites() {
+		protocolsOnly = false;
+		rejectedCS = new LinkedHashSet<CipherSuiteData>();
+		startSuitePhase();
+	}
 
-				acceptedProto.add(proto);
 
-				session.invalidate();
-				currProtoSet.remove(proto);
+	/* Record a suite chosen by the server in a handshake before
+	 * the suite phase, with the protocol negotiated if all suites
+	 * were offered, else null.
+	 */
+	protected void acceptSuite(CipherSuiteData d, String proto) {
+		if (knownSuites.add(d.name)) {
+			acceptedCS.add(d);
+			tell(ScanEvent.SUITE_ACCEPTED, d.name);
+		}
+		if ((proto != null) && !knownProto.containsKey(d.name)) {
+			knownProto.put(d.name, proto);
+		}
+	}
 
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"completed using "
-							   +proto);
-				}
-				ssock.close();
-			} catch (SSLHandshakeException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				currProtoSet.clear();
-				break;
-			} catch (ConnectException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				currProtoSet.clear();
-				throw new NoSSLException(e);
-			} catch (EOFException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				currProtoSet.clear();
-				break;
-			} catch (SocketException e) {
-				if (Debug.get(Debug.CollectSuites)) {
-					System.err.println("==> Handshake "
-							   +"failed");
-					System.err.println("  "+e.toString());
-				}
-				// FIXME: This is a hack to detect
-				// a connection reset. Java seems to
-				// throw only a SocketException, but
-				// nothing more specific.
-				// Thus we have to catch all SocketExceptions
-				// and possibly pass them on...
-				if (e.getMessage()
-				    .equals("Connection reset")) {
-					currProtoSet.clear();
-					break;
-				} else {
-					throw new IOException(e);
-				}
+
+	protected static boolean isTLS13Suite(String suite) {
+		return (suite.indexOf("_WITH_") < 0);
+	}
+
+
+	/* Each handshake of the protocol phase offers all suites, so
+	 * the server takes its preferred suite among those the
+	 * protocol negotiated can use. The first suite known for a
+	 * protocol thus heads the suites that protocol can use, and
+	 * the suite phase leaves it out, one handshake saved for each
+	 * protocol with a suite of its own.
+	 */
+	protected void pickKnownTops() {
+		for (Iterator<CipherSuiteData> it = acceptedCS.iterator();
+		     it.hasNext();  /* */ ) {
+			CipherSuiteData d = it.next();
+			String p = knownProto.get(d.name);
+			if ((p != null) && !knownTops.containsKey(p)) {
+				knownTops.put(p, d);
 			}
 		}
 	}
 
 
-	protected void recordServerCertificate(SSLSocket ssock,
-					       CipherSuiteData cs)
-		throws IOException {
+	protected void startSuitePhase() {
+		currSuiteSet = (LinkedHashSet<String>)fullSuiteSet.clone();
+		currProtoSet = (LinkedHashSet<String>)fullProtoSet.clone();
+		phase = PHASE_SUITES;
+		partitions = null;
+		pickKnownTops();
+		for (Iterator<CipherSuiteData> it
+			     = knownTops.values().iterator();
+		     it.hasNext();  /* */ ) {
+			currSuiteSet.remove(it.next().name);
+		}
+		if (Debug.get(Debug.CollectSuites)) {
+			System.err.println("Start collecting ciphersuites, "
+					   +(fullSuiteSet.size()
+					     -currSuiteSet.size())+" known");
+		}
+		if (currSuiteSet.size() == 0) {
+			endSuitePhase();
+		} else if (suitePartitions > 1) {
+			splitSuites();
+		}
+	}
 
-		if (Debug.get(Debug.Certs)) {
-			System.err.println("SSLConfigCollector."
-					   +"recordServerCertificate(..., "
-					   +cs.name+")");
+
+	protected void endSuitePhase() {
+		if (suiteMatrix) {
+			startMatrixPhase();
+		} else {
+			phase = PHASE_DONE;
 		}
+	}
 
-		if (certs != null) {
-			/* If we already have the certificate chain,
-			 * leave it at that.
-			 * FIXME: in a future version, check if server
-			 * returns always the same certificate chain.
-			 */
-			if (Debug.get(Debug.Certs)) {
-				System.err.println(
-					 "SSLConfigCollector."
-					 +"recordServerCertificate: already "
-					 +"have one.");
+
+	/* The suite phase offers all protocols at once, so the server
+	 * took each suite found with the best protocol it has for it.
+	 * Only the pairs of an accepted protocol and an accepted suite
+	 * not seen in any handshake so far are left to ask for, one
+	 * protocol at a time, offering the suites left for it
+	 * subtractively as in the suite phase.
+	 */
+	protected void startMatrixPhase() {
+		phase = PHASE_MATRIX;
+		matrixProtos = new LinkedList<String>(acceptedProto);
+		if (Debug.get(Debug.CollectSuites)) {
+			System.err.println("Start collecting ciphersuites "
+					   +"per protocol");
+		}
+		if (!nextMatrixProto()) {
+			matrixDone = true;
+			phase = PHASE_DONE;
+		}
+	}
+
+
+	/* Go on with the next protocol having suites left to ask
+	 * for. Returns false if there is none.
+	 */
+	protected boolean nextMatrixProto() {
+		while (matrixProtos.size() > 0) {
+			matrixProto = matrixProtos.removeFirst();
+			matrixSuites = matrixCandidates(matrixProto);
+			if (matrixSuites.size() > 0) {
+				return true;
 			}
-			return;
 		}
+		return false;
+	}
 
-		/* Get the certificate chain */
-		SSLSession session = ssock.getSession();
-		try {
-			certs = session.getPeerCertificates();
+
+	/* The accepted suites which may go with the protocol, and
+	 * have not been seen with it yet.
+	 */
+	protected LinkedHashSet<String> matrixCandidates(String proto) {
+		LinkedHashSet<String> res = new LinkedHashSet<String>();
+		Set<String> seen = matrix.get(proto);
+		for (Iterator<CipherSuiteData> it = acceptedCS.iterator();
+		     it.hasNext();  /* */ ) {
+			String cs = it.next().name;
+			if (suitsProtocol(proto, cs)
+			    && ((seen == null) || !seen.contains(cs))) {
+				res.add(cs);
+			}
+		}
+		return res;
+	}
+
+
+	/* TLS 1.3 has cipher suites of its own, named without the key
+	 * exchange, which the earlier protocols cannot use, nor can
+	 * TLS 1.3 use theirs. Likewise, the AEAD ciphers and SHA-2
+	 * MACs came with TLS 1.2. Offering them would not even reach
+	 * the server.
+	 */
+	protected static boolean suitsProtocol(String proto, String suite) {
+		boolean tls13Suite = isTLS13Suite(suite);
+		if (tls13Suite != "TLSv1.3".equals(proto)) {
+			return false;
+		}
+		int rank = protoRank(proto);
+		if ((rank >= 0) && (rank < protoRank("TLSv1.2"))) {
+			return !((suite.indexOf("_GCM_") >= 0)
+				 || (suite.indexOf("_CCM") >= 0)
+				 || (suite.indexOf("_CHACHA20_") >= 0)
+				 || suite.endsWith("_SHA256")
+				 || suite.endsWith("_SHA384"));
+		}
+		return true;
+	}
+
+
+	/* One handshake offering the current protocol of the matrix
+	 * phase only. Returns false when all protocols are done.
+	 */
+	protected boolean matrixStep()
+		throws IOException, FingerprintException, FingerprintError {
+
+		int res = offerRequest(Collections.singleton(matrixProto),
+				       matrixSuites);
+		if (res == OFFER_ACCEPTED) {
+			recordPair(offerProto, offerSuite);
+			if (matrixSuites.remove(offerSuite)
+			    && (matrixSuites.size() > 0)) {
+				return true;
+			}
+		}
+		return nextMatrixProto();
+	}
+
+
+	/* Note the protocol and the cipher suite of a handshake */
+	protected void recordPair(String proto, String cs) {
+		if (parent != null) {
+			synchronized (parent) {
+				parent.recordPair(proto, cs);
+			}
+			return;
+		}
+		LinkedHashSet<String> suites = matrix.get(proto);
+		if (suites == null) {
+			suites = new LinkedHashSet<String>();
+			matrix.put(proto, suites);
+		}
+		suites.add(cs);
+	}
+
+
+	/* The cipher suites accepted with each protocol, in the order
+	 * of the protocols of this client, or null if the matrix was
+	 * not asked for or its phase not reached. If the matrix phase
+	 * was cut short, the pairs it did not get to are given by
+	 * getUndecidedPairs().
+	 */
+	public Map<String, Set<String>> getSuiteMatrix() {
+		if (!matrixDone && (phase != PHASE_MATRIX)) {
+			return null;
+		}
+		LinkedHashMap<String, Set<String>> res
+			= new LinkedHashMap<String, Set<String>>();
+		for (Iterator<String> it = fullProtoSet.iterator();
+		     it.hasNext();  /* */ ) {
+			String proto = it.next();
+			if (matrix.containsKey(proto)) {
+				res.put(proto, matrix.get(proto));
+			}
+		}
+		return res;
+	}
+
+
+	/* Deal the cipher suites round robin to the partitions. Each
+	 * is collected by a collector of its own, sharing the
+	 * connection settings and the certificates with this one.
+	 */
+	protected void splitSuites() {
+		int k = Math.min(suitePartitions, currSuiteSet.size());
+		if (k < 2) {
+			return;
+		}
+		partitions = new SSLConfigCollector[k];
+		for (int i = 0;  i < k;  i++) {
+			SSLConfigCollector p
+				= new SSLConfigCollector(host, port, si);
+			p.parent = this;
+			p.factory = factory;
+			p.deadline = deadline;
+			p.listener = listener;
+			p.knownSuites = knownSuites;
+			p.connectedTold = true;
+			p.fullProtoSet = fullProtoSet;
+			p.fullSuiteSet = new LinkedHashSet<String>();
+			p.currProtoSet
+				= new LinkedHashSet<String>(fullProtoSet);
+			p.currSuiteSet = new LinkedHashSet<String>();
+			p.phase = PHASE_SUITES;
+			partitions[i] = p;
+		}
+		int i = 0;
+		for (Iterator<String> it = currSuiteSet.iterator();
+		     it.hasNext();  /* */ ) {
+			String cs = it.next();
+			partitions[i % k].currSuiteSet.add(cs);
+			partitions[i % k].fullSuiteSet.add(cs);
+			i += 1;
+		}
+		if (Debug.get(Debug.CollectSuites)) {
+			System.err.println("Split ciphersuites into "
+					   +k+" partitions");
+		}
+	}
+
+
+	protected static synchronized ExecutorService getPartitionPool() {
+		if (partitionPool == null) {
+			partitionPool = Executors.newCachedThreadPool(
+				 new ScanStage.StageThreadFactory("part"));
+		}
+		return partitionPool;
+	}
+
+
+	/* One handshake on each of the partitions not done yet, up to
+	 * the width set for the step, all at once. The first one is
+	 * done by the calling thread. Returns false when all
+	 * partitions are complete.
+	 */
+	protected boolean partitionStep()
+		throws IOException, FingerprintException, FingerprintError {
+
+		int width = (stepWidth > 0) ? stepWidth : partitions.length;
+		if (maxSuiteSteps > 0) {
+			/* Each handshake counts against the budget */
+			width = Math.min(width, maxSuiteSteps-suiteSteps+1);
+		}
+		ArrayList<SSLConfigCollector> run
+			= new ArrayList<SSLConfigCollector>();
+		for (int i = 0;  (i < partitions.length)
+			     && (run.size() < width);  i++) {
+			if (partitions[i].hasMoreSteps()) {
+				run.add(partitions[i]);
+			}
+		}
+		if (run.size() == 0) {
+			return false;
+		}
+
+		ArrayList<FutureTask<Boolean>> tasks
+			= new ArrayList<FutureTask<Boolean>>();
+		for (int i = 1;  i < run.size();  i++) {
+			final SSLConfigCollector p = run.get(i);
+			FutureTask<Boolean> t = new FutureTask<Boolean>(
+				 new Callable<Boolean>() {
+					 public Boolean call()
+						 throws Exception {
+						 return p.collectStep();
+					 }
+				 });
+			getPartitionPool().execute(t);
+			tasks.add(t);
+		}
+		Throwable failure = null;
+		try {
+			run.get(0).collectStep();
+		} catch (Exception e) {
+			failure = e;
+		}
+		boolean interrupted = false;
+		for (Iterator<FutureTask<Boolean>> it = tasks.iterator();
+		     it.hasNext();  /* */ ) {
+			FutureTask<Boolean> t = it.next();
+			while (true) {
+				try {
+					t.get();
+					break;
+				} catch (InterruptedException e) {
+					/* Wait for the handshake anyway,
+					 * the deadline bounds it.
+					 */
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		lastWidth = run.size();
+		suiteSteps += lastWidth-1;
+		currSuiteSet = new LinkedHashSet<String>();
+		for (int i = 0;  i < partitions.length;  i++) {
+			SSLConfigCollector p = partitions[i];
+			acceptedCS.addAll(p.acceptedCS);
+			p.acceptedCS.clear();
+			suiteOrder.addAll(p.suiteOrder);
+			p.suiteOrder.clear();
+			rejectedCS.addAll(p.rejectedCS);
+			p.rejectedCS.clear();
+			currSuiteSet.addAll(p.currSuiteSet);
+		}
+		for (Iterator<SSLConfigCollector> it = run.iterator();
+		     it.hasNext();  /* */ ) {
+			SSLConfigCollector p = it.next();
+			if (p.getLastOutcome() != ConnectOutcome.OK) {
+				outcome = p.getLastOutcome();
+			}
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		} else if (failure instanceof FingerprintException) {
+			throw (FingerprintException)failure;
+		} else if (failure instanceof FingerprintError) {
+			throw (FingerprintError)failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		} else if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+		return (getPendingPartitions() > 0);
+	}
+
+
+	private void addRejectedSet(LinkedHashSet<String> suiteSet) {
+
+		for (Iterator<String>
+			     it = suiteSet.iterator();
+		     it.hasNext();  /* */ ) {
+			String cs = (String)it.next();
+			if (knownSuites.contains(cs)) {
+				/* A handshake took it, maybe with a
+				 * lower protocol only, so it stays
+				 * accepted, but does not head the
+				 * suites of its protocol.
+				 */
+				dropKnownTop(cs);
+				continue;
+			}
+			CipherSuiteData d =
+				new CipherSuiteData(cs);
+			rejectedCS.add(d);
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println(
+						   "-- adding "
+						   +cs+" to rejected "
+						   +"cipher suites");
+			}
+		}
+	}
+
+
+	private void dropKnownTop(String cs) {
+		for (Iterator<CipherSuiteData> it
+			     = knownTops.values().iterator();
+		     it.hasNext();  /* */ ) {
+			if (it.next().name.equals(cs)) {
+				it.remove();
+			}
+		}
+	}
+
+
+	/* One handshake offering all remaining cipher suites. Returns
+	 * false when the set of supported cipher suites is complete.
+	 */
+	protected boolean suiteStep()
+		throws IOException, FingerprintException, FingerprintError {
+
+		String[] currProtos;
+		String[] currSuites;
+
+		if (currSuiteSet.size() == 0) {
+			return false;
+		}
+		if (Debug.get(Debug.CollectSuites)) {
+			debugSets(currProtoSet, currSuiteSet);
+		}
+
+		Socket s = null;
+		SSLSocket ssock = null;
+
+		try {
+			s = newSocket();
+			ssock = (SSLSocket)factory.createSocket(s,
+						    host, port, true);
+		} catch (ConnectException e) {
+			throw new
+			      NoSSLException(LocMsg.pr("e_conn_err",
+					       e.getMessage()), e);
+		} catch (HttpProxyIOException e) {
+			throw new IOException(e);
+		} catch (NoStartTlsException e) {
+			throw new NoSSLException(e);
+		} catch (InitialiserException e) {
+			throw new NoSSLException(e);
+		} catch (FingerprintException e) {
+			throw new NoSSLException(e);
+		} catch (SocketTimeoutException e) {
+			throw new NoSSLException(e);
+		}
+
+		currProtos
+			= currProtoSet.toArray(new String[1]);
+		currSuites
+			= currSuiteSet.toArray(new String[1]);
+		ssock.setEnabledProtocols(currProtos);
+		ssock.setEnabledCipherSuites(currSuites);
+
+		try {
+			handshake(ssock);
+			SSLSession session = ssock.getSession();
+			String cs = session.getCipherSuite();
+
+			CipherSuiteData d = new CipherSuiteData(cs);
+			recordServerCertificate(ssock, d);
+			recordPair(session.getProtocol(), cs);
+			suiteOrder.add(d);
+			/* known suites offered again keep their entry */
+			if (!knownSuites.contains(cs)) {
+				acceptedCS.add(d);
+				tell(ScanEvent.SUITE_ACCEPTED, cs);
+			}
+
+			session.invalidate();
+			currSuiteSet.remove(cs);
+
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"completed with "
+						   +cs);
+			}
+			ssock.close();
+		} catch (SSLHandshakeException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			addRejectedSet(currSuiteSet);
+			currSuiteSet.clear();
+			return false;
+		} catch (ConnectException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			addRejectedSet(currSuiteSet);
+			currSuiteSet.clear();
+			throw new NoSSLException(e);
+		} catch (EOFException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			addRejectedSet(currSuiteSet);
+			currSuiteSet.clear();
+			return false;
+		} catch (SocketException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			// FIXME: This is a hack to detect
+			// a connection reset. Java seems to
+			// throw only a SocketException, but
+			// nothing more specific.
+			// Thus we have to catch all SocketExceptions
+			// and possibly pass them on...
+			if (e.getMessage()
+			    .equals("Connection reset")) {
+				outcome = ConnectOutcome.RESET;
+				addRejectedSet(currSuiteSet);
+				currSuiteSet.clear();
+				return false;
+			} else {
+				throw new IOException(e);
+			}
+		}
+		return (currSuiteSet.size() > 0);
+	}
+
+
+	/* One handshake offering all remaining protocols. Returns
+	 * false when the set of supported protocols is complete.
+	 */
+	protected boolean protocolStep()
+		throws IOException, FingerprintException, FingerprintError {
+
+		String[] currProtos;
+		String[] currSuites;
+
+		if (currProtoSet.size() == 0) {
+			return false;
+		}
+		if (Debug.get(Debug.CollectSuites)) {
+			debugSets(currProtoSet, currSuiteSet);
+		}
+
+		Socket s = null;
+		SSLSocket ssock = null;
+
+		try {
+			s = newSocket();
+			ssock = (SSLSocket)factory.createSocket(s,
+						    host, port, true);
+		} catch (ConnectException e) {
+			throw new
+			      NoSSLException(LocMsg.pr("e_conn_err",
+					       e.getMessage()), e);
+		} catch (HttpProxyIOException e) {
+			throw new IOException(e);
+		} catch (NoStartTlsException e) {
+			throw new NoSSLException(e);
+		} catch (InitialiserException e) {
+			throw new NoSSLException(e);
+		} catch (FingerprintException e) {
+			throw new NoSSLException(e);
+		} catch (SocketTimeoutException e) {
+			throw new NoSSLException(e);
+		}
+
+		currProtos
+			= currProtoSet.toArray(new String[0]);
+		currSuites
+			= currSuiteSet.toArray(new String[0]);
+		ssock.setEnabledProtocols(currProtos);
+		ssock.setEnabledCipherSuites(currSuites);
+
+		try {
+			handshake(ssock);
+			SSLSession session = ssock.getSession();
+			String proto = session.getProtocol();
+
+			/* The suite chosen is as good as one found by
+			 * the suite phase, which need not offer it
+			 * again.
+			 */
+			String cs = session.getCipherSuite();
+			CipherSuiteData d = new CipherSuiteData(cs);
+			recordServerCertificate(ssock, d);
+			acceptSuite(d, proto);
+			recordPair(proto, cs);
+
+			acceptedProto.add(proto);
+
+			session.invalidate();
+			currProtoSet.remove(proto);
+			removeAbove(currProtoSet, proto);
+
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"completed using "
+						   +proto);
+			}
+			ssock.close();
+		} catch (SSLHandshakeException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			currProtoSet.clear();
+			return false;
+		} catch (ConnectException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			currProtoSet.clear();
+			throw new NoSSLException(e);
+		} catch (EOFException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			currProtoSet.clear();
+			return false;
+		} catch (SocketException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			// FIXME: This is a hack to detect
+			// a connection reset. Java seems to
+			// throw only a SocketException, but
+			// nothing more specific.
+			// Thus we have to catch all SocketExceptions
+			// and possibly pass them on...
+			if (e.getMessage()
+			    .equals("Connection reset")) {
+				outcome = ConnectOutcome.RESET;
+				currProtoSet.clear();
+				return false;
+			} else {
+				throw new IOException(e);
+			}
+		}
+		return (currProtoSet.size() > 0);
+	}
+
+	protected void recordServerCertificate(SSLSocket ssock,
+					       CipherSuiteData cs)
+		throws IOException {
+
+		if (parent != null) {
+			/* The partitions of a collection share its
+			 * certificates.
+			 */
+			synchronized (parent) {
+				parent.recordServerCertificate(ssock, cs);
+			}
+			return;
+		}
+		if (Debug.get(Debug.Certs)) {
+			System.err.println("SSLConfigCollector."
+					   +"recordServerCertificate(..., "
+					   +cs.name+")");
+		}
+
+		if (certs != null) {
+			/* If we already have the certificate chain,
+			 * leave it at that.
+			 * FIXME: in a future version, check if server
+			 * returns always the same certificate chain.
+			 */
+			if (Debug.get(Debug.Certs)) {
+				System.err.println(
+					 "SSLConfigCollector."
+					 +"recordServerCertificate: already "
+					 +"have one.");
+			}
+			return;
+		}
+
+		/* Get the certificate chain */
+		SSLSession session = ssock.getSession();
+		try {
+			certs = session.getPeerCertificates();
 			certCipherSuiteName = cs.name;
+			certAuthType = cs.kex;
+			if (certs[0] instanceof X509Certificate) {
+				tell(ScanEvent.CERTIFICATE_RECORDED,
+				     ((X509Certificate)certs[0])
+				     .getSubjectX500Principal().getName());
+			} else {
+				tell(ScanEvent.CERTIFICATE_RECORDED, null);
+			}
 			
 			if (cv != null) {
 				if (Debug.get(Debug.Certs)) {
@@ -730,46 +1651,71 @@ public class SSLConfigCollector {
 	}
 
 
-	public void probe()
-		throws IOException, FingerprintError, FingerprintException {
+	/* The protocols and cipher suites this client can offer, as
+	 * set up by startCollection().
+	 */
+	public Set<String> getClientProtos() {
+		return fullProtoSet;
+	}
 
-		SSLContext sc = null;
-		X509TrustManager[] tm = { new NullTrustManager() };
-		LinkedHashSet<String> protoSet
-			= new LinkedHashSet<String>();
-		LinkedHashSet<String> suiteSet
-			= new LinkedHashSet<String>();
 
-		/* Get SSL Context, and disable certificate verification
-		 * by using an "accept all" trust manager
-		 */
+	public Set<String> getClientSuites() {
+		return fullSuiteSet;
+	}
+
+
+	/* Protocol and cipher suite chosen by the server in the last
+	 * offer() or probe()
+	 */
+	public String getOfferProto() {
+		return offerProto;
+	}
+
+
+	public String getOfferSuite() {
+		return offerSuite;
+	}
+
+
+	/* A single handshake offering only the given protocols and
+	 * cipher suites, to ask the server whether it accepts any of
+	 * them. If it does, its choice is available from
+	 * getOfferProto() and getOfferSuite(). If the local Java
+	 * installation cannot use any of them, the question cannot be
+	 * asked at all, and the result is OFFER_IMPOSSIBLE.
+	 */
+	public int offer(Set<String> protos, Set<String> suites)
+		throws IOException, FingerprintError, FingerprintException {
+
 		try {
-			sc = SSLContext.getInstance("SSL");
-			sc.init(null, tm, null);
-		} catch (java.security.KeyManagementException e) {
-			/* Ignore, should not occur, as key manager is
-			 * not provided anyway in the call, but
-			 * otherwise there seems to be a serious
-			 * problem with the installation.
-			 */
-			throw new InstallationError(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new InstallationError(
-				      LocMsg.pr("e_no_java_ssl"), e);
+			return offerRequest(protos, suites);
+		} finally {
+			releaseSocket();
 		}
+	}
+
 
-		SSLSocketFactory f = (SSLSocketFactory)sc.getSocketFactory();
+	protected int offerRequest(Set<String> protos, Set<String> suites)
+		throws IOException, FingerprintError, FingerprintException {
+
+		offerProto = null;
+		offerSuite = null;
+		outcome = ConnectOutcome.OK;
+		if ((protos.size() == 0) || (suites.size() == 0)) {
+			return OFFER_IMPOSSIBLE;
+		}
+		if (Debug.get(Debug.CollectSuites)) {
+			debugSets(new LinkedHashSet<String>(protos),
+				  new LinkedHashSet<String>(suites));
+		}
 
 		Socket s;
 		SSLSocket ssock;
 
 		try {
-			if (si != null) {
-				s = si.createSocket(host, port);
-			} else {
-				s = new Socket(host, port);
-			}
-			ssock = (SSLSocket)f.createSocket(s, host, port, true);
+			s = newSocket();
+			ssock = (SSLSocket)getFactory().createSocket(s,
+						    host, port, true);
 		} catch (ConnectException e) {
 			throw new
 				NoSSLException(LocMsg.pr("e_conn_err",
@@ -786,22 +1732,108 @@ public class SSLConfigCollector {
 			throw new NoSSLException(e);
 		}
 
-		// If a delay is set, wait some time, except for
-		// the first request
-		if (!initialRequest && (delay > 0)) {
-			if (Debug.get(Debug.Delay)) {
-				System.err.println("Delaying request.");
+		try {
+			ssock.setEnabledProtocols(
+				      protos.toArray(new String[0]));
+			ssock.setEnabledCipherSuites(
+				      suites.toArray(new String[0]));
+		} catch (IllegalArgumentException e) {
+			ssock.close();
+			return OFFER_IMPOSSIBLE;
+		}
+
+		try {
+			handshake(ssock);
+			SSLSession session = ssock.getSession();
+			offerProto = session.getProtocol();
+			offerSuite = session.getCipherSuite();
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"completed using "
+						   +offerProto+" with "
+						   +offerSuite);
+			}
+			ssock.close();
+			return OFFER_ACCEPTED;
+		} catch (SSLHandshakeException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			/* Refused by this client before even asking */
+			if ((e.getMessage() != null)
+			    && e.getMessage().startsWith(noAppropriate)) {
+				return OFFER_IMPOSSIBLE;
 			}
-			try {
-				Thread.sleep(delay);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+			return OFFER_REJECTED;
+		} catch (EOFException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
 			}
+			return OFFER_REJECTED;
+		} catch (SocketException e) {
+			if (Debug.get(Debug.CollectSuites)) {
+				System.err.println("==> Handshake "
+						   +"failed");
+				System.err.println("  "+e.toString());
+			}
+			if ("Connection reset".equals(e.getMessage())) {
+				outcome = ConnectOutcome.RESET;
+				return OFFER_REJECTED;
+			}
+			throw new IOException(e);
 		}
-		initialRequest = false;
+	}
+
+
+	public void probe()
+		throws IOException, FingerprintError, FingerprintException {
 
 		try {
-			ssock.startHandshake();
+			probeRequest();
+		} finally {
+			releaseSocket();
+		}
+	}
+
+
+	protected void probeRequest()
+		throws IOException, FingerprintError, FingerprintException {
+
+		LinkedHashSet<String> protoSet
+			= new LinkedHashSet<String>();
+		LinkedHashSet<String> suiteSet
+			= new LinkedHashSet<String>();
+
+		SSLSocketFactory f = getFactory();
+
+		Socket s;
+		SSLSocket ssock;
+
+		try {
+			s = newSocket();
+			ssock = (SSLSocket)f.createSocket(s, host, port, true);
+		} catch (ConnectException e) {
+			throw new
+				NoSSLException(LocMsg.pr("e_conn_err",
+							 e.getMessage()), e);
+		} catch (HttpProxyIOException e) {
+			throw new IOException(e);
+		} catch (NoStartTlsException e) {
+			throw new NoSSLException(e);
+		} catch (InitialiserException e) {
+			throw new NoSSLException(e);
+		} catch (FingerprintException e) {
+			throw new NoSSLException(e);
+		} catch (SocketTimeoutException e) {
+			throw new NoSSLException(e);
+		}
+
+		try {
+			handshake(ssock);
 			SSLSession session = ssock.getSession();
 
 			String cs = session.getCipherSuite();
@@ -815,10 +1847,13 @@ public class SSLConfigCollector {
 						   +" using "+d.name);
 			}
 
-			acceptedCS.add(d);
-
 			String proto = session.getProtocol();
+			/* the probe offers the default suites only */
+			acceptSuite(d, null);
 			acceptedProto.add(proto);
+			recordPair(proto, cs);
+			offerProto = proto;
+			offerSuite = cs;
 
 		} catch (SSLPeerUnverifiedException e) {
 			/* Intentionally ignore this one here! */
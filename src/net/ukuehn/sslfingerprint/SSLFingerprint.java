@@ -51,28 +51,50 @@ public class SSLFingerprint {
 
 	int verbLevel;
 	boolean opensslModHash = false;
-	int delay;
-	boolean initial;
+	PolitenessScheduler sched;
 	boolean allowKerb = false;
 	boolean allSupported = false;
+	boolean deferValidation = false;
+	boolean summariseCerts = false;
+	int suitePartitions = 1;
+	boolean suiteMatrix = false;
 
 	String host;
 	int port;
+	InetAddress addr;
+	String service;
 	SocketInitialiser si;
 	CertValidator cv;
+	ScanListener listener;
 
 	Date startDate;
 	Date endDate;
 
 	Set<String> protos;
 
+	SSLConfigCollector scc;
+	SSLv2ConfigCollector scc2;
+	boolean finished;
+	int stepOutcome;
+	boolean permitHeld;
+	int extraPermits;
+
+	int hostTimeout;
+	volatile Deadline deadline;
+	boolean incomplete;
+
+	int maxHandshakes;
+	int maxProtoHandshakes;
+	int maxSuiteHandshakes;
+	int handshakes;
+	boolean sslv2Checked;
+
 
 
 	public SSLFingerprint(String theHost, int thePort) {
 		verbLevel = 0;
 		cv = null;
-		delay = 0;
-		initial = true;
+		sched = null;
 		setTarget(theHost, thePort);
 	}
 
@@ -90,10 +112,22 @@ public class SSLFingerprint {
 	public void setTarget(String theHost, int thePort) {
 		host = theHost;
 		port = thePort;
+		addr = null;
+		service = null;
 		protos = null;
 	}
 
 
+	/* Set the target together with its address, if already known,
+	 * and the protocol spoken on its port, if given.
+	 */
+	public void setTarget(Host h) {
+		setTarget(h.name, h.port);
+		addr = h.addr;
+		service = h.service;
+	}
+
+
 	public void setTarget(String theHost) {
 		setTarget(theHost, defaultSSLPort);
 	}
@@ -142,8 +176,168 @@ public class SSLFingerprint {
 	}
 
 
-	public void setDelay(int parmDelay) {
-		delay = parmDelay;
+	/* Tell the listener about the progress of each host, while
+	 * the scan goes on.
+	 */
+	public void setScanListener(ScanListener l) {
+		listener = l;
+	}
+
+
+	/* The scheduler hands out the permits for each connection to
+	 * the target, enforcing connection limits, the delay between
+	 * requests to the same host and the global handshake rate.
+	 */
+	public void setScheduler(PolitenessScheduler ps) {
+		sched = ps;
+	}
+
+
+	/* Time limit in milliseconds for the whole scan of a host.
+	 * When it is up, the results collected so far are returned,
+	 * marked as incomplete. Zero means no limit.
+	 */
+	public void setHostTimeout(int msec) {
+		hostTimeout = (msec > 0) ? msec : 0;
+	}
+
+
+	/* Limits on the number of handshakes for a host, and for the
+	 * protocol and the cipher suite stage of the collection. When
+	 * one is used up, the stage or the whole scan of the host stops,
+	 * and the result is marked incomplete, listing what was left
+	 * undecided. Zero means no limit.
+	 */
+	public void setHandshakeBudget(int perHost, int protocols, int suites) {
+		maxHandshakes = (perHost > 0) ? perHost : 0;
+		maxProtoHandshakes = (protocols > 0) ? protocols : 0;
+		maxSuiteHandshakes = (suites > 0) ? suites : 0;
+	}
+
+
+	/* Collect the cipher suites in as many partitions at once,
+	 * see SSLConfigCollector.setSuitePartitions(). Each takes a
+	 * connection of its own, for which a permit of the scheduler
+	 * is needed, so the limit on connections per host applies.
+	 */
+	public void setSuitePartitions(int k) {
+		suitePartitions = (k > 1) ? k : 1;
+	}
+
+
+	/* Find out the cipher suites accepted with each protocol, see
+	 * FingerprintResult.getSuiteMatrix().
+	 */
+	public void setSuiteMatrix(boolean m) {
+		suiteMatrix = m;
+	}
+
+
+	/* Stop the scan of the current host before its next request,
+	 * and abort requests in progress at their next timeout. Can
+	 * be called from any thread.
+	 */
+	public void cancel(String reason) {
+		Deadline d = deadline;
+		if (d != null) {
+			d.cancel(reason);
+		}
+	}
+
+
+	/* If set, certificate chains are only recorded, and left to
+	 * the caller for validation using SSLResult.validateCertificates.
+	 */
+	public void setDeferValidation(boolean defer) {
+		deferValidation = defer;
+	}
+
+
+	/* The socket initialiser for the target: the configured one,
+	 * unless the target names its own service. Then a fresh
+	 * initialiser for that service is used, still connecting
+	 * through the configured proxy, if any.
+	 */
+	protected SocketInitialiser targetInitialiser() {
+		if (service == null) {
+			return si;
+		}
+		SocketInitialiser tsi = SocketInitialiser.forProtocol(service);
+		if (si instanceof HttpProxySocketInitialiser) {
+			tsi.setChainedInitialiser(si);
+		} else if (si != null) {
+			tsi.setChainedInitialiser(si.chainedInit);
+		}
+		return tsi;
+	}
+
+
+	/* The protocol spoken on the port of the target, as given or
+	 * as chosen automatically, or null if neither.
+	 */
+	public String targetService() {
+		SocketInitialiser tsi = (scc != null) ? scc.si : si;
+		if (tsi instanceof AutoSocketInitialiser) {
+			String choice = ((AutoSocketInitialiser)tsi)
+				.getChoice(host, port);
+			if (choice != null) {
+				return choice;
+			}
+		}
+		return service;
+	}
+
+
+	/* If set, results keep only summaries of the certificates, see
+	 * SSLResult.setSummarise(), to bound the memory taken by the
+	 * results waiting to be published.
+	 */
+	public void setSummariseCertificates(boolean summ) {
+		summariseCerts = summ;
+	}
+
+
+	protected CertValidator collectorValidator() {
+		if (deferValidation) {
+			return null;
+		}
+		return cv;
+	}
+
+
+	/* Create a fresh instance of the same kind carrying the same
+	 * settings, but none of the per-target state. This allows
+	 * each worker of a concurrent scan to have its own instance.
+	 */
+	public SSLFingerprint newInstance() {
+		SSLFingerprint fp = createInstance();
+		fp.copySettings(this);
+		return fp;
+	}
+
+
+	protected SSLFingerprint createInstance() {
+		return new SSLFingerprint();
+	}
+
+
+	protected void copySettings(SSLFingerprint other) {
+		verbLevel = other.verbLevel;
+		opensslModHash = other.opensslModHash;
+		sched = other.sched;
+		hostTimeout = other.hostTimeout;
+		maxHandshakes = other.maxHandshakes;
+		maxProtoHandshakes = other.maxProtoHandshakes;
+		maxSuiteHandshakes = other.maxSuiteHandshakes;
+		allowKerb = other.allowKerb;
+		allSupported = other.allSupported;
+		deferValidation = other.deferValidation;
+		summariseCerts = other.summariseCerts;
+		suitePartitions = other.suitePartitions;
+		suiteMatrix = other.suiteMatrix;
+		si = other.si;
+		cv = other.cv;
+		listener = other.listener;
 	}
 
 
@@ -154,64 +348,344 @@ public class SSLFingerprint {
 	public SSLResult fingerprint()
 		throws IOException, FingerprintError {
 
-		int res;
-		SSLConfigCollector scc;
-		SSLv2ConfigCollector scc2;
+		boolean more;
 
-		startDate = new Date();
-
-		// If a delay is set, wait some time, except for
-		// the first request
-		if (!initial && (delay > 0)) {
-			if (Debug.get(Debug.Delay)) {
-				System.err.println("Delaying request.");
-			}
+		startFingerprint();
+		do {
 			try {
-				Thread.sleep(delay);
+				acquireStep();
 			} catch (InterruptedException e) {
 				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			try {
+				more = step();
+			} finally {
+				releaseStep();
+			}
+		} while (more);
+		return endFingerprint();
+	}
+
+
+	/* Obtain the result by finishFingerprint(), labelled with
+	 * the service of the target, and tell the listener.
+	 */
+	public SSLResult endFingerprint()
+		throws IOException, FingerprintError {
+
+		SSLResult res = finishFingerprint();
+		res.setService(targetService());
+		res.setSummarise(summariseCerts);
+		if (listener != null) {
+			listener.scanEvent(new ScanEvent(res));
+		}
+		return res;
+	}
+
+
+	/* True if the connections go through an HTTP proxy, which
+	 * then resolves the host names.
+	 */
+	public boolean viaProxy() {
+		for (SocketInitialiser s = si;  s != null;  s = s.chainedInit) {
+			if (s instanceof HttpProxySocketInitialiser) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/* The address of the target for the scheduler. Not looked up
+	 * behind a proxy, as the name may only resolve there, and the
+	 * scheduler then keys the limits by host name.
+	 */
+	protected InetAddress targetAddress() {
+		if ((addr == null) && (host != null) && !viaProxy()) {
+			try {
+				addr = InetAddress.getByName(host);
+			} catch (UnknownHostException e) {
+				/* The connect will fail and report it */
 			}
 		}
-		initial = false;
+		return addr;
+	}
+
+
+	/* Each call to step() makes one connection to the target, for
+	 * which a permit from the scheduler is needed.
+	 */
+	public void acquireStep()
+		throws InterruptedException, FingerprintError {
+
+		if ((sched == null) || finished || checkDeadline()) {
+			return;
+		}
+		try {
+			sched.acquire(host, targetAddress());
+			permitHeld = true;
+			acquirePartitionPermits();
+		} catch (CircuitOpenException e) {
+			handleCollectException(e);
+		}
+	}
+
+
+	/* Try to get the permit for the next step. Returns 0 if it was
+	 * granted, otherwise the time in milliseconds after which to
+	 * try again.
+	 */
+	public long tryAcquireStep() throws FingerprintError {
+		if ((sched == null) || finished || checkDeadline()) {
+			return 0;
+		}
+		try {
+			long wait = sched.tryAcquire(host, targetAddress());
+			permitHeld = (wait == 0);
+			if (permitHeld) {
+				acquirePartitionPermits();
+			}
+			return wait;
+		} catch (CircuitOpenException e) {
+			/* Give up on the target, the next step
+			 * will finish.
+			 */
+			handleCollectException(e);
+			return 0;
+		}
+	}
+
+
+	/* Finish the scan if the time is up, so a host does not wait
+	 * for permits beyond its deadline.
+	 */
+	protected boolean checkDeadline() throws FingerprintError {
+		if ((deadline != null) && deadline.isExpired()) {
+			handleCollectException(
+			       new DeadlineExceededException(
+					      deadline.getReason()));
+			return true;
+		}
+		return false;
+	}
+
+
+	/* A step of a partitioned suite phase makes a handshake on
+	 * each partition not done yet. Get the permits for the
+	 * connections beyond the first as far as they are granted
+	 * right away, and let the step work on as many partitions.
+	 */
+	protected void acquirePartitionPermits() {
+		extraPermits = 0;
+		if ((scc == null) || !scc.hasMoreSteps()) {
+			return;
+		}
+		int n = scc.getPendingPartitions();
+		if (maxHandshakes > 0) {
+			/* no permits beyond the budget of the host */
+			n = Math.min(n, maxHandshakes-handshakes);
+		}
+		try {
+			while ((extraPermits < n-1)
+			       && (sched.tryAcquire(host, targetAddress())
+				   == 0)) {
+				extraPermits += 1;
+			}
+		} catch (CircuitOpenException e) {
+			/* The step itself will find out */
+		}
+		scc.setStepWidth(extraPermits+1);
+	}
+
+
+	public void releaseStep() {
+		if (permitHeld) {
+			permitHeld = false;
+			sched.release(host, targetAddress(), stepOutcome);
+		}
+		for (/* */;  extraPermits > 0;  extraPermits--) {
+			sched.release(host, targetAddress(), stepOutcome);
+		}
+	}
+
+
+	/* Time in milliseconds to wait before the next step for the
+	 * same target is worth trying.
+	 */
+	public int getStepDelay() {
+		if (sched == null) {
+			return 0;
+		}
+		return sched.getHostInterval();
+	}
+
+
+	/* The analysis can also be run request by request, so the
+	 * caller is free to do other work in between, e.g. while
+	 * waiting for the permit of the scheduler. Call
+	 * startFingerprint() first, then step() until it returns false,
+	 * then obtain the result from finishFingerprint(). Each step
+	 * needs a permit, see acquireStep() and tryAcquireStep().
+	 */
+	public void startFingerprint()
+		throws IOException, FingerprintError {
+
+		startDate = new Date();
+		finished = false;
+		stepOutcome = ConnectOutcome.NONE;
+		permitHeld = false;
+		extraPermits = 0;
+		deadline = new Deadline(hostTimeout);
+		incomplete = false;
+		handshakes = 0;
+		sslv2Checked = false;
+		setupCollectors();
+
+		sslSupport = SSLResult.UNKNOWN;
+		sslSupportReason = null;
+		try {
+			scc.startCollection();
+		} catch (Exception e) {
+			handleCollectException(e);
+		}
+	}
+
 
-		scc = new SSLConfigCollector(host, port, si);
-		scc.setCertValidator(cv);
-		scc.setDelay(delay);
+	protected void setupCollectors() {
+		SocketInitialiser tsi = targetInitialiser();
+		scc = new SSLConfigCollector(host, port, tsi);
+		scc.setCertValidator(collectorValidator());
 		scc.setAllSupported(allSupported);
 		scc.setAllowKerberos(allowKerb);
-		scc2 = new SSLv2ConfigCollector(host, port, si);
-		scc2.setDelay(delay);
+		scc.setDeadline(deadline);
+		scc.setStageBudgets(maxProtoHandshakes, maxSuiteHandshakes);
+		scc.setSuitePartitions(suitePartitions);
+		scc.setSuiteMatrix(suiteMatrix);
+		scc.setScanListener(listener);
+		scc2 = new SSLv2ConfigCollector(host, port, tsi);
+		scc2.setDeadline(deadline);
+		scc2.setScanListener(listener);
+	}
 
-		sslSupport = SSLResult.UNKNOWN;
+
+	/* Perform the next request. Returns true if there are more
+	 * requests to be done.
+	 */
+	public boolean step()
+		throws IOException, FingerprintError {
+
+		if (finished) {
+			return false;
+		}
+		/* nothing to tell until a handshake is made */
+		stepOutcome = ConnectOutcome.NONE;
+		if (budgetUsedUp()) {
+			return false;
+		}
+		handshakes += 1;
 		try {
-			scc.collectConfig();
-			scc2.collectConfig();
-			sslSupport = SSLResult.SUPPORTED;
-			sslSupportReason = null;
-		} catch (NoSSLException e) {
+			deadline.check();
+			if (scc.hasMoreSteps()) {
+				if (maxHandshakes > 0) {
+					/* each partition of the step is
+					 * a handshake of its own
+					 */
+					scc.limitStepWidth(maxHandshakes
+							   -handshakes+1);
+				}
+				scc.collectStep();
+				stepOutcome = scc.getLastOutcome();
+				handshakes += scc.getLastWidth()-1;
+			} else {
+				scc2.collectConfig();
+				stepOutcome = ConnectOutcome.OK;
+				sslv2Checked = true;
+				sslSupport = SSLResult.SUPPORTED;
+				sslSupportReason = null;
+				finished = true;
+			}
+		} catch (Exception e) {
+			stepOutcome = ConnectOutcome.classify(e);
+			handleCollectException(e);
+		}
+		return !finished;
+	}
+
+
+	/* Stop the scan, with partial results, if the budget of
+	 * handshakes for the host has been used up.
+	 */
+	protected boolean budgetUsedUp() {
+		if ((maxHandshakes == 0) || (handshakes < maxHandshakes)) {
+			return false;
+		}
+		incomplete = true;
+		sslSupport = SSLResult.UNKNOWN;
+		sslSupportReason = LocMsg.pr("r_budget_host",
+					     String.valueOf(maxHandshakes));
+		finished = true;
+		return true;
+	}
+
+
+	protected void handleCollectException(Exception e)
+		throws FingerprintError {
+
+		if ((deadline != null) && deadline.isExpired()
+		    && !(e instanceof FingerprintError)
+		    && !(e instanceof RuntimeException)) {
+			// Out of time, whatever the request failed
+			// with. Keep what was collected so far.
+			incomplete = true;
+			sslSupport = SSLResult.UNKNOWN;
+			sslSupportReason = deadline.getReason();
+		} else if (((e instanceof InterruptedIOException)
+			    && !(e instanceof SocketTimeoutException))
+			   || Thread.currentThread().isInterrupted()) {
+			// Stopped from outside, e.g. on shutdown. Keep
+			// what was collected, but the host is not done.
+			incomplete = true;
+			sslSupport = SSLResult.UNKNOWN;
+			sslSupportReason = e.toString();
+		} else if (e instanceof NoSSLException) {
 			// This exception is thrown when the protocol support
 			// for ssl is not available
 			sslSupport = SSLResult.UNSUPPORTED;
 			sslSupportReason = e.toString();
-		} catch (FingerprintException e) {
+		} else if (e instanceof FingerprintException) {
 			// Ok, some other problem. So print it out
 			// and stop analysis for this host
-			//System.err.println(e.toString());
 			sslSupport = SSLResult.UNSUPPORTED;
 			sslSupportReason = e.toString();
-			//outputException(e.toString());
-		} catch (IOException e) {
+		} else if (e instanceof IOException) {
 			// Some IO problem, so
 			sslSupport = SSLResult.UNKNOWN;
 			sslSupportReason = e.toString();
+		} else if (e instanceof FingerprintError) {
+			throw (FingerprintError)e;
+		} else {
+			throw (RuntimeException)e;
+		}
+		finished = true;
+	}
 
-			//e.printStackTrace();
 
-			//outputException(e.toString());
-		}
+	public SSLResult finishFingerprint()
+		throws IOException, FingerprintError {
+
 		endDate = new Date();
 
 		protos = scc.getSupportedProtos();
+		if (!incomplete && (scc.getCutReason() != null)) {
+			incomplete = true;
+			sslSupportReason = scc.getCutReason();
+		}
+		if (incomplete && ((protos.size() > 0)
+				   || (scc.getAcceptedCipherSuites().size() > 0))) {
+			/* Partial result, but SSL is there */
+			sslSupport = SSLResult.SUPPORTED;
+		}
 		if (scc2.supportsSSLv2()) {
 			protos.add("SSL2");
 		}
@@ -230,6 +704,21 @@ public class SSLFingerprint {
 				      scc2.getSSLv2Behavior());
 		fpres.setCiphersuiteResult(scc.getAcceptedCipherSuites(),
 				 scc2.getAcceptedSSLv2CipherSuites());
+		fpres.setSuiteMatrix(scc.getSuiteMatrix());
+		if (deferValidation && (collectorValidator() == null)) {
+			fpres.setDeferredValidation(
+				     scc.getServerCertAuthType());
+		}
+		if (incomplete) {
+			fpres.setIncomplete(sslSupportReason);
+			Set<String> undecided = scc.getUndecidedProtos();
+			if (!sslv2Checked) {
+				undecided.add("SSL2");
+			}
+			fpres.setUndecided(undecided,
+					   scc.getUndecidedSuites());
+			fpres.setUndecidedPairs(scc.getUndecidedPairs());
+		}
 		
 		return fpres;
 	}
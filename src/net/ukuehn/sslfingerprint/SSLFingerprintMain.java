@@ -37,9 +37,12 @@ import java.security.KeyStoreException;
 
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.text.SimpleDateFormat;
 
 import net.ukuehn.xml.SimpleXMLWriter;
@@ -54,6 +57,7 @@ public class SSLFingerprintMain {
 		+" by Ulrich Kuehn <ukuehn@acm.org>";
 	
 	static final int defaultPort = 443;
+	static final int defaultGrace = 10000;
 
 
 	static void usage() {
@@ -135,19 +139,7 @@ public class SSLFingerprintMain {
 
 
 	static SocketInitialiser getSocketInitialiserFromProto(String proto) {
-
-		SocketInitialiser si = null;
-
-		if (proto.equals("plain")) {
-			si = new SocketInitialiser();
-		} else if (proto.equals("smtp")) {
-			si = new SmtpSocketInitialiser();
-		} else if (proto.equals("pop3")) {
-			si = new Pop3SocketInitialiser();
-		} else if (proto.equals("imap")) {
-			si = new ImapSocketInitialiser();
-		}
-		return si;
+		return SocketInitialiser.forProtocol(proto);
 	}
 
 
@@ -160,16 +152,82 @@ public class SSLFingerprintMain {
 		for (int nextarg = startArg;
 		     nextarg < args.length;  nextarg++) {
 
-			Host host = Host.parse(args[nextarg], defaultPort);
-			if (host == null) {
+			List<Host> hl = null;
+			try {
+				hl = Host.parseList(args[nextarg],
+						    defaultPort);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(-1);
+			}
+			if (hl.isEmpty()) {
 				usage();
 			}
-			hostList.add(host);
+			hostList.addAll(hl);
 		}
 		return hostList.listIterator();
 	}
 
 
+	/* Parse [<host>:]<port> as given for --coordinator and --worker,
+	 * leaving the name null if there is no host.
+	 */
+	static Host parseEndpoint(String spec) {
+		Host h = null;
+		try {
+			if (spec.indexOf(':') < 0) {
+				h = new Host(null, Integer.parseInt(spec));
+			} else {
+				h = Host.parse(spec, 0);
+			}
+		} catch (IllegalArgumentException e) {
+			/* NumberFormatException as well */
+		}
+		if ((h == null) || (h.port <= 0) || (h.port > 65535)) {
+			System.err.println(LocMsg.pr("e_dist_endpoint", spec));
+			System.exit(-1);
+		}
+		return h;
+	}
+
+
+	/* The secret shared by coordinator and workers, the first line
+	 * of the given file. There is no default, as anyone knowing it
+	 * gets the host list and can send results.
+	 */
+	static byte[] readSecret(String file) {
+		if (file == null) {
+			System.err.println(LocMsg.pr("e_dist_secret"));
+			System.exit(-1);
+		}
+		String line = null;
+		try {
+			BufferedReader r = new BufferedReader(
+				 new InputStreamReader(
+				       new FileInputStream(file), "UTF-8"));
+			try {
+				line = r.readLine();
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			System.err.println(LocMsg.pr("e_secret_file", file,
+						     e.getMessage()));
+			System.exit(-1);
+		}
+		if ((line == null) || (line.trim().length() == 0)) {
+			System.err.println(LocMsg.pr("e_secret_file", file,
+						     LocMsg.pr("e_secret_empty")));
+			System.exit(-1);
+		}
+		try {
+			return line.trim().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
 	public static void main(String args[])
 		throws IOException, Exception {
 
@@ -187,15 +245,45 @@ public class SSLFingerprintMain {
 		String optArgDebug = null;
 		String optArgListFile = null;
 		String optArgDelay = null;
+		String optArgJobs = null;
+		String optArgHostLimit = null;
+		String optArgNetLimit = null;
+		String optArgPrefix = null;
+		String optArgRate = null;
+		String optArgBreaker = null;
+		String optArgTimeout = null;
+		String optArgJournal = null;
+		String optArgGrace = null;
+		String optArgShard = null;
+		String optArgCoordinator = null;
+		String optArgWorker = null;
+		String optArgService = null;
+		String optArgSecret = null;
+		String optArgMaxScans = null;
+		String optArgTiered = null;
+		String optArgPolicy = null;
+		String optArgSample = null;
+		String optArgSeed = null;
+		String optArgBudget = null;
+		String optArgLean = null;
+		String optArgPartitions = null;
 		boolean optModHash = false;
 		boolean optCheckOnly = false;
 		boolean optXML = false;
 		boolean optself = false;
 		boolean optKerb = false;
 		boolean optAllSupported = false;
+		boolean optAdaptive = false;
+		boolean optResume = false;
+		boolean optEvents = false;
+		boolean optMatrix = false;
 		int optVerbLevel = 0;
 		int port;
 		int delay = 0;
+		int jobs = 1;
+		int hostTimeout = 0;
+		int grace = defaultGrace;
+		PolitenessScheduler sched = new PolitenessScheduler();
 		CertValidator cv;
 		Classifier sc;
 
@@ -223,6 +311,12 @@ public class SSLFingerprintMain {
 				optKerb = true;
 			} else if (args[nextopt].equals("-a")) {
 				optAllSupported = true;
+			} else if (args[nextopt].equals("-A")) {
+				optAdaptive = true;
+			} else if (args[nextopt].equals("--events")) {
+				optEvents = true;
+			} else if (args[nextopt].equals("--matrix")) {
+				optMatrix = true;
 			} else if (args[nextopt].equals("-p")) {
 				nextopt++;
 				if (nextopt < args.length) {
@@ -240,6 +334,74 @@ public class SSLFingerprintMain {
 			} else if (args[nextopt].equals("-d")) {
 				nextopt++;
 				optArgDelay = args[nextopt];
+			} else if (args[nextopt].equals("-j")) {
+				nextopt++;
+				optArgJobs = args[nextopt];
+			} else if (args[nextopt].equals("-H")) {
+				nextopt++;
+				optArgHostLimit = args[nextopt];
+			} else if (args[nextopt].equals("-N")) {
+				nextopt++;
+				optArgNetLimit = args[nextopt];
+			} else if (args[nextopt].equals("-S")) {
+				nextopt++;
+				optArgPrefix = args[nextopt];
+			} else if (args[nextopt].equals("-r")) {
+				nextopt++;
+				optArgRate = args[nextopt];
+			} else if (args[nextopt].equals("-t")) {
+				nextopt++;
+				optArgTimeout = args[nextopt];
+			} else if (args[nextopt].equals("-J")) {
+				nextopt++;
+				optArgJournal = args[nextopt];
+			} else if (args[nextopt].equals("-g")) {
+				nextopt++;
+				optArgGrace = args[nextopt];
+			} else if (args[nextopt].equals("--shard")) {
+				nextopt++;
+				optArgShard = args[nextopt];
+			} else if (args[nextopt].equals("--coordinator")) {
+				nextopt++;
+				optArgCoordinator = args[nextopt];
+			} else if (args[nextopt].equals("--worker")) {
+				nextopt++;
+				optArgWorker = args[nextopt];
+			} else if (args[nextopt].equals("--secret")) {
+				nextopt++;
+				optArgSecret = args[nextopt];
+			} else if (args[nextopt].equals("--service")) {
+				nextopt++;
+				optArgService = args[nextopt];
+			} else if (args[nextopt].equals("--max-scans")) {
+				nextopt++;
+				optArgMaxScans = args[nextopt];
+			} else if (args[nextopt].equals("--budget")) {
+				nextopt++;
+				optArgBudget = args[nextopt];
+			} else if (args[nextopt].equals("--lean")) {
+				nextopt++;
+				optArgLean = args[nextopt];
+			} else if (args[nextopt].equals("--partitions")) {
+				nextopt++;
+				optArgPartitions = args[nextopt];
+			} else if (args[nextopt].equals("--sample")) {
+				nextopt++;
+				optArgSample = args[nextopt];
+			} else if (args[nextopt].equals("--seed")) {
+				nextopt++;
+				optArgSeed = args[nextopt];
+			} else if (args[nextopt].equals("--policy")) {
+				nextopt++;
+				optArgPolicy = args[nextopt];
+			} else if (args[nextopt].equals("--tiered")) {
+				nextopt++;
+				optArgTiered = args[nextopt];
+			} else if (args[nextopt].equals("--resume")) {
+				optResume = true;
+			} else if (args[nextopt].equals("-B")) {
+				nextopt++;
+				optArgBreaker = args[nextopt];
 			} else if (args[nextopt].equals("-T")) {
 				optself = true;
 			} else {
@@ -299,6 +461,99 @@ public class SSLFingerprintMain {
 			}
 		}
 
+		sched.setHostInterval(delay);
+
+		if (optArgHostLimit != null) {
+			try {
+				sched.setMaxPerHost(
+					      Integer.parseInt(optArgHostLimit));
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_limit_number",
+							     optArgHostLimit));
+			}
+		}
+
+		if (optArgNetLimit != null) {
+			try {
+				sched.setMaxPerSubnet(
+					      Integer.parseInt(optArgNetLimit));
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_limit_number",
+							     optArgNetLimit));
+			}
+		}
+
+		if (optArgPrefix != null) {
+			try {
+				int v4, v6;
+				int sep = optArgPrefix.indexOf('/');
+				if (sep < 0) {
+					v4 = Integer.parseInt(optArgPrefix);
+					v6 = PolitenessScheduler.defaultIPv6Prefix;
+				} else {
+					v4 = Integer.parseInt(
+					       optArgPrefix.substring(0, sep));
+					v6 = Integer.parseInt(
+					       optArgPrefix.substring(sep+1));
+				}
+				sched.setSubnetPrefix(v4, v6);
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_prefix_number",
+							     optArgPrefix));
+			}
+		}
+
+		if (optArgRate != null) {
+			try {
+				sched.setRate(Double.parseDouble(optArgRate));
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_rate_number",
+							     optArgRate));
+			}
+		}
+
+		if (optArgTimeout != null) {
+			try {
+				hostTimeout = 1000*Integer.parseInt(optArgTimeout);
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_timeout_number",
+							     optArgTimeout));
+			}
+		}
+
+		if (optArgGrace != null) {
+			try {
+				grace = 1000*Integer.parseInt(optArgGrace);
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_grace_number",
+							     optArgGrace));
+			}
+		}
+
+		if (optArgBreaker != null) {
+			try {
+				sched.setCircuitBreaker(
+					      Integer.parseInt(optArgBreaker));
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_breaker_number",
+							     optArgBreaker));
+			}
+		}
+
+		if (optArgJobs != null) {
+			try {
+				jobs = Integer.parseInt(optArgJobs);
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("w_jobs_number",
+							     optArgJobs));
+				jobs = 1;
+			}
+		}
+
+		if (optAdaptive) {
+			sched.setAdaptive(jobs);
+		}
+
 		if (optArgProto != null) {
 			si = getSocketInitialiserFromProto(optArgProto);
 			if (si == null) {
@@ -320,7 +575,12 @@ public class SSLFingerprintMain {
 			si = pi;
 		}
 
-		if (optArgListFile != null) {
+		if ((optArgWorker != null) || (optArgService != null)) {
+			/* the hosts come from the coordinator, or with
+			 * the requests
+			 */
+			hosts = null;
+		} else if (optArgListFile != null) {
 			hosts = FileHostIterator.getInstance(optArgListFile,
 							     port);
 		} else {
@@ -336,13 +596,90 @@ public class SSLFingerprintMain {
 				usage();
 			}
 		}
-		if (hosts == null) {
+		if ((hosts == null) && (optArgWorker == null)
+		    && (optArgService == null)) {
 			usage();
 		}
+		if (optArgShard != null) {
+			try {
+				hosts = ShardFilter.parse(hosts, optArgShard);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(-1);
+			}
+		}
+
+		HostSample sample = null;
+		if ((optArgSample != null) && (hosts != null)) {
+			/* A resumed scan has to draw the same sample, or
+			 * the positions in the journal mean other hosts.
+			 */
+			if (optResume && (optArgSeed == null)) {
+				System.err.println(LocMsg.pr("e_resume_seed"));
+				System.exit(-1);
+			}
+			long seed = System.currentTimeMillis();
+			if (optArgSeed == null) {
+				System.err.println(LocMsg.pr("s_sample_seed",
+						     String.valueOf(seed)));
+			} else {
+				try {
+					seed = Long.parseLong(optArgSeed);
+				} catch (NumberFormatException e) {
+					System.err.println(LocMsg.pr("e_seed",
+							     optArgSeed));
+					System.exit(-1);
+				}
+			}
+			try {
+				sample = new HostSample(hosts,
+					    Integer.parseInt(optArgSample),
+					    seed);
+			} catch (NumberFormatException e) {
+				System.err.println(LocMsg.pr("e_sample_spec",
+							     optArgSample));
+				System.exit(-1);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(-1);
+			}
+			hosts = sample;
+		}
 
 		SSLFingerprint a = null;
 		Publisher pub = null;
-		if (optCheckOnly) {
+		if (optArgTiered != null) {
+			SSLTieredFingerprint t = new SSLTieredFingerprint();
+			if (optArgTiered.equals("probe")) {
+				t.setMinDepth(FingerprintResult.DEPTH_PROBE);
+			} else if (optArgTiered.equals("protocols")) {
+				t.setMinDepth(FingerprintResult.DEPTH_PROTOCOLS);
+			} else {
+				System.err.println(LocMsg.pr("e_tiered",
+							     optArgTiered));
+				System.exit(-1);
+			}
+			a = t;
+			optCheckOnly = false;
+		}
+		if (optArgPolicy != null) {
+			SSLPolicyCheck p = new SSLPolicyCheck();
+			List<PolicyRule> rules = null;
+			try {
+				rules = PolicyRule.parseList(optArgPolicy);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(-1);
+			}
+			p.setPolicy(rules);
+			p.setClassifier(sc);
+			a = p;
+			if (optXML) {
+				pub = new XMLPolicyPublisher(xw);
+			} else {
+				pub = new CSVPolicyPublisher(log, rules);
+			}
+		} else if (optCheckOnly) {
 			a = new SSLProbe();
 			if (optXML) {
 				pub = new XMLProbePublisher(xw, optVerbLevel);
@@ -350,7 +687,9 @@ public class SSLFingerprintMain {
 				pub = new CSVProbePublisher(log, optVerbLevel);
 			}
 		} else {
-			a = new SSLFingerprint();
+			if (a == null) {
+				a = new SSLFingerprint();
+			}
 			if (optXML) {
 				pub = new XMLFingerprintPublisher(xw, sc,
 						              optVerbLevel);
@@ -365,9 +704,63 @@ public class SSLFingerprintMain {
 			}
 		}
 
+		if (sample != null) {
+			SampleEstimator est = new SampleEstimator(pub, log,
+					  optXML ? xw : null, sc);
+			est.setPopulation(sample.getPopulation());
+			pub = est;
+		}
+
 		a.setSocketInitialiser(si);
 		a.setCertValidator(cv);
-		a.setDelay(delay);
+		a.setScheduler(sched);
+		a.setHostTimeout(hostTimeout);
+		if (optArgBudget != null) {
+			int[] budget = { 0, 0, 0 };
+			StringTokenizer st = new StringTokenizer(optArgBudget,
+								 ":");
+			try {
+				for (int i = 0;  st.hasMoreTokens();  i++) {
+					budget[i] = Integer.parseInt(
+							   st.nextToken());
+				}
+			} catch (RuntimeException e) {
+				/* Not a number, or too many of them */
+				System.err.println(LocMsg.pr("e_budget_spec",
+							     optArgBudget));
+				System.exit(-1);
+			}
+			a.setHandshakeBudget(budget[0], budget[1], budget[2]);
+		}
+		int leanWindow = 0;
+		if (optArgLean != null) {
+			try {
+				leanWindow = Integer.parseInt(optArgLean);
+			} catch (NumberFormatException e) {
+				leanWindow = 0;
+			}
+			if (leanWindow <= 0) {
+				System.err.println(LocMsg.pr("e_lean_window",
+							     optArgLean));
+				System.exit(-1);
+			}
+			a.setSummariseCertificates(true);
+		}
+		if (optArgPartitions != null) {
+			int k = 0;
+			try {
+				k = Integer.parseInt(optArgPartitions);
+			} catch (NumberFormatException e) {
+				k = 0;
+			}
+			if (k <= 0) {
+				System.err.println(LocMsg.pr("e_partitions",
+							     optArgPartitions));
+				System.exit(-1);
+			}
+			a.setSuitePartitions(k);
+		}
+		a.setSuiteMatrix(optMatrix);
 		a.setAllSupported(optAllSupported);
 		a.setAllowKerberos(optKerb);
 
@@ -375,33 +768,155 @@ public class SSLFingerprintMain {
 		pub.setCertValidator(cv);
 		//pub.setClassifier(sc);
 
-		pub.publishHeader();
-
-		for ( /* */ ; hosts.hasNext(); /* next() called in loop */ ) {
-
-			Host h = hosts.next();
-			a.setTarget(h.name, h.port);
-			SSLResult sr;
+		ScanEngine engine = null;
+		ScanCoordinator coord = null;
+		ScanWorker worker = null;
+		ScanService service = null;
+		Stoppable scan;
+		if (optArgService != null) {
+			Host c = parseEndpoint(optArgService);
+			ServerSocket ss = new ServerSocket();
+			ss.setReuseAddress(true);
+			/* local only, unless told otherwise */
+			ss.bind(new InetSocketAddress((c.name != null) ? c.name
+						      : "127.0.0.1", c.port));
+			service = new ScanService(ss, a, sc);
+			service.setProxy(pi);
+			service.setThreads(jobs);
+			if (optArgMaxScans != null) {
+				try {
+					service.setMaxScans(Integer.parseInt(
+							     optArgMaxScans));
+				} catch (NumberFormatException e) {
+					System.err.println(LocMsg.pr(
+					      "w_maxscans_number",
+					      optArgMaxScans));
+				}
+			}
+			System.err.println(LocMsg.pr("s_service",
+			      ss.getInetAddress().getHostAddress(),
+			      String.valueOf(ss.getLocalPort())));
+			scan = service;
+		} else if (optArgWorker != null) {
+			Host c = parseEndpoint(optArgWorker);
+			byte[] secret = readSecret(optArgSecret);
+			worker = new ScanWorker(a, new DistConnection(
+					     new Socket(c.name, c.port)));
+			worker.setSecret(secret);
+			worker.setThreads(jobs);
+			scan = worker;
+		} else if (optArgCoordinator != null) {
+			Host c = parseEndpoint(optArgCoordinator);
+			byte[] secret = readSecret(optArgSecret);
+			ServerSocket ss = new ServerSocket();
+			ss.setReuseAddress(true);
+			/* local only, unless told otherwise */
+			ss.bind(new InetSocketAddress((c.name != null) ? c.name
+						      : "127.0.0.1", c.port));
+			System.err.println(LocMsg.pr("s_coordinator",
+				   String.valueOf(ss.getLocalPort())));
+			coord = new ScanCoordinator(ss, pub);
+			coord.setSecret(secret);
+			if (!optXML) {
+				coord.setErrorLog(log);
+			}
+			scan = coord;
+		} else {
+			engine = new ScanEngine(a, pub);
+			engine.setThreads(jobs);
+			if (leanWindow > 0) {
+				engine.setWindowSize(leanWindow);
+			}
+			engine.setPublishEvents(optEvents);
+			if (!optXML) {
+				engine.setErrorLog(log);
+			}
+			scan = engine;
+		}
+		ScanJournal journal = null;
+		if ((optArgJournal != null) && (worker == null)
+		    && (service == null)) {
+			journal = new ScanJournal(new File(optArgJournal),
+						  optResume);
+			journal.setOutput(pub);
+			if (coord != null) {
+				coord.setJournal(journal);
+			} else {
+				engine.setJournal(journal);
+			}
+			if (optResume) {
+				System.err.println(LocMsg.pr("s_resume",
+				   String.valueOf(journal.getDoneCount())));
+			}
+		} else if (optResume) {
+			System.err.println(LocMsg.pr("e_resume_journal"));
+			System.exit(-1);
+		}
 
-			try {
-				sr = a.fingerprint();
-				pub.publish(sr);
-			} catch (IOException e) {
-				if (!optXML) {
-					log.log(Log.VERBOSE,
-						e.toString());
+		/* On Ctrl-C or kill, stop taking new hosts and let the
+		 * scan drain, so the output is complete and valid.
+		 */
+		CountDownLatch closed = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(
+			new Thread(new ShutdownTask(scan, grace, closed),
+				   "sslfp-shutdown"));
+
+		try {
+			if (service != null) {
+				service.run();
+			} else if (worker != null) {
+				worker.run();
+			} else {
+				pub.publishHeader();
+				if (coord != null) {
+					coord.scan(hosts);
 				} else {
-					System.err.println(e.toString());
+					engine.scan(hosts);
 				}
+				pub.publishFooter();
+			}
+			if (journal != null) {
+				journal.close();
 			}
+			if (log != null) {
+				log.close();
+			}
+			if (xw != null) {
+				xw.close();
+			}
+		} finally {
+			closed.countDown();
 		}
+	}
+
+
+	static class ShutdownTask implements Runnable {
 
-		pub.publishFooter();
-		if (log != null) {
-			log.close();
+		Stoppable scan;
+		long grace;
+		CountDownLatch closed;
+
+		ShutdownTask(Stoppable s, long graceMsec, CountDownLatch c) {
+			scan = s;
+			grace = graceMsec;
+			closed = c;
 		}
-		if (xw != null) {
-			xw.close();
+
+		public void run() {
+			if (closed.getCount() == 0) {
+				/* normal exit */
+				return;
+			}
+			System.err.println(LocMsg.pr("s_shutdown"));
+			scan.shutdown(grace);
+			try {
+				/* Wait for the main thread to write the
+				 * end of the output and close it.
+				 */
+				closed.await(grace, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				/* exit anyway */
+			}
 		}
 	}
 
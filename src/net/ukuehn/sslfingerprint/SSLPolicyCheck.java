@@ -0,0 +1,356 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A policy check answers questions like "does the host accept any
+ * insecure cipher suite?" or "does it still speak SSLv3?" without
+ * enumerating its configuration. Following the subtractive approach
+ * of SSLConfigCollector, a single handshake offering only what a rule
+ * forbids decides the rule: if the server refuses, the rule is met,
+ * otherwise its choice is the proof of the breach.
+ *
+ * Each rule asks up to three questions: about the cipher suites, the
+ * protocols, and SSLv2, which needs a collector of its own. The open
+ * questions of the same kind are asked together, offering the union
+ * of what the rules forbid, and a server which accepts something is
+ * asked again without it. So a compliant server is touched once for
+ * a probe, and once for each kind of question.
+ *
+ * A rule is undecided if this client cannot offer anything the rule
+ * forbids, e.g. as the Java installation has disabled it.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.ukuehn.security.CertValidator;
+
+
+
+public class SSLPolicyCheck extends SSLFingerprint {
+
+	static final int Q_SUITES = 0;
+	static final int Q_PROTOS = 1;
+	static final int Q_SSLV2 = 2;
+
+	/* State of a question */
+	static final int OPEN = -1;
+	static final int NONE = -2;
+
+	PolicyRule[] rules;
+	Classifier cls;
+
+	int[][] questions;
+	String[] evidence;
+	List<Set<String>> suiteSets;
+	List<Set<String>> protoSets;
+	boolean probed;
+
+
+	public SSLPolicyCheck(String theHost, int thePort) {
+		super(theHost, thePort);
+		rules = new PolicyRule[0];
+		cls = new Classifier();
+	}
+
+
+	public SSLPolicyCheck(String theHost) {
+		this(theHost, defaultSSLPort);
+	}
+
+
+	public SSLPolicyCheck() {
+		this(null, 0);
+	}
+
+
+	public void setPolicy(List<PolicyRule> policy) {
+		rules = policy.toArray(new PolicyRule[0]);
+	}
+
+
+	public void setClassifier(Classifier c) {
+		cls = c;
+	}
+
+
+	protected SSLFingerprint createInstance() {
+		return new SSLPolicyCheck();
+	}
+
+
+	protected void copySettings(SSLFingerprint other) {
+		super.copySettings(other);
+		if (other instanceof SSLPolicyCheck) {
+			rules = ((SSLPolicyCheck)other).rules;
+			cls = ((SSLPolicyCheck)other).cls;
+		}
+	}
+
+
+	/* The policy says nothing about certificates */
+	protected CertValidator collectorValidator() {
+		return null;
+	}
+
+
+	public void startFingerprint()
+		throws IOException, FingerprintError {
+
+		probed = false;
+		handshakes = 0;
+		questions = new int[rules.length][3];
+		evidence = new String[rules.length];
+		suiteSets = new ArrayList<Set<String>>();
+		protoSets = new ArrayList<Set<String>>();
+		super.startFingerprint();
+		if (finished) {
+			return;
+		}
+		Set<String> clientSuites = scc.getClientSuites();
+		Set<String> clientProtos = scc.getClientProtos();
+		for (int i = 0;  i < rules.length;  i++) {
+			PolicyRule r = rules[i];
+			Set<String> ss = r.forbiddenSuites(cls, clientSuites);
+			Set<String> ps = r.forbiddenProtos(cls, clientProtos);
+			suiteSets.add(ss);
+			protoSets.add(ps);
+			if (!r.isSuiteRule()) {
+				questions[i][Q_SUITES] = NONE;
+			} else if (ss.size() > 0) {
+				questions[i][Q_SUITES] = OPEN;
+			} else {
+				questions[i][Q_SUITES] = PolicyResult.UNDECIDED;
+			}
+			if (r.isSuiteRule()) {
+				questions[i][Q_PROTOS] = NONE;
+			} else if (ps.size() > 0) {
+				questions[i][Q_PROTOS] = OPEN;
+			} else if ((r.type == PolicyRule.NOPROTO)
+				   && !r.forbidsSSLv2(cls)) {
+				/* Not even known to this client */
+				questions[i][Q_PROTOS] = PolicyResult.UNDECIDED;
+			} else {
+				questions[i][Q_PROTOS] = NONE;
+			}
+			questions[i][Q_SSLV2]
+				= r.forbidsSSLv2(cls) ? OPEN : NONE;
+		}
+	}
+
+
+	public boolean step()
+		throws IOException, FingerprintError {
+
+		if (finished) {
+			return false;
+		}
+		stepOutcome = ConnectOutcome.OK;
+		try {
+			deadline.check();
+			if (!probed) {
+				/* Make sure the host speaks SSL at all,
+				 * as refusals would not tell otherwise.
+				 */
+				scc.probe();
+				handshakes += 1;
+				probed = true;
+				sslSupport = SSLResult.SUPPORTED;
+				sslSupportReason = null;
+				judgeProbe(scc.getOfferProto(),
+					   scc.getOfferSuite());
+			} else {
+				ask();
+				stepOutcome = scc.getLastOutcome();
+			}
+			if (nextQuestion() < 0) {
+				finished = true;
+			}
+		} catch (Exception e) {
+			stepOutcome = ConnectOutcome.classify(e);
+			handleCollectException(e);
+		}
+		return !finished;
+	}
+
+
+	/* The kind of question to ask next, or -1 if all are answered */
+	protected int nextQuestion() {
+		for (int q = Q_SUITES;  q <= Q_SSLV2;  q++) {
+			for (int i = 0;  i < rules.length;  i++) {
+				if (questions[i][q] == OPEN) {
+					return q;
+				}
+			}
+		}
+		return -1;
+	}
+
+
+	protected void ask()
+		throws IOException, FingerprintException, FingerprintError {
+
+		int q = nextQuestion();
+		if (q == Q_SSLV2) {
+			scc2.collectConfig();
+			handshakes += 1;
+			for (int i = 0;  i < rules.length;  i++) {
+				if (questions[i][q] != OPEN) {
+					continue;
+				}
+				if (scc2.supportsSSLv2()) {
+					fail(i, PolicyRule.sslv2);
+				} else {
+					questions[i][q] = PolicyResult.PASS;
+				}
+			}
+			return;
+		}
+
+		List<Set<String>> sets = (q == Q_SUITES) ? suiteSets : protoSets;
+		Set<String> offered = new LinkedHashSet<String>();
+		for (int i = 0;  i < rules.length;  i++) {
+			if (questions[i][q] == OPEN) {
+				offered.addAll(sets.get(i));
+			}
+		}
+		int res;
+		if (q == Q_SUITES) {
+			res = scc.offer(scc.getClientProtos(), offered);
+		} else {
+			res = scc.offer(offered, scc.getClientSuites());
+		}
+		if (res != SSLConfigCollector.OFFER_IMPOSSIBLE) {
+			handshakes += 1;
+		}
+		String chosen = (q == Q_SUITES) ? scc.getOfferSuite()
+			: scc.getOfferProto();
+		boolean decided = false;
+		for (int i = 0;  i < rules.length;  i++) {
+			if (questions[i][q] != OPEN) {
+				continue;
+			}
+			if (res == SSLConfigCollector.OFFER_ACCEPTED) {
+				if (sets.get(i).contains(chosen)) {
+					fail(i, chosen);
+					decided = true;
+				}
+			} else if (res == SSLConfigCollector.OFFER_REJECTED) {
+				questions[i][q] = PolicyResult.PASS;
+			} else {
+				questions[i][q] = PolicyResult.UNDECIDED;
+			}
+		}
+		if ((res == SSLConfigCollector.OFFER_ACCEPTED) && !decided) {
+			/* The server chose something not offered, so
+			 * this question cannot be answered.
+			 */
+			for (int i = 0;  i < rules.length;  i++) {
+				if (questions[i][q] == OPEN) {
+					questions[i][q]
+						= PolicyResult.UNDECIDED;
+				}
+			}
+		}
+	}
+
+
+	/* The probe may already have shown a breach */
+	protected void judgeProbe(String proto, String suite) {
+		for (int i = 0;  i < rules.length;  i++) {
+			if ((questions[i][Q_SUITES] != NONE)
+			    && suiteSets.get(i).contains(suite)) {
+				fail(i, suite);
+			} else if ((questions[i][Q_PROTOS] != NONE)
+				   && protoSets.get(i).contains(proto)) {
+				fail(i, proto);
+			}
+		}
+	}
+
+
+	/* A rule broken once needs no further questions */
+	protected void fail(int rule, String what) {
+		evidence[rule] = what;
+		for (int q = Q_SUITES;  q <= Q_SSLV2;  q++) {
+			if (questions[rule][q] != NONE) {
+				questions[rule][q] = PolicyResult.FAIL;
+			}
+		}
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("SSLPolicyCheck: "+host+":"+port
+					   +" fails "+rules[rule]
+					   +" with "+what);
+		}
+	}
+
+
+	protected int verdict(int rule) {
+		int v = PolicyResult.PASS;
+		for (int q = Q_SUITES;  q <= Q_SSLV2;  q++) {
+			int s = questions[rule][q];
+			if (s == PolicyResult.FAIL) {
+				return PolicyResult.FAIL;
+			} else if ((s == PolicyResult.UNDECIDED)
+				   || (s == OPEN)) {
+				v = PolicyResult.UNDECIDED;
+			}
+		}
+		return v;
+	}
+
+
+	public SSLResult finishFingerprint()
+		throws IOException, FingerprintError {
+
+		endDate = new Date();
+		if (incomplete && probed) {
+			/* Out of time, but SSL is there */
+			sslSupport = SSLResult.SUPPORTED;
+		}
+		PolicyResult pres = new PolicyResult(host, port,
+						     startDate, endDate,
+						     sslSupport,
+						     sslSupportReason);
+		int[] verdicts = new int[rules.length];
+		for (int i = 0;  i < rules.length;  i++) {
+			verdicts[i] = (sslSupport == SSLResult.SUPPORTED)
+				? verdict(i) : PolicyResult.UNDECIDED;
+		}
+		pres.setVerdicts(rules, verdicts, evidence);
+		pres.setHandshakes(handshakes);
+		if (incomplete) {
+			pres.setIncomplete(sslSupportReason);
+		}
+		return pres;
+	}
+
+}
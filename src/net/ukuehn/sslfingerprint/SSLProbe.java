@@ -58,32 +58,39 @@ public class SSLProbe extends SSLFingerprint {
 	}
 
 
-	public SSLResult fingerprint()
-		throws IOException, FingerprintError {
+	protected SSLFingerprint createInstance() {
+		return new SSLProbe();
+	}
 
-		SSLConfigCollector scc;
 
-		scc = new SSLConfigCollector(host, port, si);
-		scc.setCertValidator(cv);
+	public void startFingerprint()
+		throws IOException, FingerprintError {
+
+		deadline = new Deadline(hostTimeout);
+		incomplete = false;
+		scc = new SSLConfigCollector(host, port, targetInitialiser());
+		scc.setCertValidator(collectorValidator());
+		scc.setDeadline(deadline);
+		scc.setScanListener(listener);
 
 		startDate = new Date();
+		finished = false;
+		stepOutcome = ConnectOutcome.OK;
+		permitHeld = false;
 
 		sslSupport = SSLResult.UNKNOWN;
+		sslSupportReason = null;
+	}
 
-		// If a delay is set, wait some time, except for
-		// the first request
-		if (!initial && (delay > 0)) {
-			if (Debug.get(Debug.Delay)) {
-				System.err.println("Delaying request.");
-			}
-			try {
-				Thread.sleep(delay);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
-		}
-		initial = false;
 
+	/* A probe consists of a single request only */
+	public boolean step()
+		throws IOException, FingerprintError {
+
+		if (finished) {
+			return false;
+		}
+		stepOutcome = ConnectOutcome.OK;
 		try {
 			scc.probe();
 			sslSupport = SSLResult.SUPPORTED;
@@ -91,15 +98,26 @@ public class SSLProbe extends SSLFingerprint {
 		} catch (NoSSLException e) {
 			// This exception is thrown when the protocol support
 			// for ssl is not available
+			stepOutcome = ConnectOutcome.classify(e);
 			sslSupport = SSLResult.UNSUPPORTED;
 			sslSupportReason = e.toString();
 		} catch (FingerprintException e) {
+			stepOutcome = ConnectOutcome.classify(e);
 			sslSupport = SSLResult.UNSUPPORTED;
 			sslSupportReason = e.toString();
 		} catch (IOException e) {
+			stepOutcome = ConnectOutcome.classify(e);
 			sslSupport = SSLResult.UNKNOWN;
 			sslSupportReason = e.toString();
 		}
+		finished = true;
+		return false;
+	}
+
+
+	public SSLResult finishFingerprint()
+		throws IOException, FingerprintError {
+
 		endDate = new Date();
 
 		protos = scc.getSupportedProtos();
@@ -115,6 +133,10 @@ public class SSLProbe extends SSLFingerprint {
 				scc.serverCertNameMatch());
 
 		pres.setProtosResult(protos);
+		if (deferValidation) {
+			pres.setDeferredValidation(
+				    scc.getServerCertAuthType());
+		}
 		return pres;
 	}
 
@@ -25,13 +25,18 @@ package net.ukuehn.sslfingerprint;
 
 
 
+import java.io.Serializable;
 import java.security.cert.*;
 import java.util.Date;
 
+import net.ukuehn.security.CertValidator;
 
 
 
-public class SSLResult {
+
+public class SSLResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	protected static final int UNKNOWN = 0;
 	protected static final int UNSUPPORTED = 1;
@@ -39,6 +44,7 @@ public class SSLResult {
 
 	String host;
 	int port;
+	String service;
 
 	int sslSupport;
 	String reasonNoSupport;
@@ -49,9 +55,17 @@ public class SSLResult {
 	Date endDate;
 
 	Certificate[] certs;
+	CertSummary[] certSummaries;
+	boolean summarise;
 	boolean certVerifies;
 	boolean certNameMatch;
 
+	String certAuthType;
+	boolean certsValidated;
+
+	boolean incomplete;
+	String incompleteReason;
+
 
 	public SSLResult(String theHost, int thePort,
 			 Date start, Date end,
@@ -63,13 +77,146 @@ public class SSLResult {
 
 		host = theHost;
 		port = thePort;
+		service = null;
 		startDate = start;
 		endDate = end;
 		sslSupport = supportsSSL;
 		reasonNoSupport = reason;
 		certs = certificates;
+		certSummaries = null;
+		summarise = false;
+		certVerifies = verifies;
+		certNameMatch = nameMatch;
+		certAuthType = null;
+		certsValidated = true;
+		incomplete = false;
+		incompleteReason = null;
+	}
+
+
+	/* The protocol spoken on the port, if the host list gave
+	 * one for it.
+	 */
+	public void setService(String svc) {
+		service = svc;
+	}
+
+
+	public String getService() {
+		return service;
+	}
+
+
+	/* The scan was stopped before it was done, e.g. as the time
+	 * for the host was up, so the results are partial.
+	 */
+	public void setIncomplete(String reason) {
+		incomplete = true;
+		incompleteReason = reason;
+	}
+
+
+	public boolean isIncomplete() {
+		return incomplete;
+	}
+
+
+	public String getIncompleteReason() {
+		return incompleteReason;
+	}
+
+
+	/* Mark the certificate chain as not yet validated, so
+	 * validation can be done later, e.g. in a separate stage.
+	 */
+	public void setDeferredValidation(String authType) {
+		certAuthType = authType;
+		certsValidated = (certs == null);
+	}
+
+
+	public boolean needsValidation() {
+		return !certsValidated;
+	}
+
+
+	public void validateCertificates(CertValidator cv) {
+		if (certsValidated || (cv == null)) {
+			return;
+		}
+		certVerifies = cv.isValidChain(certs, certAuthType);
+		certNameMatch = cv.nameMatches(certs[0], host);
+		certsValidated = true;
+		summariseCertificates();
+	}
+
+
+	/* Take the outcome of validating an identical chain, together
+	 * with its certificates to share them.
+	 */
+	void setValidation(Certificate[] chain, boolean verifies,
+			   boolean nameMatch) {
+		certs = chain;
 		certVerifies = verifies;
 		certNameMatch = nameMatch;
+		certsValidated = true;
+		summariseCertificates();
+	}
+
+
+	/* Keep only summaries of the certificates, to save memory,
+	 * once the chain has been validated. Then getCertificates()
+	 * returns null, while getCertSummaries() still works.
+	 */
+	public void setSummarise(boolean summ) {
+		summarise = summ;
+		if (certsValidated) {
+			summariseCertificates();
+		}
+	}
+
+
+	protected void summariseCertificates() {
+		if (!summarise || (certs == null)) {
+			return;
+		}
+		try {
+			certSummaries = CertSummary.of(certs);
+			certs = null;
+		} catch (FingerprintError e) {
+			/* Keep the chain then */
+		}
+	}
+
+
+	/* The chain as sent by the server, unless it has been dropped
+	 * for the summaries.
+	 */
+	public Certificate[] getCertificates() {
+		return certs;
+	}
+
+
+	/* Summaries of the chain, or null if there is none */
+	public CertSummary[] getCertSummaries() throws FingerprintError {
+		if (certSummaries != null) {
+			return certSummaries;
+		}
+		return CertSummary.of(certs);
+	}
+
+
+	/* The summary of the server certificate, or null if there is
+	 * none, or it is not an X.509 certificate.
+	 */
+	public CertSummary getServerCertSummary() throws FingerprintError {
+		if (certSummaries != null) {
+			return certSummaries[0];
+		}
+		if ((certs == null) || !(certs[0] instanceof X509Certificate)) {
+			return null;
+		}
+		return new CertSummary((X509Certificate)certs[0]);
 	}
 
 
@@ -0,0 +1,201 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * SSLScanner is the entry point for using sslfingerprint as a library,
+ * e.g. from a service which scans hosts on demand. One instance can
+ * be shared by any number of threads. It runs a scan engine with its
+ * own thread pools, and each call to scan() returns the future for
+ * the result of the host.
+ *
+ *   SSLScanner s = new SSLScanner();
+ *   Future<SSLResult> f = s.scan("www.example.com", 443);
+ *   ...
+ *   SSLResult r = f.get();
+ *   s.close();
+ *
+ * Larger host lists are better handed over with scanAll(), which
+ * takes hosts from the list only as fast as the results are taken,
+ * so the caller controls how much is in progress at a time.
+ *
+ * The debug settings (see Debug) are global, and only meant for
+ * diagnostics, not for telling the scans of several callers apart.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.ukuehn.security.CertValidator;
+
+
+
+public class SSLScanner {
+
+	ScanEngine engine;
+	boolean started;
+
+
+	/* A scanner with the default settings: certificates validated
+	 * against the installed trust store, and one connection at a
+	 * time per host.
+	 */
+	public SSLScanner() throws FingerprintError {
+		SSLFingerprint fp = new SSLFingerprint();
+		CertValidator cv = new CertValidator();
+		cv.init();
+		fp.setCertValidator(cv);
+		fp.setScheduler(new PolitenessScheduler());
+		init(fp);
+	}
+
+
+	/* A scanner using the settings of the given instance, e.g.
+	 * its socket initialiser, validator, scheduler and timeouts.
+	 */
+	public SSLScanner(SSLFingerprint prototype) {
+		init(prototype.newInstance());
+	}
+
+
+	protected void init(SSLFingerprint prototype) {
+		engine = new ScanEngine(prototype, new Publisher());
+		started = false;
+	}
+
+
+	/* Number of hosts scanned concurrently. Only effective before
+	 * the first scan.
+	 */
+	public synchronized void setThreads(int n) {
+		if (!started) {
+			engine.setThreads(n);
+		}
+	}
+
+
+	protected synchronized ScanEngine startedEngine() {
+		if (!started) {
+			engine.start();
+			started = true;
+		}
+		return engine;
+	}
+
+
+	public Future<SSLResult> scan(String host, int port) {
+		return scan(new Host(host, port));
+	}
+
+
+	public Future<SSLResult> scan(Host h) {
+		return startedEngine().submit(h, null);
+	}
+
+
+	/* Scan the hosts of the list, with at most window hosts in
+	 * progress. The iterator returns the futures in the order the
+	 * results are done, and only takes the next host from the list
+	 * when a result is taken. So next() may block until a result
+	 * is there, but the future it returns is always done.
+	 */
+	public Iterator<Future<SSLResult>> scanAll(Iterator<Host> hosts,
+						    int window) {
+		return new ScanBatch(startedEngine(), hosts, window);
+	}
+
+
+	/* Stop the threads of the scanner. Blocks until the scans
+	 * submitted are finished, so all their futures are done. If
+	 * the calling thread is interrupted while waiting, the scans
+	 * in progress are cancelled, and their futures done soon
+	 * after. Do not scan after close().
+	 */
+	public synchronized void close() {
+		if (started) {
+			engine.stop();
+		}
+	}
+
+
+
+	static class ScanBatch implements Iterator<Future<SSLResult>> {
+
+		ScanEngine engine;
+		Iterator<Host> hosts;
+		BlockingQueue<ScanJob> done;
+		int inProgress;
+
+		ScanBatch(ScanEngine eng, Iterator<Host> h, int window) {
+			engine = eng;
+			hosts = h;
+			done = new LinkedBlockingQueue<ScanJob>();
+			inProgress = 0;
+			if (window < 1) {
+				window = 1;
+			}
+			while ((inProgress < window) && submitNext()) {
+				/* fill the window */
+			}
+		}
+
+		protected boolean submitNext() {
+			if (!hosts.hasNext()) {
+				return false;
+			}
+			engine.submit(hosts.next(), done);
+			inProgress += 1;
+			return true;
+		}
+
+		public boolean hasNext() {
+			return inProgress > 0;
+		}
+
+		public Future<SSLResult> next() {
+			if (inProgress == 0) {
+				throw new NoSuchElementException();
+			}
+			ScanJob job;
+			try {
+				job = done.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			inProgress -= 1;
+			submitNext();
+			return job;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
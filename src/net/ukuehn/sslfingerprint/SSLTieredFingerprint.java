@@ -0,0 +1,249 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A fingerprint in tiers of increasing cost, each one only done when
+ * the one before has shown something worth a closer look:
+ *
+ *   probe     - a single handshake, giving the certificate chain and
+ *               the best protocol of the server
+ *   protocols - the protocol phase of the collection, giving the
+ *               full set of protocols
+ *   full      - the cipher suites and the SSLv2 check, as done by
+ *               SSLFingerprint
+ *
+ * A host is escalated when it accepts a protocol older than TLS 1.2,
+ * or its certificate does not validate or does not match its name.
+ * So a healthy host costs one handshake, or, when the protocols are
+ * to be checked anyway (see setMinDepth), a few.
+ *
+ * The certificate is validated right after the probe, as this decides
+ * the escalation, even if validation is deferred otherwise.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.Iterator;
+
+import javax.net.ssl.SSLException;
+
+import net.ukuehn.security.CertValidator;
+
+
+
+public class SSLTieredFingerprint extends SSLFingerprint {
+
+	static final String[] currentProtos = { "TLSv1.2", "TLSv1.3" };
+
+	int minDepth;
+	int depth;
+	boolean rejected;
+
+
+	public SSLTieredFingerprint(String theHost, int thePort) {
+		super(theHost, thePort);
+		minDepth = FingerprintResult.DEPTH_PROBE;
+	}
+
+
+	public SSLTieredFingerprint(String theHost) {
+		this(theHost, defaultSSLPort);
+	}
+
+
+	public SSLTieredFingerprint() {
+		this(null, 0);
+	}
+
+
+	/* The tier every host gets, no matter what the ones before
+	 * have shown. With DEPTH_PROTOCOLS, legacy protocols are
+	 * found even on hosts which prefer a current one.
+	 */
+	public void setMinDepth(int d) {
+		if (d < FingerprintResult.DEPTH_PROBE) {
+			d = FingerprintResult.DEPTH_PROBE;
+		}
+		if (d > FingerprintResult.DEPTH_FULL) {
+			d = FingerprintResult.DEPTH_FULL;
+		}
+		minDepth = d;
+	}
+
+
+	protected SSLFingerprint createInstance() {
+		return new SSLTieredFingerprint();
+	}
+
+
+	protected void copySettings(SSLFingerprint other) {
+		super.copySettings(other);
+		if (other instanceof SSLTieredFingerprint) {
+			minDepth = ((SSLTieredFingerprint)other).minDepth;
+		}
+	}
+
+
+	protected CertValidator collectorValidator() {
+		return cv;
+	}
+
+
+	protected void setupCollectors() {
+		super.setupCollectors();
+		scc.setProtocolsOnly(true);
+		depth = FingerprintResult.DEPTH_PROBE;
+		rejected = false;
+	}
+
+
+	public boolean step()
+		throws IOException, FingerprintError {
+
+		if (finished) {
+			return false;
+		}
+		if (depth == FingerprintResult.DEPTH_FULL) {
+			return super.step();
+		}
+		/* nothing to tell until a handshake is made */
+		stepOutcome = ConnectOutcome.NONE;
+		if (budgetUsedUp()) {
+			return false;
+		}
+		handshakes += 1;
+		try {
+			deadline.check();
+			if (depth == FingerprintResult.DEPTH_PROBE) {
+				try {
+					scc.probe();
+					stepOutcome = ConnectOutcome.OK;
+					sslSupport = SSLResult.SUPPORTED;
+					sslSupportReason = null;
+				} catch (NoSSLException e) {
+					if (!isRejection(e)) {
+						throw e;
+					}
+					/* The server answered, but not to a
+					 * current hello, maybe it only
+					 * speaks a legacy protocol.
+					 */
+					stepOutcome = ConnectOutcome.OK;
+					rejected = true;
+					sslSupportReason = e.toString();
+				}
+				if (!escalate(FingerprintResult.DEPTH_PROTOCOLS)) {
+					finished = true;
+					return false;
+				}
+				scc.skipProtocols(scc.getSupportedProtos());
+			} else {
+				scc.collectStep();
+				stepOutcome = scc.getLastOutcome();
+			}
+			if (!scc.hasMoreSteps()) {
+				if (escalate(FingerprintResult.DEPTH_FULL)) {
+					scc.collectSuites();
+				} else {
+					finished = true;
+				}
+			}
+		} catch (Exception e) {
+			stepOutcome = ConnectOutcome.classify(e);
+			handleCollectException(e);
+		}
+		return !finished;
+	}
+
+
+	/* Go on to the next tier, if the host is worth it */
+	protected boolean escalate(int next) {
+		if ((next > minDepth) && !worthCloserLook()) {
+			return false;
+		}
+		depth = next;
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("SSLTieredFingerprint: "+host+":"+port
+			     +" escalated to "
+			     +FingerprintResult.depthNames[next]);
+		}
+		return true;
+	}
+
+
+	protected boolean worthCloserLook() {
+		if (rejected) {
+			return true;
+		}
+		if ((cv != null) && (!scc.serverCertificateVerifies()
+				     || !scc.serverCertNameMatch())) {
+			return true;
+		}
+		for (Iterator<String> it = scc.getSupportedProtos().iterator();
+		     it.hasNext();  /* */ ) {
+			if (!isCurrent(it.next())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/* A handshake refused by the server, as opposed to no
+	 * connection at all
+	 */
+	protected static boolean isRejection(Throwable t) {
+		for (int i = 0;  (t != null) && (i < 8);  i++) {
+			if ((t instanceof SSLException)
+			    || (t instanceof EOFException)) {
+				return true;
+			}
+			t = t.getCause();
+		}
+		return false;
+	}
+
+
+	protected static boolean isCurrent(String proto) {
+		for (int i = 0;  i < currentProtos.length;  i++) {
+			if (currentProtos[i].equals(proto)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	public SSLResult finishFingerprint()
+		throws IOException, FingerprintError {
+
+		FingerprintResult fpres
+			= (FingerprintResult)super.finishFingerprint();
+		fpres.setDepth(depth);
+		return fpres;
+	}
+
+}
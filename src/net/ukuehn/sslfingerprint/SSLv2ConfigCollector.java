@@ -46,7 +46,6 @@ public class SSLv2ConfigCollector {
 	String host;
 	int port;
 	SocketInitialiser si;
-	int delay;
 
 	boolean sslv2Supported = false;
 
@@ -105,6 +104,10 @@ public class SSLv2ConfigCollector {
 
 	LinkedHashSet acceptedSSLv2CS;
 
+	static final int defaultTimeout = 30000;
+	Deadline deadline;
+	ScanListener listener;
+
 
 	public SSLv2ConfigCollector(String theHost, int thePort) {
 		this(theHost, thePort, null);
@@ -115,9 +118,15 @@ public class SSLv2ConfigCollector {
 			   SocketInitialiser theSI) {
 		host = theHost;
 		port = thePort;
-		delay = 0;
 		setSocketInitialiser(theSI);
 		acceptedSSLv2CS = new LinkedHashSet();
+		deadline = null;
+		listener = null;
+	}
+
+
+	public void setDeadline(Deadline d) {
+		deadline = d;
 	}
 
 
@@ -126,8 +135,8 @@ public class SSLv2ConfigCollector {
 	}
 
 
-	public void setDelay(int parmDelay) {
-		delay = parmDelay;
+	public void setScanListener(ScanListener l) {
+		listener = l;
 	}
 
 
@@ -150,7 +159,11 @@ public class SSLv2ConfigCollector {
 		throws IOException, FingerprintError, FingerprintException {
 
 		checkSslV2();
-
+		if (listener != null) {
+			listener.scanEvent(new ScanEvent(ScanEvent.SSLV2_CHECKED,
+					   host, port,
+					   String.valueOf(sslv2Supported)));
+		}
 	}
 
 
@@ -164,6 +177,22 @@ public class SSLv2ConfigCollector {
 	}
 
 
+	/* Read exactly len bytes, the server closing the connection
+	 * early is reported as EOFException.
+	 */
+	protected void readFully(InputStream in, byte[] buf, int off, int len)
+		throws IOException {
+
+		for (int n = 0;  n < len;  ) {
+			int r = in.read(buf, off+n, len-n);
+			if (r < 0) {
+				throw new EOFException();
+			}
+			n += r;
+		}
+	}
+
+
 	private void checkResponseSSLv2(InputStream in)
 		throws IOException, FingerprintException {
 
@@ -181,9 +210,8 @@ public class SSLv2ConfigCollector {
 		int connIdLen;
 
 		// Header is at least two bytes long
-		for (n = 0;  n < 2;  ) {
-			n += in.read(hdrbuf, n, 2-n);
-		}
+		readFully(in, hdrbuf, 0, 2);
+		n = 2;
 
 		if ((hdrbuf[0] & 0x80) != 0) {
 			/* 2-byte record length format */
@@ -193,7 +221,8 @@ public class SSLv2ConfigCollector {
 			hdrlen = 2;
 		} else {
 			/* 3-byte record length, so read one more byte */
-			n = in.read(hdrbuf, 2, 1);
+			readFully(in, hdrbuf, 2, 1);
+			n = 3;
 			len = (((int)hdrbuf[0] & 0x3f) << 8)
 				| ((int)hdrbuf[1] & 0xff);
 			padlen = (int)hdrbuf[2] & 0xff;
@@ -222,9 +251,8 @@ public class SSLv2ConfigCollector {
 		}
 
 		/* Now read the full record */
-		for (n = 0;  n < len;  ) {
-			n += in.read(resp, n, len-n);
-		}
+		readFully(in, resp, 0, len);
+		n = len;
 
 		if (Debug.get(Debug.CheckSSLv2)) {
 			int m = java.lang.Math.min(n, fixedLen);
@@ -364,10 +392,16 @@ public class SSLv2ConfigCollector {
 		sslv2Supported = false;
 		try {
 			if (si != null) {
-				s = si.createSocket(host, port);
+				s = si.createSocket(host, port, deadline);
 			} else {
-				s = new Socket(host, port);
+				s = SocketInitialiser.openSocket(host, port,
+						 deadline, defaultTimeout);
+			}
+			if (deadline != null) {
+				deadline.attach(s);
 			}
+			s.setSoTimeout(Deadline.timeout(deadline,
+							defaultTimeout));
 		} catch (NoStartTlsException e) {
 			sslv2Behavior = SSLv2_UNKNOWN;
 			sslv2Supported = false;
@@ -410,19 +444,6 @@ public class SSLv2ConfigCollector {
 		 * it does not.
 		 */
 
-		// If delay is set, wait the define time before
-		// actually sending the request
-		if (delay > 0) {
-			if (Debug.get(Debug.Delay)) {
-				System.err.println("Delaying request.");
-			}
-			try {
-				Thread.sleep(delay);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
-		}
-
 		try {
 			/* Send prepared SSL2 client hello packet */
 			if (Debug.get(Debug.CheckSSLv2)) {
@@ -492,11 +513,16 @@ public class SSLv2ConfigCollector {
 			} else {
 				throw new IOException(e);
 			}
+		} finally {
+			if (si != null) {
+				si.decommissionSocket(s);
+			}
+			if (deadline != null) {
+				deadline.detach(s);
+			}
+			SocketWatchdog.getDefault().release(s);
+			s.close();
 		}
-		if (si != null) {
-			si.decommissionSocket(s);
-		}
-		s.close();
 	}
 
 
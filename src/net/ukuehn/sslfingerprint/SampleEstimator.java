@@ -0,0 +1,318 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * Publishes the results of a sample scan as they come, and at the end
+ * estimates for the whole population the sample was drawn from (see
+ * HostSample): for each protocol, each strength class of the
+ * Classifier and each cipher suite, the number of hosts accepting it.
+ *
+ * Each estimate comes with a 95% confidence interval. This is the
+ * Wilson score interval, which behaves well for shares close to 0 or
+ * 1 and for small counts, where the normal approximation fails. As
+ * the sample is drawn without replacement, the finite population
+ * correction is applied via the effective sample size
+ * n (N-1) / (N-n), so a sample of the whole list gives exact counts.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.xml.sax.SAXException;
+
+import net.ukuehn.security.CertValidator;
+import net.ukuehn.xml.SimpleXMLWriter;
+
+
+
+public class SampleEstimator extends Publisher {
+
+	static final double z = 1.96;
+
+	static final String KIND_SSL = "ssl";
+	static final String KIND_PROTO = "protocol";
+	static final String KIND_CLASS = "class";
+	static final String KIND_SUITE = "suite";
+
+	static final String[] classNames = {
+		"insecure", "problematic", "secure"
+	};
+
+	Publisher pub;
+	Log log;
+	SimpleXMLWriter xw;
+	Classifier cls;
+
+	long population;
+	long sampled;
+	Map<String, Map<String, long[]>> counts;
+
+
+	/* Estimates are written to the log, or to the XML document
+	 * of the publisher if xmlWr is given.
+	 */
+	public SampleEstimator(Publisher publisher, Log logger,
+			       SimpleXMLWriter xmlWr, Classifier cl) {
+		pub = publisher;
+		log = logger;
+		xw = xmlWr;
+		cls = cl;
+		population = 0;
+		sampled = 0;
+		counts = new TreeMap<String, Map<String, long[]>>();
+	}
+
+
+	/* Size of the list the sample was drawn from */
+	public void setPopulation(long n) {
+		population = n;
+	}
+
+
+	public void setUseModHash(boolean useModHash) {
+		super.setUseModHash(useModHash);
+		pub.setUseModHash(useModHash);
+	}
+
+
+	public void setCertValidator(CertValidator cv) {
+		super.setCertValidator(cv);
+		pub.setCertValidator(cv);
+	}
+
+
+	public void publishHeader() throws IOException, FingerprintError {
+		pub.publishHeader();
+	}
+
+
+	public void publish(SSLResult sr)
+		throws IOException, FingerprintError {
+
+		pub.publish(sr);
+		count(sr);
+	}
+
+
+	public void publishEvent(ScanEvent e)
+		throws IOException, FingerprintError {
+		pub.publishEvent(e);
+	}
+
+
+	public void publishFooter() throws IOException, FingerprintError {
+		if (xw != null) {
+			estimatesToXML();
+		} else {
+			logEstimates();
+		}
+		pub.publishFooter();
+	}
+
+
+	public void flush() throws IOException {
+		pub.flush();
+	}
+
+
+	protected void count(SSLResult sr) {
+		sampled += 1;
+		if (sr.sslSupport != SSLResult.SUPPORTED) {
+			return;
+		}
+		add(KIND_SSL, "true");
+
+		Set<String> protos = null;
+		if (sr instanceof FingerprintResult) {
+			protos = ((FingerprintResult)sr).protos;
+		} else if (sr instanceof ProbeResult) {
+			protos = ((ProbeResult)sr).protos;
+		}
+		String[] protoArr = new String[0];
+		if (protos != null) {
+			protoArr = protos.toArray(protoArr);
+			for (int i = 0;  i < protoArr.length;  i++) {
+				add(KIND_PROTO, protoArr[i]);
+			}
+		}
+		if (!(sr instanceof FingerprintResult)) {
+			return;
+		}
+		FingerprintResult fr = (FingerprintResult)sr;
+		Set<String> classes = new HashSet<String>();
+		countSuites(fr.ciphersuites, protoArr, classes);
+		countSuites(fr.sslv2CS, protoArr, classes);
+		for (Iterator<String> it = classes.iterator();  it.hasNext();
+		     /* */ ) {
+			add(KIND_CLASS, it.next());
+		}
+	}
+
+
+	protected void countSuites(Set<CipherSuiteData> suites,
+				   String[] protos, Set<String> classes) {
+		if (suites == null) {
+			return;
+		}
+		for (Iterator<CipherSuiteData> it = suites.iterator();
+		     it.hasNext();  /* */ ) {
+			CipherSuiteData d = it.next();
+			add(KIND_SUITE, d.name);
+			int s = (cls != null) ? cls.classifyCipherSuite(d, protos)
+				: Classification.STRENGTH_UNKNOWN;
+			if ((s >= 0) && (s < classNames.length)) {
+				classes.add(classNames[s]);
+			} else {
+				classes.add("unknown");
+			}
+		}
+	}
+
+
+	protected void add(String kind, String name) {
+		Map<String, long[]> m = counts.get(kind);
+		if (m == null) {
+			m = new TreeMap<String, long[]>();
+			counts.put(kind, m);
+		}
+		long[] c = m.get(name);
+		if (c == null) {
+			c = new long[1];
+			m.put(name, c);
+		}
+		c[0] += 1;
+	}
+
+
+	/* Estimated share of the population with a property found on
+	 * x hosts of the sample, with the bounds of its confidence
+	 * interval.
+	 */
+	protected double[] estimate(long x) {
+		double p = (double)x / sampled;
+		long pop = Math.max(population, sampled);
+		if (sampled >= pop) {
+			double[] exact = { p, p, p };
+			return exact;
+		}
+		double ne = sampled * (double)(pop - 1) / (pop - sampled);
+		double z2 = z*z;
+		double d = 1 + z2/ne;
+		double c = (p + z2/(2*ne)) / d;
+		double h = z * Math.sqrt(p*(1-p)/ne + z2/(4*ne*ne)) / d;
+		double[] res = { p, Math.max(0.0, c-h), Math.min(1.0, c+h) };
+		return res;
+	}
+
+
+	protected static String percent(double share) {
+		return String.format("%.1f%%", 100.0*share);
+	}
+
+
+	protected String[] kinds() {
+		String[] k = { KIND_SSL, KIND_PROTO, KIND_CLASS, KIND_SUITE };
+		return k;
+	}
+
+
+	protected void logEstimates() {
+		if ((log == null) || (sampled == 0)) {
+			return;
+		}
+		log.log(Log.ESSENTIAL,
+			LocMsg.pr("s_estimates", String.valueOf(population),
+				  String.valueOf(sampled)));
+		String[] k = kinds();
+		for (int i = 0;  i < k.length;  i++) {
+			Map<String, long[]> m = counts.get(k[i]);
+			if (m == null) {
+				continue;
+			}
+			for (Iterator<Map.Entry<String, long[]>>
+				     it = m.entrySet().iterator();
+			     it.hasNext();  /* */ ) {
+				Map.Entry<String, long[]> e = it.next();
+				double[] est = estimate(e.getValue()[0]);
+				log.log(Log.ESSENTIAL,
+					LocMsg.pr("r_estimate",
+						  k[i]+" "+e.getKey(),
+						  String.valueOf(Math.round(
+							  est[0]*population)),
+						  percent(est[0]),
+						  percent(est[1])+" - "
+						  +percent(est[2])));
+			}
+		}
+	}
+
+
+	protected void estimatesToXML() throws IOException, FingerprintError {
+		try {
+			xw.startElement("Estimates");
+			xw.attribute("Population", String.valueOf(population));
+			xw.attribute("Sample", String.valueOf(sampled));
+			xw.attribute("Confidence", "0.95");
+			String[] k = kinds();
+			for (int i = 0;  (i < k.length) && (sampled > 0);  i++) {
+				Map<String, long[]> m = counts.get(k[i]);
+				if (m == null) {
+					continue;
+				}
+				for (Iterator<Map.Entry<String, long[]>>
+					     it = m.entrySet().iterator();
+				     it.hasNext();  /* */ ) {
+					Map.Entry<String, long[]> e = it.next();
+					double[] est = estimate(e.getValue()[0]);
+					xw.startElement("Estimate");
+					xw.attribute("Kind", k[i]);
+					xw.attribute("Name", e.getKey());
+					xw.attribute("SampleHosts", String.valueOf(
+						     e.getValue()[0]));
+					xw.attribute("Hosts", String.valueOf(
+						     Math.round(est[0]*population)));
+					xw.attribute("Share", String.format(
+						     Locale.US, "%.4f", est[0]));
+					xw.attribute("Low", String.format(
+						     Locale.US, "%.4f", est[1]));
+					xw.attribute("High", String.format(
+						     Locale.US, "%.4f", est[2]));
+					xw.endElement();  // </Estimate>
+				}
+			}
+			xw.endElement();  // </Estimates>
+		} catch (SAXException e) {
+			throw new FingerprintError(e);
+		}
+	}
+
+}
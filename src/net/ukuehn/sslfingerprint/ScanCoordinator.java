@@ -0,0 +1,598 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * The coordinator of a distributed scan. It reads the host list,
+ * hands out batches of hosts to the workers connecting to it, and
+ * publishes their results in the order of the host list through a
+ * single publisher, so the output is the same as from one node.
+ *
+ * Hosts are handed out lowest position first, and only within a
+ * window ahead of the next host to publish, which bounds the results
+ * held for reordering. A worker asking for hosts when there are none
+ * left to hand out steals from the worker with the most hosts
+ * outstanding: that worker is asked to give back half of them, and
+ * gives back those it has not started yet. The hosts of a worker
+ * that disconnects are handed out again.
+ *
+ * Each link has its own threads to read and to write, so a worker
+ * which is slow to connect or to read never holds up the others:
+ * messages are only queued while holding the lock.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+
+public class ScanCoordinator implements Stoppable {
+
+	/* Time for a new worker to answer the hello, and for the
+	 * workers to get their done at the end, in ms.
+	 */
+	static final int helloTimeout = 30000;
+	static final long doneTimeout = 5000;
+
+	/* Stops the writer of a link */
+	static final DistMessage closeLink = new DistMessage(0);
+
+	static final int defaultWindow = 4096;
+
+	ServerSocket server;
+	byte[] secret;
+	Publisher pub;
+	Log errLog;
+	ScanJournal journal;
+	int windowSize;
+
+	Iterator<Host> hosts;
+	long nextSeq;
+	long nextPublish;
+	boolean inputDone;
+	TreeMap<Long, Entry> pool;
+	Map<Long, Entry> outstanding;
+	TreeMap<Long, Entry> finished;
+	List<WorkerLink> links;
+
+	volatile boolean stopping;
+	boolean abandon;
+	CountDownLatch scanDone;
+
+
+	public ScanCoordinator(ServerSocket ss, Publisher publisher) {
+		server = ss;
+		secret = null;
+		pub = publisher;
+		errLog = null;
+		journal = null;
+		windowSize = defaultWindow;
+		pool = new TreeMap<Long, Entry>();
+		outstanding = new HashMap<Long, Entry>();
+		finished = new TreeMap<Long, Entry>();
+		links = new ArrayList<WorkerLink>();
+		stopping = false;
+		abandon = false;
+		scanDone = new CountDownLatch(1);
+	}
+
+
+	/* Workers have to prove they know this secret before they
+	 * get any hosts.
+	 */
+	public void setSecret(byte[] s) {
+		secret = s;
+	}
+
+
+	/* See ScanEngine.setErrorLog() */
+	public void setErrorLog(Log log) {
+		errLog = log;
+	}
+
+
+	public void setJournal(ScanJournal j) {
+		journal = j;
+	}
+
+
+	/* Number of hosts ahead of the next one to publish which may
+	 * be handed out.
+	 */
+	public void setWindowSize(int n) {
+		windowSize = (n > 0) ? n : 1;
+	}
+
+
+	/* A host, from being handed out until it is published */
+	static class Entry {
+		long seq;
+		Host host;
+		WorkerLink link;
+		SSLResult result;
+		String error;
+
+		Entry(long seqNo, Host h) {
+			seq = seqNo;
+			host = h;
+		}
+	}
+
+
+	public void scan(Iterator<Host> hostIter)
+		throws IOException, FingerprintError {
+
+		hosts = hostIter;
+		nextSeq = 0;
+		nextPublish = 0;
+		inputDone = false;
+
+		Thread acceptor = new Thread(new AcceptTask(),
+					     "sslfp-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		try {
+			Entry e;
+			while ((e = nextToPublish()) != null) {
+				publish(e);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			finish();
+			scanDone.countDown();
+		}
+	}
+
+
+	/* Wait for the result of the next host in order, or null at
+	 * the end. Each step ahead moves the window, so waiting
+	 * workers may get more hosts.
+	 */
+	protected synchronized Entry nextToPublish()
+		throws InterruptedException {
+
+		while (true) {
+			Entry e = finished.remove(nextPublish);
+			if (e != null) {
+				nextPublish++;
+				serveWaiting();
+				return e;
+			}
+			boolean drained = outstanding.isEmpty()
+				&& (stopping || (inputDone && pool.isEmpty()));
+			if (drained || abandon) {
+				if (finished.isEmpty()) {
+					return null;
+				}
+				/* hosts left out on shutdown */
+				nextPublish = finished.firstKey();
+				continue;
+			}
+			wait();
+		}
+	}
+
+
+	protected void publish(Entry e)
+		throws IOException, FingerprintError {
+
+		if (e.result != null) {
+			pub.publish(e.result);
+			/* see ScanEngine.publishJob() */
+			if ((journal != null) && !e.result.isIncomplete()) {
+				journal.record(e.seq, e.host);
+			}
+		} else if (e.error != null) {
+			if (errLog != null) {
+				errLog.log(Log.VERBOSE, e.error);
+			} else {
+				System.err.println(e.error);
+			}
+		}
+	}
+
+
+	/* Send the workers away and stop taking new ones */
+	protected void finish() {
+		List<WorkerLink> gone;
+		synchronized (this) {
+			gone = new ArrayList<WorkerLink>(links);
+			for (WorkerLink l : gone) {
+				l.send(DistMessage.done());
+			}
+		}
+		try {
+			server.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+		long end = System.currentTimeMillis()+doneTimeout;
+		try {
+			for (WorkerLink l : gone) {
+				l.awaitSent(end-System.currentTimeMillis());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	public void shutdown(long grace) {
+		stopping = true;
+		try {
+			synchronized (this) {
+				notifyAll();
+			}
+			if (scanDone.await(grace, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+			synchronized (this) {
+				abandon = true;
+				notifyAll();
+			}
+			scanDone.await(grace, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/* Take up to n hosts to hand out: given back ones first, as
+	 * they are further ahead in the list, then new ones from the
+	 * list, as far as the window allows.
+	 */
+	protected List<Entry> take(int n) {
+		List<Entry> batch = new ArrayList<Entry>();
+		while ((batch.size() < n) && !stopping) {
+			if (!pool.isEmpty()) {
+				batch.add(pool.remove(pool.firstKey()));
+			} else if (!inputDone
+				   && (nextSeq < nextPublish + windowSize)) {
+				if (!hosts.hasNext()) {
+					inputDone = true;
+					notifyAll();
+					break;
+				}
+				Entry e = new Entry(nextSeq++, hosts.next());
+				if ((e.host == null)
+				    || ((journal != null)
+					&& journal.isDone(e.seq))) {
+					/* nothing to scan or publish */
+					finished.put(e.seq, e);
+					notifyAll();
+				} else {
+					batch.add(e);
+				}
+			} else {
+				break;
+			}
+		}
+		return batch;
+	}
+
+
+	protected void serve(WorkerLink l) {
+		if ((l.waiting <= 0) || stopping) {
+			return;
+		}
+		List<Entry> batch = take(l.waiting);
+		if (batch.isEmpty()) {
+			steal(l);
+			return;
+		}
+		long[] seqs = new long[batch.size()];
+		Host[] hs = new Host[batch.size()];
+		for (int i = 0;  i < seqs.length;  i++) {
+			Entry e = batch.get(i);
+			e.link = l;
+			outstanding.put(e.seq, e);
+			seqs[i] = e.seq;
+			hs[i] = e.host;
+		}
+		l.waiting = 0;
+		l.assigned += seqs.length;
+		l.stealable = true;
+		l.send(DistMessage.work(seqs, hs));
+	}
+
+
+	protected void serveWaiting() {
+		for (WorkerLink l : links) {
+			serve(l);
+		}
+	}
+
+
+	/* Ask the worker with the most hosts outstanding to give back
+	 * half of them, unless a worker has been asked already.
+	 */
+	protected void steal(WorkerLink thief) {
+		WorkerLink victim = null;
+		for (WorkerLink l : links) {
+			if (l.stealing) {
+				return;
+			}
+			if ((l != thief) && l.stealable && (l.assigned > 1)
+			    && ((victim == null)
+				|| (l.assigned > victim.assigned))) {
+				victim = l;
+			}
+		}
+		if (victim != null) {
+			int n = victim.assigned / 2;
+			if (Debug.get(Debug.Engine)) {
+				System.err.println("ScanCoordinator: steal "+n
+						   +" from "+victim.conn.getPeer());
+			}
+			victim.stealing = true;
+			victim.send(DistMessage.steal(n));
+		}
+	}
+
+
+	protected synchronized void handle(WorkerLink l, DistMessage m) {
+		switch (m.type) {
+		case DistMessage.REQUEST:
+			l.waiting = m.count;
+			serve(l);
+			break;
+		case DistMessage.RESULT:
+			complete(l, m.seqs[0], m.result, null);
+			break;
+		case DistMessage.FAILED:
+			complete(l, m.seqs[0], null, m.error);
+			break;
+		case DistMessage.GIVE:
+			if (Debug.get(Debug.Engine)) {
+				System.err.println("ScanCoordinator: got "
+						   +m.seqs.length+" back from "
+						   +l.conn.getPeer());
+			}
+			l.stealing = false;
+			if (m.seqs.length == 0) {
+				/* only hosts in progress */
+				l.stealable = false;
+			}
+			for (int i = 0;  i < m.seqs.length;  i++) {
+				Entry e = outstanding.get(m.seqs[i]);
+				if ((e != null) && (e.link == l)) {
+					outstanding.remove(e.seq);
+					l.assigned--;
+					e.link = null;
+					pool.put(e.seq, e);
+				}
+			}
+			serveWaiting();
+			break;
+		default:
+			/* ignore */
+			break;
+		}
+	}
+
+
+	protected void complete(WorkerLink l, long seq,
+				SSLResult res, String err) {
+
+		Entry e = outstanding.get(seq);
+		if ((e == null) || (e.link != l)) {
+			/* not handed out to this worker */
+			return;
+		}
+		outstanding.remove(seq);
+		l.assigned--;
+		e.result = res;
+		e.error = err;
+		finished.put(seq, e);
+		notifyAll();
+	}
+
+
+	/* The worker is gone, so hand out its hosts again */
+	protected synchronized void drop(WorkerLink l) {
+		links.remove(l);
+		int n = 0;
+		Iterator<Entry> it = outstanding.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.link == l) {
+				it.remove();
+				e.link = null;
+				pool.put(e.seq, e);
+				n++;
+			}
+		}
+		if (l.stealing) {
+			/* no answer to come */
+			for (WorkerLink o : links) {
+				o.stealing = false;
+			}
+		}
+		if (n > 0) {
+			System.err.println(LocMsg.pr("s_worker_lost",
+						     l.conn.getPeer(),
+						     String.valueOf(n)));
+		}
+		serveWaiting();
+		notifyAll();
+	}
+
+
+	public synchronized String toString() {
+		return "coordinator: workers "+links.size()
+			+" handed out "+nextSeq
+			+" outstanding "+outstanding.size()
+			+" returned "+pool.size()
+			+" published "+nextPublish;
+	}
+
+
+	class AcceptTask implements Runnable {
+
+		public void run() {
+			while (!server.isClosed()) {
+				try {
+					Socket s = server.accept();
+					/* The link sets up the streams,
+					 * as reading the header blocks.
+					 */
+					Thread t = new Thread(
+						     new WorkerLink(s),
+						     "sslfp-link");
+					t.setDaemon(true);
+					t.start();
+				} catch (IOException e) {
+					/* closed, or a failed connect */
+				}
+			}
+		}
+	}
+
+
+	class WorkerLink implements Runnable {
+
+		Socket sock;
+		DistConnection conn;
+		LinkedBlockingQueue<DistMessage> outbox;
+		Thread writer;
+		int waiting;
+		int assigned;
+		boolean stealing;
+		boolean stealable;
+
+		WorkerLink(Socket s) {
+			sock = s;
+			conn = null;
+			outbox = new LinkedBlockingQueue<DistMessage>();
+			writer = null;
+			waiting = 0;
+			assigned = 0;
+			stealing = false;
+			stealable = true;
+		}
+
+		/* Only queues the message, so it can be called while
+		 * holding the lock of the coordinator.
+		 */
+		void send(DistMessage m) {
+			outbox.offer(m);
+		}
+
+		/* Wait until the messages queued are sent, or the link
+		 * is gone.
+		 */
+		void awaitSent(long ms) throws InterruptedException {
+			if (ms > 0) {
+				writer.join(ms);
+			}
+		}
+
+		public void run() {
+			try {
+				sock.setSoTimeout(helloTimeout);
+				conn = new DistConnection(sock);
+				if (!conn.challenge(secret)) {
+					System.err.println(
+					     LocMsg.pr("s_worker_refused",
+						       conn.getPeer()));
+					conn.close();
+					return;
+				}
+				/* results take as long as the hosts */
+				sock.setSoTimeout(0);
+			} catch (IOException e) {
+				if (conn != null) {
+					conn.close();
+				} else {
+					try {
+						sock.close();
+					} catch (IOException ce) {
+						/* ignore */
+					}
+				}
+				return;
+			}
+			writer = new Thread(new WriteTask(),
+					    "sslfp-link-out");
+			writer.setDaemon(true);
+			writer.start();
+			synchronized (ScanCoordinator.this) {
+				links.add(this);
+			}
+			System.err.println(LocMsg.pr("s_worker_joined",
+						     conn.getPeer()));
+			try {
+				while (true) {
+					handle(this, conn.receive());
+				}
+			} catch (IOException e) {
+				/* disconnected */
+			} finally {
+				conn.close();
+				outbox.offer(closeLink);
+				drop(this);
+			}
+		}
+
+		/* A failed send closes the connection, and the
+		 * reading thread drops the worker.
+		 */
+		class WriteTask implements Runnable {
+
+			public void run() {
+				try {
+					while (true) {
+						DistMessage m = outbox.take();
+						if (m == closeLink) {
+							return;
+						}
+						conn.send(m);
+						if (m.type == DistMessage.DONE) {
+							return;
+						}
+					}
+				} catch (IOException e) {
+					conn.close();
+				} catch (InterruptedException e) {
+					/* end */
+				}
+			}
+		}
+	}
+
+}
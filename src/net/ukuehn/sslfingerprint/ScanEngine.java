@@ -0,0 +1,727 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2014 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * The scan engine is a pipeline of stages, each with a pool of
+ * threads sized to the cost of its work:
+ *
+ *   resolve  - look up the host address (blocking DNS)
+ *   collect  - connect, socket initialiser preamble and handshakes,
+ *              one SSLFingerprint instance per host, run request
+ *              by request, so the threads interleave the requests
+ *              of several hosts while each host waits out the
+ *              delay between its own requests
+ *   validate - validation of the certificate chain (CPU bound),
+ *              done once for a chain shared by several services
+ *              or hosts
+ *   publish  - a single thread feeding the publisher
+ *
+ * The stages are connected by bounded queues, so a slow validator or
+ * a slow output sink throttles the intake of new hosts instead of
+ * blocking the network stage or piling up results.
+ *
+ * Results are handed to the publisher strictly in the order of the
+ * host list. This is done by keeping the pending jobs in a window
+ * (the reorder buffer) in input order and always publishing the
+ * oldest one first. The window is bounded, so a slow host at its
+ * head stops the intake of new hosts once the window is full, but
+ * never reorders the output.
+ *
+ * Where the order does not matter, e.g. for a worker of a distributed
+ * scan, the engine can run unordered. Then results are published as
+ * soon as they are done, and the window only bounds the number of
+ * hosts in progress.
+ *
+ * Besides scanning a host list, the engine can be started to take
+ * hosts one by one, see start() and submit(), with each job being the
+ * future for its result. This is used by the SSLScanner facade.
+ *
+ * On shutdown, the intake of new hosts stops, and the hosts in
+ * progress get a grace period to finish. After that, they are
+ * cancelled and published with the results collected so far, while
+ * hosts not started yet are dropped.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.ukuehn.security.CertValidator;
+
+
+
+public class ScanEngine implements Stoppable {
+
+	static final int defaultThreads = 1;
+	static final int windowFactor = 4;
+	static final long monitorInterval = 5000;
+
+	SSLFingerprint prototype;
+	CertValidator cv;
+	ValidationCache validations;
+	Publisher pub;
+	Log errLog;
+	ScanJournal journal;
+
+	int nThreads;
+	int nValidators;
+	int windowSize;
+	boolean ordered;
+	boolean publishEvents;
+
+	ScanStage resolveStage;
+	SteppingStage collectStage;
+	ScanStage validateStage;
+
+	BlockingQueue<ScanJob> window;
+	BlockingQueue<ScanJob> completed;
+	ScanJob endOfInput;
+	volatile Throwable fatal;
+	volatile boolean stopping;
+	volatile boolean cancelling;
+	CountDownLatch scanDone;
+	Set<CollectTask> active;
+	long publishedCount;
+	long submittedCount;
+	long publishNanos;
+
+
+	public ScanEngine(SSLFingerprint proto, Publisher publisher) {
+		prototype = proto;
+		cv = proto.cv;
+		validations = new ValidationCache(cv);
+		pub = publisher;
+		errLog = null;
+		journal = null;
+		stopping = false;
+		cancelling = false;
+		scanDone = new CountDownLatch(1);
+		active = Collections.synchronizedSet(new HashSet<CollectTask>());
+		nValidators = Runtime.getRuntime().availableProcessors();
+		ordered = true;
+		publishEvents = false;
+		setThreads(defaultThreads);
+	}
+
+
+	public void setThreads(int n) {
+		if (n < 1) {
+			n = 1;
+		}
+		nThreads = n;
+		windowSize = windowFactor * n;
+	}
+
+
+	public void setValidators(int n) {
+		if (n < 1) {
+			n = 1;
+		}
+		nValidators = n;
+	}
+
+
+	public void setWindowSize(int n) {
+		if (n < nThreads) {
+			n = nThreads;
+		}
+		windowSize = n;
+	}
+
+
+	/* Publish results in the order of the host list (default), or
+	 * as soon as they are done.
+	 */
+	public void setOrdered(boolean inOrder) {
+		ordered = inOrder;
+	}
+
+
+	/* Hand the events of the hosts in progress to the publisher
+	 * as they happen, ahead of the results.
+	 */
+	public void setPublishEvents(boolean events) {
+		publishEvents = events;
+	}
+
+
+	/* Where to report hosts which could not be scanned at all. If
+	 * not set, errors are printed to stderr, e.g. to keep them
+	 * out of XML output.
+	 */
+	public void setErrorLog(Log log) {
+		errLog = log;
+	}
+
+
+	/* Record published hosts in the journal, and skip the hosts
+	 * it already has as done.
+	 */
+	public void setJournal(ScanJournal j) {
+		journal = j;
+	}
+
+
+	public ScanStage[] getStages() {
+		ScanStage[] st = { resolveStage, collectStage, validateStage };
+		return st;
+	}
+
+
+	/* Number of results waiting in the reorder buffer, i.e. the
+	 * queue depth of the publish stage.
+	 */
+	public int getPublishQueueDepth() {
+		return (window != null) ? window.size() : 0;
+	}
+
+
+	protected void createStages() {
+		resolveStage = new ScanStage("resolve", nThreads, windowSize);
+		collectStage = new SteppingStage("collect", nThreads,
+						 windowSize);
+		validateStage = new ScanStage("validate", nValidators,
+					      windowSize);
+	}
+
+
+	protected void stopStages() {
+		resolveStage.shutdown();
+		collectStage.shutdown();
+		validateStage.shutdown();
+	}
+
+
+	/* Start the stages to take hosts one by one with submit(),
+	 * instead of a whole host list with scan(). The stages keep
+	 * running until stop() is called.
+	 */
+	public synchronized void start() {
+		if (resolveStage == null) {
+			submittedCount = 0;
+			createStages();
+		}
+	}
+
+
+	/* Stop the stages started with start(). The hosts submitted
+	 * are scanned to the end first, each stage drained before the
+	 * one after it, so every job is done when this returns. If
+	 * interrupted while waiting, the scans in progress are
+	 * cancelled, and the hosts not started yet are skipped.
+	 */
+	public synchronized void stop() {
+		if (resolveStage == null) {
+			return;
+		}
+		boolean interrupted = false;
+		ScanStage[] st = getStages();
+		for (int i = 0;  i < st.length;  /* i++ when drained */ ) {
+			try {
+				st[i].drain();
+				i++;
+			} catch (InterruptedException e) {
+				interrupted = true;
+				cancelActive();
+			}
+		}
+		stopStages();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/* Make the hosts in progress stop at their next request, and
+	 * the ones not started yet skipped.
+	 */
+	protected void cancelActive() {
+		cancelling = true;
+		CollectTask[] tasks;
+		synchronized (active) {
+			tasks = active.toArray(new CollectTask[0]);
+		}
+		String why = LocMsg.pr("e_interrupted");
+		for (int i = 0;  i < tasks.length;  i++) {
+			tasks[i].fp.cancel(why);
+		}
+	}
+
+
+	/* Scan the host, once the engine has been started. The job
+	 * is the future for the result, and is also put into the done
+	 * queue when done, if one is given. Waits while the engine
+	 * has more hosts to resolve than it can take. After stop(),
+	 * the job fails with a RejectedExecutionException.
+	 */
+	public ScanJob submit(Host h, BlockingQueue<ScanJob> doneQueue) {
+		ScanJob job;
+		synchronized (this) {
+			job = new ScanJob(submittedCount++, h);
+		}
+		job.setDoneQueue(doneQueue);
+		handOff(resolveStage, new ResolveTask(job), job);
+		return job;
+	}
+
+
+	public void scan(Iterator<Host> hosts)
+		throws IOException, FingerprintError {
+
+		window = new ArrayBlockingQueue<ScanJob>(windowSize);
+		completed = ordered ? null : new LinkedBlockingQueue<ScanJob>();
+		endOfInput = new ScanJob(-1, null);
+		fatal = null;
+		publishedCount = 0;
+		publishNanos = 0;
+
+		createStages();
+		Thread publisher = new Thread(new PublishTask(),
+					      "sslfp-publish");
+		publisher.setDaemon(true);
+		Thread monitor = null;
+
+		if (Debug.get(Debug.Engine)) {
+			System.err.println("ScanEngine: "+nThreads
+					   +" workers, "+nValidators
+					   +" validators, window "+windowSize);
+			monitor = new Thread(new MonitorTask(),
+					     "sslfp-monitor");
+			monitor.setDaemon(true);
+			monitor.start();
+		}
+
+		publisher.start();
+		try {
+			long seq = 0;
+			for ( /* */ ; !stopping && hosts.hasNext();
+			      /* next() in loop */ ) {
+				Host h = hosts.next();
+				if ((journal != null)
+				    && journal.isDone(seq)) {
+					seq++;
+					continue;
+				}
+				ScanJob job = new ScanJob(seq++, h);
+				job.setDoneQueue(completed);
+				if (!enqueue(job)) {
+					break;
+				}
+				handOff(resolveStage, new ResolveTask(job), job);
+			}
+			enqueueEnd();
+			publisher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			stopStages();
+			if (monitor != null) {
+				monitor.interrupt();
+				reportStats();
+			}
+			if (journal != null) {
+				journal.sync();
+			}
+			scanDone.countDown();
+		}
+
+		if (fatal != null) {
+			rethrow(fatal);
+		}
+	}
+
+
+	/* Put a job into the reorder buffer, waiting for room. Gives
+	 * up if the publisher has stopped due to a fatal error.
+	 */
+	protected boolean enqueue(ScanJob job)
+		throws InterruptedException {
+
+		while ((fatal == null) && !stopping) {
+			if (window.offer(job, 100, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/* The end of input has to get into the reorder buffer even
+	 * when stopping, as it ends the publisher.
+	 */
+	protected void enqueueEnd() throws InterruptedException {
+		while (fatal == null) {
+			if (window.offer(endOfInput, 100,
+					 TimeUnit.MILLISECONDS)) {
+				if (completed != null) {
+					completed.offer(endOfInput);
+				}
+				return;
+			}
+		}
+	}
+
+
+	/* Stop the scan, e.g. from a shutdown hook. No new hosts are
+	 * taken, and the hosts in progress may finish within the grace
+	 * period in milliseconds. Then they are cancelled and their
+	 * partial results published. Returns when the scan is done,
+	 * or the grace period is up twice.
+	 */
+	public void shutdown(long grace) {
+		stopping = true;
+		try {
+			if (scanDone.await(grace, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+			cancelActive();
+			scanDone.await(grace, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	protected void rethrow(Throwable t)
+		throws IOException, FingerprintError {
+
+		if (t instanceof IOException) {
+			throw (IOException)t;
+		} else if (t instanceof FingerprintError) {
+			throw (FingerprintError)t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException)t;
+		} else if (t instanceof Error) {
+			throw (Error)t;
+		}
+		throw new FingerprintError(t);
+	}
+
+
+	/* Only complete results go to the journal, so hosts cut short
+	 * by a deadline, a budget or a shutdown are scanned again on
+	 * resume.
+	 */
+	protected void publishJob(ScanJob job)
+		throws IOException, FingerprintError {
+
+		Throwable err = job.getError();
+		if (job.isSkipped()) {
+			/* not scanned */
+		} else if (err == null) {
+			synchronized (pub) {
+				pub.publish(job.getResult());
+			}
+			if ((journal != null)
+			    && !job.getResult().isIncomplete()) {
+				journal.record(job.seq, job.getHost());
+			}
+		} else if (err instanceof IOException) {
+			reportError(err);
+		} else {
+			rethrow(err);
+		}
+	}
+
+
+	protected void reportError(Throwable e) {
+		if (errLog != null) {
+			errLog.log(Log.VERBOSE, e.toString());
+		} else {
+			System.err.println(e.toString());
+		}
+	}
+
+
+	protected void reportStats() {
+		ScanStage[] st = getStages();
+		for (int i = 0;  i < st.length;  i++) {
+			System.err.println("ScanEngine: "+st[i]);
+		}
+		if (prototype.sched != null) {
+			System.err.println("ScanEngine: "+prototype.sched);
+		}
+		System.err.println("ScanEngine: "+SocketWatchdog.getDefault());
+		double mean = 0.0;
+		if (publishedCount > 0) {
+			mean = (publishNanos / 1000000.0) / publishedCount;
+		}
+		System.err.println("ScanEngine: publish: threads 1"
+				   +" queued "+getPublishQueueDepth()
+				   +" done "+publishedCount
+				   +" mean "+String.format("%.1f", mean)+" ms");
+	}
+
+
+	/* Pass the job on to the next stage. If the stage does not
+	 * take it, e.g. when shut down, the job fails, as the publisher
+	 * or the caller of submit() waits for it to be done.
+	 */
+	protected void handOff(ScanStage st, Runnable task, ScanJob job) {
+		try {
+			st.submit(task);
+		} catch (RuntimeException e) {
+			job.fail(e);
+		}
+	}
+
+
+	class ResolveTask implements Runnable {
+
+		ScanJob job;
+
+		ResolveTask(ScanJob j) {
+			job = j;
+		}
+
+		public void run() {
+			if (cancelling || job.isCancelled()) {
+				job.skip();
+				return;
+			}
+			try {
+				/* behind a proxy, the proxy resolves */
+				if (!prototype.viaProxy()) {
+					job.getHost().resolve();
+				}
+			} catch (IOException e) {
+				/* Leave it to the collector to fail on
+				 * the host and report it properly.
+				 */
+			}
+			CollectTask ct = new CollectTask(job);
+			try {
+				collectStage.submit(ct);
+			} catch (RuntimeException e) {
+				active.remove(ct);
+				job.fp = null;
+				job.fail(e);
+			}
+		}
+	}
+
+
+	class CollectTask implements SteppingStage.Task {
+
+		ScanJob job;
+		SSLFingerprint fp;
+		boolean started;
+		long nextDelay;
+
+		CollectTask(ScanJob j) {
+			job = j;
+			fp = prototype.newInstance();
+			fp.setDeferValidation(true);
+			fp.setTarget(j.getHost());
+			if (publishEvents) {
+				fp.setScanListener(eventPublisher);
+			}
+			j.fp = fp;
+			started = false;
+			nextDelay = 0;
+			active.add(this);
+		}
+
+		public boolean step() {
+			try {
+				if (!started) {
+					if (cancelling || job.isCancelled()) {
+						job.skip();
+						return false;
+					}
+					fp.startFingerprint();
+					started = true;
+				}
+				if (cancelling) {
+					fp.cancel(LocMsg.pr("e_interrupted"));
+				}
+				/* Without a permit from the scheduler, put
+				 * the host back and try again later.
+				 */
+				nextDelay = fp.tryAcquireStep();
+				if (nextDelay > 0) {
+					return true;
+				}
+				try {
+					if (fp.step()) {
+						nextDelay = fp.getStepDelay();
+						return true;
+					}
+				} finally {
+					fp.releaseStep();
+				}
+				job.result = fp.endFingerprint();
+			} catch (Throwable t) {
+				job.fail(t);
+			}
+			return false;
+		}
+
+		public long getStepDelay() {
+			return nextDelay;
+		}
+
+		public void finished() {
+			active.remove(this);
+			job.fp = null;
+			if ((job.getError() != null) || job.isSkipped()) {
+				return;
+			}
+			if (job.result.needsValidation()) {
+				handOff(validateStage, new ValidateTask(job), job);
+			} else {
+				job.complete();
+			}
+		}
+	}
+
+
+	class ValidateTask implements Runnable {
+
+		ScanJob job;
+
+		ValidateTask(ScanJob j) {
+			job = j;
+		}
+
+		public void run() {
+			try {
+				validations.validate(job.result);
+				job.complete();
+			} catch (Throwable t) {
+				job.fail(t);
+			}
+		}
+	}
+
+
+	class PublishTask implements Runnable {
+
+		public void run() {
+			try {
+				if (ordered) {
+					publishOrdered();
+				} else {
+					publishUnordered();
+				}
+			} catch (InterruptedException e) {
+				fatal = new InterruptedIOException();
+			} catch (Throwable t) {
+				fatal = t;
+			}
+		}
+	}
+
+
+	protected void publishOrdered()
+		throws InterruptedException, IOException, FingerprintError {
+
+		while (true) {
+			ScanJob job = window.take();
+			if (job == endOfInput) {
+				break;
+			}
+			job.await();
+			publishTimed(job);
+		}
+	}
+
+
+	/* Publish jobs in the order they are done, and remove them from
+	 * the window to make room for new hosts. The end of input
+	 * shows up in the done queue when all hosts are taken, but the
+	 * window runs empty only when they are all done as well.
+	 */
+	protected void publishUnordered()
+		throws InterruptedException, IOException, FingerprintError {
+
+		boolean ending = false;
+		while (!ending || (window.peek() != endOfInput)) {
+			ScanJob job = completed.take();
+			if (job == endOfInput) {
+				ending = true;
+				continue;
+			}
+			window.remove(job);
+			publishTimed(job);
+		}
+	}
+
+
+	protected void publishTimed(ScanJob job)
+		throws IOException, FingerprintError {
+
+		long start = System.nanoTime();
+		publishJob(job);
+		publishNanos += System.nanoTime()-start;
+		publishedCount += 1;
+	}
+
+
+	/* Events come from the collector threads, so the publisher is
+	 * locked against the publish thread. A publisher failing on
+	 * an event stops the scan, just as if it failed on a result.
+	 */
+	ScanListener eventPublisher = new ScanListener() {
+		public void scanEvent(ScanEvent e) {
+			try {
+				synchronized (pub) {
+					pub.publishEvent(e);
+					pub.flush();
+				}
+			} catch (Throwable t) {
+				if (fatal == null) {
+					fatal = t;
+				}
+			}
+		}
+	};
+
+
+	class MonitorTask implements Runnable {
+
+		public void run() {
+			try {
+				while (true) {
+					Thread.sleep(monitorInterval);
+					reportStats();
+				}
+			} catch (InterruptedException e) {
+				/* done */
+			}
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Set;
+
+
+
+/* A step in the scan of a host, as told to a ScanListener. The
+ * detail depends on the type of the event:
+ *
+ *   connected           - the first connection has been made
+ *                         (no detail)
+ *   protocolsCollected  - the protocols accepted, comma separated
+ *   suiteAccepted       - the name of the cipher suite
+ *   certificateRecorded - the subject of the server certificate
+ *   sslv2Checked        - true if SSLv2 is supported, else false
+ *   completed           - SSL support, as true, false or unknown,
+ *                         with the result, which may still be
+ *                         waiting for validation of the
+ *                         certificate chain
+ */
+public class ScanEvent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int CONNECTED = 0;
+	public static final int PROTOCOLS_COLLECTED = 1;
+	public static final int SUITE_ACCEPTED = 2;
+	public static final int CERTIFICATE_RECORDED = 3;
+	public static final int SSLV2_CHECKED = 4;
+	public static final int COMPLETED = 5;
+
+	static final String[] typeNames = {
+		"connected",
+		"protocolsCollected",
+		"suiteAccepted",
+		"certificateRecorded",
+		"sslv2Checked",
+		"completed"
+	};
+
+	int type;
+	String host;
+	int port;
+	Date date;
+	String detail;
+	SSLResult result;
+
+
+	public ScanEvent(int evType, String theHost, int thePort,
+			 String evDetail) {
+		type = evType;
+		host = theHost;
+		port = thePort;
+		date = new Date();
+		detail = evDetail;
+		result = null;
+	}
+
+
+	public ScanEvent(SSLResult sr) {
+		this(COMPLETED, sr.host, sr.port, supportName(sr));
+		result = sr;
+	}
+
+
+	protected static String supportName(SSLResult sr) {
+		switch (sr.sslSupport) {
+		case SSLResult.SUPPORTED:
+			return "true";
+		case SSLResult.UNSUPPORTED:
+			return "false";
+		default:
+			return "unknown";
+		}
+	}
+
+
+	protected static String join(Set<String> items) {
+		StringBuilder sb = new StringBuilder();
+		for (Iterator<String> it = items.iterator();
+		     it.hasNext();  /* */ ) {
+			if (sb.length() > 0) {
+				sb.append(",");
+			}
+			sb.append(it.next());
+		}
+		return sb.toString();
+	}
+
+
+	public int getType() {
+		return type;
+	}
+
+
+	public String getTypeName() {
+		return typeNames[type];
+	}
+
+
+	public String getHost() {
+		return host;
+	}
+
+
+	public int getPort() {
+		return port;
+	}
+
+
+	public Date getDate() {
+		return date;
+	}
+
+
+	/* The detail of the event, or null if there is none */
+	public String getDetail() {
+		return detail;
+	}
+
+
+	/* The result of the host, for the completed event only */
+	public SSLResult getResult() {
+		return result;
+	}
+
+
+}
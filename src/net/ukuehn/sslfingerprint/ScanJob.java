@@ -0,0 +1,190 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2014 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+
+/* A single host travelling through the stages of the scan engine.
+ * The sequence number is the position of the host in the input.
+ * The job is also the future for the result of the host.
+ */
+public class ScanJob implements Future<SSLResult> {
+
+	long seq;
+	Host host;
+
+	SSLResult result;
+	Throwable error;
+	boolean skipped;
+
+	CountDownLatch done;
+	BlockingQueue<ScanJob> doneQueue;
+	volatile boolean cancelled;
+	volatile SSLFingerprint fp;
+
+
+	public ScanJob(long seqNo, Host h) {
+		seq = seqNo;
+		host = h;
+		result = null;
+		error = null;
+		skipped = false;
+		done = new CountDownLatch(1);
+		doneQueue = null;
+		cancelled = false;
+		fp = null;
+	}
+
+
+	/* Also hand the job to the queue once it is done */
+	public void setDoneQueue(BlockingQueue<ScanJob> q) {
+		doneQueue = q;
+	}
+
+
+	public long getSeq() {
+		return seq;
+	}
+
+
+	public Host getHost() {
+		return host;
+	}
+
+
+	public SSLResult getResult() {
+		return result;
+	}
+
+
+	public Throwable getError() {
+		return error;
+	}
+
+
+	/* The host was not scanned at all, e.g. on shutdown, and
+	 * there is nothing to publish.
+	 */
+	public void skip() {
+		skipped = true;
+		finish();
+	}
+
+
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+
+	public void complete() {
+		finish();
+	}
+
+
+	public void fail(Throwable t) {
+		error = t;
+		finish();
+	}
+
+
+	protected void finish() {
+		done.countDown();
+		if (doneQueue != null) {
+			doneQueue.offer(this);
+		}
+	}
+
+
+	public boolean isDone() {
+		return cancelled || (done.getCount() == 0);
+	}
+
+
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+
+	/* Stop the scan of the host. If it is in progress, it stops
+	 * at its next request, and the job is done soon after.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) {
+			return false;
+		}
+		cancelled = true;
+		SSLFingerprint f = fp;
+		if (f != null) {
+			f.cancel(LocMsg.pr("e_cancelled"));
+		}
+		return true;
+	}
+
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+
+	public SSLResult get()
+		throws InterruptedException, ExecutionException {
+
+		if (!cancelled) {
+			done.await();
+		}
+		return report();
+	}
+
+
+	public SSLResult get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException,
+		       TimeoutException {
+
+		if (!cancelled && !done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+
+
+	protected SSLResult report() throws ExecutionException {
+		if (cancelled || skipped) {
+			throw new CancellationException();
+		}
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return result;
+	}
+
+}
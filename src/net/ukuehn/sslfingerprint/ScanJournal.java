@@ -0,0 +1,202 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * An append-only journal of the hosts whose results have been
+ * published, so an interrupted scan can be resumed without scanning
+ * them again. Each line holds the position of the host in the host
+ * list, followed by host and port for the human reader:
+ *
+ *   <seq> <host> <port>
+ *
+ * Lines are written as results are published, and made durable in
+ * batches, i.e. the output of the publisher is flushed and the
+ * journal is synced to disk every few records or after a short
+ * time, whichever comes first. After a crash, at most the last batch
+ * is lost, and those hosts are simply scanned again.
+ *
+ * On resume, the journal is read once into a bit set indexed by the
+ * position, so looking up a host costs O(1) and one bit of memory.
+ * A resumed scan must be given the same host list.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.BitSet;
+import java.util.StringTokenizer;
+
+
+
+public class ScanJournal {
+
+	static final int defaultBatchSize = 64;
+	static final long defaultBatchTime = 1000;
+
+	File file;
+	FileOutputStream fos;
+	Writer out;
+	Flushable output;
+
+	BitSet done;
+	int doneCount;
+
+	int batchSize;
+	long batchTime;
+	int pending;
+	long lastSync;
+
+
+	/* Open the journal. If resume is set, the hosts recorded in an
+	 * existing journal are taken as done, and new records are
+	 * appended. Otherwise, the journal is started from scratch.
+	 */
+	public ScanJournal(File journalFile, boolean resume)
+		throws IOException {
+
+		file = journalFile;
+		done = new BitSet();
+		doneCount = 0;
+		if (resume && file.exists()) {
+			load();
+		}
+		boolean torn = resume && endsTorn();
+		fos = new FileOutputStream(file, resume);
+		out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+		if (torn) {
+			/* Do not append to a line cut short */
+			out.write("\n");
+		}
+		output = null;
+		batchSize = defaultBatchSize;
+		batchTime = defaultBatchTime;
+		pending = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+
+	/* Output to flush before the journal is synced, so the journal
+	 * never claims more than has actually been written.
+	 */
+	public void setOutput(Flushable f) {
+		output = f;
+	}
+
+
+	public void setBatch(int records, long msec) {
+		batchSize = Math.max(1, records);
+		batchTime = Math.max(0, msec);
+	}
+
+
+	protected void load() throws IOException {
+		BufferedReader in = new BufferedReader(
+			  new InputStreamReader(new FileInputStream(file),
+						"UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int seq = parseSeq(line);
+				if ((seq >= 0) && !done.get(seq)) {
+					done.set(seq);
+					doneCount += 1;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+
+	protected boolean endsTorn() throws IOException {
+		if (!file.exists() || (file.length() == 0)) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(raf.length()-1);
+			return raf.read() != '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	/* Returns -1 for lines which cannot be parsed, e.g. a line cut
+	 * short by a crash.
+	 */
+	protected int parseSeq(String line) {
+		StringTokenizer st = new StringTokenizer(line, " ");
+		if (st.countTokens() != 3) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(st.nextToken());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+
+	public boolean isDone(long seq) {
+		return (seq <= Integer.MAX_VALUE) && done.get((int)seq);
+	}
+
+
+	/* Number of hosts already done when the journal was opened */
+	public int getDoneCount() {
+		return doneCount;
+	}
+
+
+	public synchronized void record(long seq, Host h)
+		throws IOException {
+
+		out.write(String.valueOf(seq)+" "+h.name+" "+h.port+"\n");
+		pending += 1;
+		long now = System.currentTimeMillis();
+		if ((pending >= batchSize) || (now - lastSync >= batchTime)) {
+			sync();
+		}
+	}
+
+
+	public synchronized void sync() throws IOException {
+		if (output != null) {
+			output.flush();
+		}
+		out.flush();
+		fos.getChannel().force(false);
+		pending = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+
+	public synchronized void close() throws IOException {
+		sync();
+		out.close();
+	}
+
+}
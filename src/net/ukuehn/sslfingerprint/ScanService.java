@@ -0,0 +1,782 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A long running scan service, taking scan requests over HTTP on a
+ * local port. The costly setup, i.e. the JVM, the trust store of the
+ * certificate validator, the self test and the politeness scheduler,
+ * is done once for all requests, so a scan costs little more than the
+ * connections to the hosts.
+ *
+ *   POST /scan?<options>   the body lists the hosts, one per line as
+ *                          for -f, and the response streams the
+ *                          results as they are published
+ *   GET /status            the queue and the scans running
+ *
+ * The options mirror those of the command line, see the usage. The
+ * requests wait in a queue ordered by priority, highest first, and at
+ * most a given number of scans run at once, all sharing the same
+ * scheduler, so its limits hold across them.
+ *
+ * The service has no authentication, so it only takes requests whose
+ * Host header names the local host or the address it listens on, and
+ * turns away requests from pages of other origins, so a browser
+ * cannot be made to post scans to it.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.ukuehn.xml.SimpleXMLWriter;
+
+
+
+public class ScanService implements Stoppable {
+
+	static final int defaultMaxScans = 4;
+	static final int maxThreads = 64;
+	static final int maxBody = 1 << 20;
+	static final int maxLine = 8192;
+	static final int maxHeaders = 100;
+	/* for reading a request, in ms */
+	static final int requestTimeout = 30000;
+	/* connections open at once, queued scans included */
+	static final int maxRequests = 64;
+
+	ServerSocket server;
+	SSLFingerprint template;
+	Classifier cls;
+	HttpProxySocketInitialiser proxy;
+	int defaultThreads;
+	int maxScans;
+
+	PriorityBlockingQueue<ServiceJob> queue;
+	Set<ScanEngine> running;
+	long nextJob;
+	long doneCount;
+	int requests;
+	volatile boolean stopping;
+
+
+	/* The template carries the settings from the command line, which
+	 * are the defaults for the requests.
+	 */
+	public ScanService(ServerSocket ss, SSLFingerprint fpTemplate,
+			   Classifier cl) {
+		server = ss;
+		template = fpTemplate;
+		cls = cl;
+		proxy = null;
+		defaultThreads = 1;
+		maxScans = defaultMaxScans;
+		queue = new PriorityBlockingQueue<ServiceJob>();
+		running = Collections.synchronizedSet(
+				new HashSet<ScanEngine>());
+		nextJob = 0;
+		doneCount = 0;
+		requests = 0;
+		stopping = false;
+	}
+
+
+	/* Proxy to chain to the socket initialiser of each request */
+	public void setProxy(HttpProxySocketInitialiser pi) {
+		proxy = pi;
+	}
+
+
+	public void setThreads(int n) {
+		defaultThreads = Math.max(1, Math.min(n, maxThreads));
+	}
+
+
+	public void setMaxScans(int n) {
+		maxScans = (n > 0) ? n : 1;
+	}
+
+
+	/* A scan request, from the connection it came in on until the
+	 * results are sent.
+	 */
+	class ServiceJob implements Comparable<ServiceJob> {
+		long seq;
+		int priority;
+		List<Host> hosts;
+		SSLFingerprint proto;
+		boolean probe;
+		String format;
+		int verbLevel;
+		boolean modHash;
+		boolean events;
+		int threads;
+		Socket sock;
+		boolean finished;
+
+		public int compareTo(ServiceJob o) {
+			if (priority != o.priority) {
+				return (priority > o.priority) ? -1 : 1;
+			}
+			return (seq < o.seq) ? -1 : ((seq == o.seq) ? 0 : 1);
+		}
+
+		synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (!finished) {
+				wait();
+			}
+		}
+	}
+
+
+	/* Serve requests until shut down */
+	public void run() throws IOException {
+		Thread[] runners = new Thread[maxScans];
+		for (int i = 0;  i < runners.length;  i++) {
+			runners[i] = new Thread(new RunTask(), "sslfp-scan");
+			runners[i].start();
+		}
+		while (!stopping) {
+			try {
+				Socket s = server.accept();
+				if (!enterRequest()) {
+					refuse(s);
+					continue;
+				}
+				Thread t = new Thread(new RequestTask(s),
+						      "sslfp-request");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (!stopping) {
+					System.err.println(e.toString());
+				}
+			}
+		}
+		for (int i = 0;  i < runners.length;  i++) {
+			try {
+				runners[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+
+	/* Count a connection taken, unless there are too many */
+	protected synchronized boolean enterRequest() {
+		if (requests >= maxRequests) {
+			return false;
+		}
+		requests += 1;
+		return true;
+	}
+
+
+	protected synchronized void leaveRequest() {
+		requests -= 1;
+	}
+
+
+	/* Turn away a connection over the limit, without reading the
+	 * request, so the thread taking connections is not held up.
+	 */
+	protected void refuse(Socket s) {
+		try {
+			respondText(s, 503, "Unavailable",
+				    LocMsg.pr("e_service_busy"));
+		} catch (IOException e) {
+			/* client gone */
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				/* ignore */
+			}
+		}
+	}
+
+
+	/* Stop taking requests, and give the scans running the grace
+	 * period to finish. Requests still queued are turned away.
+	 */
+	public void shutdown(long grace) {
+		stopping = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			/* ignore */
+		}
+		ScanEngine[] engines;
+		synchronized (running) {
+			engines = running.toArray(new ScanEngine[0]);
+		}
+		Thread[] stoppers = new Thread[engines.length];
+		for (int i = 0;  i < engines.length;  i++) {
+			final ScanEngine e = engines[i];
+			final long g = grace;
+			stoppers[i] = new Thread(new Runnable() {
+					public void run() {
+						e.shutdown(g);
+					}
+				});
+			stoppers[i].start();
+		}
+		for (int i = 0;  i < stoppers.length;  i++) {
+			try {
+				stoppers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+
+	public synchronized String toString() {
+		String res = "service: queued "+queue.size()
+			+" running "+running.size()
+			+" done "+doneCount;
+		if (template.sched != null) {
+			res += "\n"+template.sched;
+		}
+		return res;
+	}
+
+
+	/* Set up the job from the options and the host list of the
+	 * request. Throws IllegalArgumentException with a message for
+	 * the client on bad requests.
+	 */
+	protected ServiceJob parseJob(String query, String body)
+		throws IllegalArgumentException {
+
+		Map<String, String> opts = parseQuery(query);
+		ServiceJob job = new ServiceJob();
+		job.probe = opts.containsKey("c");
+		job.proto = job.probe ? new SSLProbe() : new SSLFingerprint();
+		job.proto.copySettings(template);
+		job.format = "json";
+		job.verbLevel = 0;
+		job.modHash = opts.containsKey("m");
+		job.events = opts.containsKey("e");
+		job.threads = defaultThreads;
+		job.priority = 0;
+
+		int port = SSLFingerprintMain.defaultPort;
+		for (Map.Entry<String, String> o : opts.entrySet()) {
+			String key = o.getKey();
+			String val = o.getValue();
+			if (key.equals("format")) {
+				if (!val.equals("json") && !val.equals("xml")
+				    && !val.equals("text")) {
+					throw new IllegalArgumentException(
+					     LocMsg.pr("e_service_option",
+						       key, val));
+				}
+				job.format = val;
+			} else if (key.equals("priority")) {
+				job.priority = number(key, val);
+			} else if (key.equals("v")) {
+				job.verbLevel = (val.length() > 0)
+					? number(key, val) : 1;
+			} else if (key.equals("j")) {
+				job.threads = Math.max(1, Math.min(maxThreads,
+						      number(key, val)));
+			} else if (key.equals("t")) {
+				job.proto.setHostTimeout(
+					     1000*number(key, val));
+			} else if (key.equals("a")) {
+				job.proto.setAllSupported(true);
+			} else if (key.equals("k")) {
+				job.proto.setAllowKerberos(true);
+			} else if (key.equals("matrix")) {
+				job.proto.setSuiteMatrix(true);
+			} else if (key.equals("p")) {
+				SocketInitialiser si = SSLFingerprintMain
+					.getSocketInitialiserFromProto(val);
+				if (si == null) {
+					throw new IllegalArgumentException(
+					     LocMsg.pr("e_unsupp_proto", val));
+				}
+				si.setChainedInitialiser(proxy);
+				job.proto.setSocketInitialiser(si);
+				port = si.getDefaultPort();
+			} else if (!key.equals("c") && !key.equals("m")
+				   && !key.equals("e")) {
+				throw new IllegalArgumentException(
+				     LocMsg.pr("e_service_option", key, val));
+			}
+		}
+
+		job.hosts = new ArrayList<Host>();
+		StringTokenizer st = new StringTokenizer(body, "\r\n");
+		while (st.hasMoreTokens()) {
+			String line = st.nextToken().trim();
+			if (line.length() > 0) {
+				job.hosts.addAll(Host.parseList(line, port));
+			}
+		}
+		if (job.hosts.isEmpty()) {
+			throw new IllegalArgumentException(
+				     LocMsg.pr("e_service_nohosts"));
+		}
+		return job;
+	}
+
+
+	protected Map<String, String> parseQuery(String query) {
+		Map<String, String> opts = new HashMap<String, String>();
+		if (query == null) {
+			return opts;
+		}
+		StringTokenizer st = new StringTokenizer(query, "&");
+		try {
+			while (st.hasMoreTokens()) {
+				String kv = st.nextToken();
+				int eq = kv.indexOf('=');
+				if (eq < 0) {
+					opts.put(URLDecoder.decode(kv, "UTF-8"),
+						 "");
+				} else {
+					opts.put(URLDecoder.decode(
+						   kv.substring(0, eq), "UTF-8"),
+						 URLDecoder.decode(
+						   kv.substring(eq+1), "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			/* UTF-8 is always there */
+		}
+		return opts;
+	}
+
+
+	protected int number(String key, String val) {
+		try {
+			return Integer.parseInt(val);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(
+				     LocMsg.pr("e_service_option", key, val));
+		}
+	}
+
+
+	protected Publisher createPublisher(ServiceJob job, Writer w) {
+		Publisher pub;
+		if (job.format.equals("json")) {
+			pub = new JSONPublisher(w, cls);
+		} else if (job.format.equals("xml")) {
+			SimpleXMLWriter xw = new SimpleXMLWriter(w);
+			if (job.probe) {
+				pub = new XMLProbePublisher(xw, job.verbLevel);
+			} else {
+				pub = new XMLFingerprintPublisher(xw, cls,
+							job.verbLevel);
+			}
+		} else {
+			Log log = new Log(w);
+			log.setLogLevel(job.verbLevel);
+			if (job.probe) {
+				pub = new CSVProbePublisher(log, job.verbLevel);
+			} else {
+				SocketInitialiser si = job.proto.si;
+				pub = new PlainFingerprintPublisher(log, cls,
+					      job.verbLevel,
+					      (si != null) ? si.getName() : null);
+			}
+		}
+		pub.setUseModHash(job.modHash);
+		pub.setCertValidator(template.cv);
+		return pub;
+	}
+
+
+	protected static String contentType(String format) {
+		if (format.equals("json")) {
+			return "application/x-ndjson";
+		} else if (format.equals("xml")) {
+			return "application/xml";
+		}
+		return "text/plain";
+	}
+
+
+	protected static void respond(OutputStream os, int status,
+				      String phrase, String type)
+		throws IOException {
+
+		Writer w = new OutputStreamWriter(os, "ISO-8859-1");
+		w.write("HTTP/1.1 "+status+" "+phrase+"\r\n"
+			+"Content-Type: "+type+"; charset=utf-8\r\n"
+			+"Connection: close\r\n\r\n");
+		w.flush();
+	}
+
+
+	protected static void respondText(Socket s, int status,
+					  String phrase, String text)
+		throws IOException {
+
+		OutputStream os = s.getOutputStream();
+		respond(os, status, phrase, "text/plain");
+		os.write((text+"\n").getBytes("UTF-8"));
+		os.flush();
+	}
+
+
+	/* Run the scan of a request, streaming the results to the
+	 * client as they are published.
+	 */
+	protected void runJob(ServiceJob job) {
+		ScanEngine engine = null;
+		try {
+			if (stopping) {
+				respondText(job.sock, 503, "Unavailable",
+					    LocMsg.pr("e_service_stopping"));
+				return;
+			}
+			OutputStream os = job.sock.getOutputStream();
+			respond(os, 200, "OK", contentType(job.format));
+			Writer w = new BufferedWriter(
+				     new OutputStreamWriter(os, "UTF-8"));
+			Publisher pub = new StreamingPublisher(
+					     createPublisher(job, w));
+			engine = new ScanEngine(job.proto, pub);
+			engine.setThreads(job.threads);
+			engine.setPublishEvents(job.events);
+			if (job.format.equals("text")) {
+				Log errLog = new Log(w);
+				errLog.setLogLevel(job.verbLevel);
+				engine.setErrorLog(errLog);
+			}
+			running.add(engine);
+			pub.publishHeader();
+			engine.scan(job.hosts.iterator());
+			pub.publishFooter();
+			w.flush();
+		} catch (IOException e) {
+			/* client gone */
+		} catch (FingerprintError e) {
+			System.err.println(e.toString());
+		} finally {
+			if (engine != null) {
+				running.remove(engine);
+			}
+			synchronized (this) {
+				doneCount++;
+			}
+			job.finish();
+		}
+	}
+
+
+	class RunTask implements Runnable {
+
+		public void run() {
+			try {
+				while (!stopping || !queue.isEmpty()) {
+					ServiceJob job = queue.poll(500,
+						    TimeUnit.MILLISECONDS);
+					if (job != null) {
+						runJob(job);
+					}
+				}
+			} catch (InterruptedException e) {
+				/* done */
+			}
+		}
+	}
+
+
+	class RequestTask implements Runnable {
+
+		Socket sock;
+
+		RequestTask(Socket s) {
+			sock = s;
+		}
+
+		public void run() {
+			try {
+				handle();
+			} catch (ProtocolException e) {
+				try {
+					respondText(sock, 431,
+						    "Request Header Fields Too Large",
+						    e.getMessage());
+				} catch (IOException re) {
+					/* client gone */
+				}
+			} catch (IOException e) {
+				/* client gone, or too slow */
+			} catch (InterruptedException e) {
+				/* shutting down */
+			} finally {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					/* ignore */
+				}
+				leaveRequest();
+			}
+		}
+
+		void handle() throws IOException, InterruptedException {
+			sock.setSoTimeout(requestTimeout);
+			InputStream in = new BufferedInputStream(
+					       sock.getInputStream());
+			String line = readLine(in);
+			if (line == null) {
+				return;
+			}
+			StringTokenizer st = new StringTokenizer(line, " ");
+			String method = st.hasMoreTokens() ? st.nextToken() : "";
+			String target = st.hasMoreTokens() ? st.nextToken() : "";
+			int length = 0;
+			int headers = 0;
+			String hostHeader = null;
+			String origin = null;
+			while (((line = readLine(in)) != null)
+			       && (line.length() > 0)) {
+				if (++headers > maxHeaders) {
+					throw new ProtocolException(
+					     LocMsg.pr("e_service_header"));
+				}
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon+1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						length = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						length = -1;
+					}
+				} else if (name.equalsIgnoreCase("Host")) {
+					hostHeader = value;
+				} else if (name.equalsIgnoreCase("Origin")) {
+					origin = value;
+				}
+			}
+
+			if ((hostHeader == null)
+			    || !isLocalName(stripPort(hostHeader))) {
+				respondText(sock, 403, "Forbidden",
+					    LocMsg.pr("e_service_host",
+						      String.valueOf(hostHeader)));
+				return;
+			}
+			if ((origin != null) && !isLocalOrigin(origin)) {
+				respondText(sock, 403, "Forbidden",
+					    LocMsg.pr("e_service_origin",
+						      origin));
+				return;
+			}
+
+			String path = target;
+			String query = null;
+			int q = target.indexOf('?');
+			if (q >= 0) {
+				path = target.substring(0, q);
+				query = target.substring(q+1);
+			}
+
+			if (path.equals("/status") && method.equals("GET")) {
+				respondText(sock, 200, "OK",
+					    ScanService.this.toString());
+				return;
+			}
+			if (!path.equals("/scan")) {
+				respondText(sock, 404, "Not Found", path);
+				return;
+			}
+			if (!method.equals("POST")) {
+				respondText(sock, 405, "Method Not Allowed",
+					    method);
+				return;
+			}
+			if ((length < 0) || (length > maxBody)) {
+				respondText(sock, 413, "Too Large",
+					    String.valueOf(length));
+				return;
+			}
+			byte[] body = new byte[length];
+			int n = 0;
+			while (n < length) {
+				int r = in.read(body, n, length-n);
+				if (r < 0) {
+					break;
+				}
+				n += r;
+			}
+
+			ServiceJob job;
+			try {
+				job = parseJob(query,
+					       new String(body, 0, n, "UTF-8"));
+			} catch (IllegalArgumentException e) {
+				respondText(sock, 400, "Bad Request",
+					    e.getMessage());
+				return;
+			}
+			if (stopping) {
+				respondText(sock, 503, "Unavailable",
+					    LocMsg.pr("e_service_stopping"));
+				return;
+			}
+			job.sock = sock;
+			synchronized (ScanService.this) {
+				job.seq = nextJob++;
+			}
+			queue.put(job);
+			job.await();
+		}
+
+		/* The host part of a Host header, i.e. without the port.
+		 * IPv6 addresses keep their brackets.
+		 */
+		String stripPort(String h) {
+			int end = h.startsWith("[") ? h.indexOf(']')+1
+				: h.lastIndexOf(':');
+			return (end > 0) ? h.substring(0, end) : h;
+		}
+
+
+		/* Only names which need no lookup: localhost, the loopback
+		 * addresses, and the address the request came in on.
+		 */
+		boolean isLocalName(String h) {
+			if (h.equalsIgnoreCase("localhost")
+			    || h.equals("[::1]")) {
+				return true;
+			}
+			if (h.startsWith("127.")
+			    && h.matches("[0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+")) {
+				return true;
+			}
+			String local = sock.getLocalAddress().getHostAddress();
+			if (local.indexOf(':') >= 0) {
+				local = "["+local+"]";
+			}
+			return h.equalsIgnoreCase(local);
+		}
+
+
+		boolean isLocalOrigin(String o) {
+			int sep = o.indexOf("://");
+			if (sep < 0) {
+				return false;
+			}
+			String h = o.substring(sep+3);
+			int slash = h.indexOf('/');
+			if (slash >= 0) {
+				h = h.substring(0, slash);
+			}
+			return isLocalName(stripPort(h));
+		}
+
+
+		/* A line of the request header, without the line end */
+		String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while (((c = in.read()) >= 0) && (c != '\n')) {
+				if (sb.length() >= maxLine) {
+					throw new ProtocolException(
+					     LocMsg.pr("e_service_header"));
+				}
+				if (c != '\r') {
+					sb.append((char)c);
+				}
+			}
+			if ((c < 0) && (sb.length() == 0)) {
+				return null;
+			}
+			return sb.toString();
+		}
+	}
+
+
+	/* Flushes after each result, so the client gets it at once */
+	static class StreamingPublisher extends Publisher {
+
+		Publisher pub;
+
+		StreamingPublisher(Publisher p) {
+			pub = p;
+		}
+
+		public void publishHeader()
+			throws IOException, FingerprintError {
+			pub.publishHeader();
+			pub.flush();
+		}
+
+		public void publish(SSLResult sr)
+			throws IOException, FingerprintError {
+			pub.publish(sr);
+			pub.flush();
+		}
+
+		public void publishEvent(ScanEvent e)
+			throws IOException, FingerprintError {
+			pub.publishEvent(e);
+			pub.flush();
+		}
+
+		public void publishFooter()
+			throws IOException, FingerprintError {
+			pub.publishFooter();
+			pub.flush();
+		}
+
+		public void flush() throws IOException {
+			pub.flush();
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2014 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/* One stage of the scan pipeline: a pool of threads sized to the
+ * cost of the work done in the stage, fed by a bounded queue. When
+ * the queue is full, submitting blocks the caller, so a slow stage
+ * throttles the stages in front of it instead of piling up work.
+ */
+public class ScanStage {
+
+	String name;
+	ThreadPoolExecutor pool;
+
+	AtomicLong submitted;
+	AtomicLong completed;
+	AtomicLong busyNanos;
+
+
+	protected ScanStage(String stageName) {
+		name = stageName;
+		submitted = new AtomicLong();
+		completed = new AtomicLong();
+		busyNanos = new AtomicLong();
+		pool = null;
+	}
+
+
+	public ScanStage(String stageName, int threads, int queueSize) {
+		this(stageName);
+		pool = new ThreadPoolExecutor(threads, threads,
+				      0L, TimeUnit.MILLISECONDS,
+				      new ArrayBlockingQueue<Runnable>(queueSize),
+				      new StageThreadFactory(stageName),
+				      new BlockingPolicy());
+	}
+
+
+	public void submit(final Runnable work) {
+		submitted.incrementAndGet();
+		pool.execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					work.run();
+				} finally {
+					busyNanos.addAndGet(System.nanoTime()
+							    -start);
+					completed.incrementAndGet();
+				}
+			}
+		});
+	}
+
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+
+	/* Take no more work, and wait until the work taken is done */
+	public void drain() throws InterruptedException {
+		pool.shutdown();
+		while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+			/* keep waiting */
+		}
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+
+	public int getThreads() {
+		return pool.getCorePoolSize();
+	}
+
+
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}
+
+
+	public int getActive() {
+		return pool.getActiveCount();
+	}
+
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+
+	/* Mean service time per item in milliseconds */
+	public double getMeanServiceTime() {
+		long n = completed.get();
+		if (n == 0) {
+			return 0.0;
+		}
+		return (busyNanos.get() / 1000000.0) / n;
+	}
+
+
+	public String toString() {
+		return name+": threads "+getThreads()
+			+" active "+getActive()
+			+" queued "+getQueueDepth()
+			+" done "+getCompleted()
+			+" mean "+String.format("%.1f", getMeanServiceTime())
+			+" ms";
+	}
+
+
+	/* Block the submitter until there is room in the queue */
+	static class BlockingPolicy implements RejectedExecutionHandler {
+
+		public void rejectedExecution(Runnable r,
+					      ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException();
+			}
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+			/* Shut down while waiting, the workers may be gone
+			 * already. Unless one has taken the task, take it
+			 * back, so the submitter knows it is not run.
+			 */
+			if (executor.isShutdown()
+			    && executor.getQueue().remove(r)) {
+				throw new RejectedExecutionException();
+			}
+		}
+	}
+
+
+	static class StageThreadFactory implements ThreadFactory {
+
+		String prefix;
+		int count = 0;
+
+		StageThreadFactory(String stageName) {
+			prefix = "sslfp-"+stageName+"-";
+		}
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix+(count++));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
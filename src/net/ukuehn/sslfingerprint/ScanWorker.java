@@ -0,0 +1,291 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A worker of a distributed scan. It gets its hosts from the
+ * coordinator and sends the results back, scanning them with the
+ * scan engine like a local scan, but unordered, as the coordinator
+ * puts the results in order.
+ *
+ * The worker keeps a small queue of hosts from the coordinator, and
+ * asks for more when it runs low. The engine takes hosts from the
+ * queue only as threads get free, so the hosts not started yet stay
+ * in the queue, from where the coordinator can steal them for an
+ * idle worker.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+
+public class ScanWorker extends ScanEngine {
+
+	DistConnection conn;
+	byte[] secret;
+	LinkedList<Queued> queue;
+	Map<Long, Long> running;
+	long taken;
+	int batchSize;
+	boolean requested;
+	boolean inputDone;
+
+
+	public ScanWorker(SSLFingerprint proto, DistConnection c) {
+		super(proto, new Publisher());
+		conn = c;
+		queue = new LinkedList<Queued>();
+		running = new HashMap<Long, Long>();
+		taken = 0;
+		requested = false;
+		inputDone = false;
+		secret = null;
+		setOrdered(false);
+	}
+
+
+	/* The secret shared with the coordinator */
+	public void setSecret(byte[] s) {
+		secret = s;
+	}
+
+
+	public void setThreads(int n) {
+		super.setThreads(n);
+		/* Room for a host waiting for each thread, so threads
+		 * do not run idle, but not more.
+		 */
+		setWindowSize(2*nThreads);
+		batchSize = nThreads;
+	}
+
+
+	/* A host from the coordinator with its position in the list */
+	static class Queued {
+		long seq;
+		Host host;
+
+		Queued(long seqNo, Host h) {
+			seq = seqNo;
+			host = h;
+		}
+	}
+
+
+	/* Scan hosts until the coordinator has no more */
+	public void run() throws IOException, FingerprintError {
+		try {
+			conn.answer(secret);
+		} catch (IOException e) {
+			conn.close();
+			throw e;
+		}
+		Thread receiver = new Thread(new ReceiveTask(),
+					     "sslfp-receive");
+		receiver.setDaemon(true);
+		receiver.start();
+		try {
+			scan(new RemoteHosts());
+		} finally {
+			conn.close();
+		}
+	}
+
+
+	public void shutdown(long grace) {
+		synchronized (this) {
+			inputDone = true;
+			notifyAll();
+		}
+		super.shutdown(grace);
+	}
+
+
+	/* Send the result back instead of publishing it. Hosts
+	 * skipped on shutdown are left to the coordinator, which gets
+	 * them back as the worker disconnects.
+	 */
+	protected void publishJob(ScanJob job)
+		throws IOException, FingerprintError {
+
+		Long seq;
+		synchronized (this) {
+			seq = running.remove(job.getSeq());
+		}
+		Throwable err = job.getError();
+		if (job.isSkipped() || (seq == null)) {
+			/* nothing to send */
+		} else if (err == null) {
+			conn.send(DistMessage.result(seq, job.getResult()));
+		} else if (err instanceof IOException) {
+			conn.send(DistMessage.failed(seq, err.toString()));
+		} else {
+			rethrow(err);
+		}
+	}
+
+
+	/* The request for enough hosts to fill up the queue, or null
+	 * if none is needed. Called with the lock held, the caller
+	 * sends it after giving up the lock.
+	 */
+	protected DistMessage request() {
+		int n = batchSize - queue.size();
+		if (requested || inputDone || (n <= 0)) {
+			return null;
+		}
+		requested = true;
+		return DistMessage.request(n);
+	}
+
+
+	/* Send without the lock held, so a slow link to the
+	 * coordinator does not hold up the threads reporting results.
+	 */
+	protected void sendRequest(DistMessage m) {
+		if (m == null) {
+			return;
+		}
+		try {
+			conn.send(m);
+		} catch (IOException e) {
+			synchronized (this) {
+				inputDone = true;
+				notifyAll();
+			}
+		}
+	}
+
+
+	protected void received(DistMessage m)
+		throws IOException {
+
+		DistMessage reply = null;
+		synchronized (this) {
+			switch (m.type) {
+			case DistMessage.WORK:
+				for (int i = 0;  i < m.seqs.length;  i++) {
+					queue.add(new Queued(m.seqs[i],
+							     m.hosts[i]));
+				}
+				requested = false;
+				notifyAll();
+				break;
+			case DistMessage.STEAL:
+				/* Give back from the end of the queue,
+				 * the hosts furthest from being started.
+				 */
+				int n = Math.min(m.count, queue.size());
+				long[] seqs = new long[n];
+				for (int i = 0;  i < n;  i++) {
+					seqs[i] = queue.removeLast().seq;
+				}
+				reply = DistMessage.give(seqs);
+				break;
+			case DistMessage.DONE:
+				inputDone = true;
+				notifyAll();
+				break;
+			default:
+				/* ignore */
+				break;
+			}
+		}
+		if (reply != null) {
+			conn.send(reply);
+		}
+	}
+
+
+	class ReceiveTask implements Runnable {
+
+		public void run() {
+			try {
+				while (true) {
+					received(conn.receive());
+				}
+			} catch (IOException e) {
+				/* disconnected */
+			}
+			synchronized (ScanWorker.this) {
+				inputDone = true;
+				ScanWorker.this.notifyAll();
+			}
+		}
+	}
+
+
+	/* The hosts from the coordinator, waiting for more as long as
+	 * it has any.
+	 */
+	class RemoteHosts implements Iterator<Host> {
+
+		public boolean hasNext() {
+			try {
+				while (true) {
+					DistMessage m;
+					synchronized (ScanWorker.this) {
+						if (!queue.isEmpty()
+						    || inputDone) {
+							return !queue.isEmpty();
+						}
+						m = request();
+						if (m == null) {
+							ScanWorker.this.wait();
+						}
+					}
+					sendRequest(m);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		public Host next() {
+			Queued q;
+			DistMessage m = null;
+			synchronized (ScanWorker.this) {
+				q = queue.removeFirst();
+				running.put(taken++, q.seq);
+				if (queue.size() <= batchSize/2) {
+					m = request();
+				}
+			}
+			sendRequest(m);
+			return q.host;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
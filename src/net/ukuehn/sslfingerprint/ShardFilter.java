@@ -0,0 +1,127 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * Splits a list of hosts into N disjoint shards, so several nodes can
+ * each scan their own part of the same list without coordination.
+ * The shard of a host depends only on its name, via a fixed hash, so
+ * every node computes the same partition, and all ports of a host are
+ * scanned from the same node, where the per-host limits apply.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+
+public class ShardFilter implements Iterator<Host> {
+
+	Iterator<Host> hosts;
+	int shard;
+	int shards;
+	Host nextHost;
+
+
+	/* Pass on only the hosts of shard number index, counting from
+	 * 1 up to count.
+	 */
+	public ShardFilter(Iterator<Host> hostIter, int index, int count)
+		throws IllegalArgumentException {
+
+		if ((count < 1) || (index < 1) || (index > count)) {
+			throw new IllegalArgumentException(
+				     LocMsg.pr("e_shard_spec",
+					       index+"/"+count));
+		}
+		hosts = hostIter;
+		shard = index;
+		shards = count;
+		nextHost = null;
+	}
+
+
+	/* Parse a specification <i>/<N> as given on the command line */
+	public static ShardFilter parse(Iterator<Host> hostIter, String spec)
+		throws IllegalArgumentException {
+
+		int sep = spec.indexOf('/');
+		try {
+			if (sep > 0) {
+				return new ShardFilter(hostIter,
+				       Integer.parseInt(spec.substring(0, sep)),
+				       Integer.parseInt(spec.substring(sep+1)));
+			}
+		} catch (NumberFormatException e) {
+			/* fall through */
+		}
+		throw new IllegalArgumentException(
+			     LocMsg.pr("e_shard_spec", spec));
+	}
+
+
+	/* The shard, from 1 to count, the host belongs to. This uses
+	 * 32 bit FNV-1a over the lower case host name rather than
+	 * String.hashCode(), which mixes similar names poorly.
+	 */
+	public static int shardOf(Host h, int count) {
+		String name = h.name.toLowerCase();
+		int hash = 0x811c9dc5;
+		int n = name.length();
+		for (int i = 0;  i < n;  i++) {
+			char c = name.charAt(i);
+			hash = (hash ^ (c & 0xff)) * 0x01000193;
+			hash = (hash ^ (c >>> 8)) * 0x01000193;
+		}
+		return 1 + (int)((hash & 0xffffffffL) % count);
+	}
+
+
+	public boolean hasNext() {
+		while ((nextHost == null) && hosts.hasNext()) {
+			Host h = hosts.next();
+			if ((h != null) && (shardOf(h, shards) == shard)) {
+				nextHost = h;
+			}
+		}
+		return (nextHost != null);
+	}
+
+
+	public Host next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Host res = nextHost;
+		nextHost = null;
+		return res;
+	}
+
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,308 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * Merges the outputs of a scan split with --shard i/N into one
+ * document, in the order of the host list, as if it had been scanned
+ * by a single node. Given the host list and the N shard outputs in
+ * order, each host is looked up in the output of its shard, which
+ * holds the results in the order of the list. So the merge reads the
+ * shards side by side, keeping only the next result of each in
+ * memory, whatever the size of the scan.
+ *
+ * Handles XML output (-x) and the CSV output of -c. Hosts missing
+ * from their shard, e.g. from an interrupted scan, are skipped with a
+ * warning; results not found in the list are appended at the end.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.ukuehn.xml.XML;
+
+
+
+public class ShardMerge {
+
+	static final Pattern xmlName = Pattern.compile(" Name=\"([^\"]*)\"");
+	static final Pattern xmlPort = Pattern.compile(" Port=\"(\\d+)\"");
+
+	BufferedWriter out;
+	boolean xml;
+
+
+	public ShardMerge(Writer writer, boolean xmlFormat) {
+		out = new BufferedWriter(writer);
+		xml = xmlFormat;
+	}
+
+
+	/*
+	 * Reads one shard output as a sequence of records, one per
+	 * host. The lines before a record, like the header or error
+	 * messages, are kept with it; the lines after the last record
+	 * make up the footer.
+	 */
+	class ShardReader {
+
+		String fileName;
+		BufferedReader in;
+		List<String> lead;
+		List<String> record;
+		String name;
+		int port;
+		boolean first;
+
+
+		ShardReader(String file) throws IOException {
+			fileName = file;
+			in = new BufferedReader(new FileReader(file));
+			first = true;
+			next();
+		}
+
+
+		boolean hasRecord() {
+			return (record != null);
+		}
+
+
+		boolean matches(Host h) {
+			if ((record == null) || (port != h.port)) {
+				return false;
+			}
+			if (xml) {
+				return name.equals(XML.encode(h.name));
+			}
+			return name.equals(h.name);
+		}
+
+
+		/* Read the next record, false at the end of the shard */
+		boolean next() throws IOException {
+			String line;
+
+			lead = new ArrayList<String>();
+			record = null;
+			while ((line = in.readLine()) != null) {
+				if (isRecordStart(line)) {
+					record = new ArrayList<String>();
+					record.add(line);
+					break;
+				}
+				lead.add(line);
+			}
+			if (record == null) {
+				in.close();
+				return false;
+			}
+			if (xml) {
+				Matcher m = xmlName.matcher(line);
+				name = m.find() ? m.group(1) : "";
+				m = xmlPort.matcher(line);
+				port = m.find() ? Integer.parseInt(m.group(1)) : 0;
+				if (!line.trim().endsWith("/>")) {
+					while ((line = in.readLine()) != null) {
+						record.add(line);
+						if (line.startsWith("  </Host>")) {
+							break;
+						}
+					}
+				}
+			} else {
+				String[] fields = line.split(";");
+				name = fields[0];
+				port = Integer.parseInt(fields[1]);
+			}
+			return true;
+		}
+
+
+		boolean isRecordStart(String line) {
+			if (xml) {
+				return line.startsWith("  <Host ");
+			}
+			String[] fields = line.split(";");
+			if ((fields.length < 3) || fields[2].startsWith("event:")) {
+				/* events are kept with the next record */
+				return false;
+			}
+			try {
+				Integer.parseInt(fields[1]);
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+
+		/* Write the current record. The lines leading the first
+		 * record of a shard are its header, which is written
+		 * only once for the merged document.
+		 */
+		void writeRecord() throws IOException {
+			if (!first) {
+				writeLines(lead);
+			}
+			writeLines(record);
+			first = false;
+		}
+
+	}
+
+
+	void writeLines(List<String> lines) throws IOException {
+		for (String line : lines) {
+			out.write(line);
+			out.newLine();
+		}
+	}
+
+
+	public void merge(Iterator<Host> hosts, String[] shardFiles)
+		throws IOException {
+
+		ShardReader[] shards = new ShardReader[shardFiles.length];
+		for (int i = 0;  i < shards.length;  i++) {
+			shards[i] = new ShardReader(shardFiles[i]);
+		}
+
+		/* The header and footer come from the first shard that
+		 * has any results at all.
+		 */
+		ShardReader frame = shards[0];
+		for (int i = 0;  i < shards.length;  i++) {
+			if (shards[i].hasRecord()) {
+				frame = shards[i];
+				break;
+			}
+		}
+		writeLines(frame.lead);
+
+		while (hosts.hasNext()) {
+			Host h = hosts.next();
+			if (h == null) {
+				continue;
+			}
+			ShardReader r = shards[ShardFilter.shardOf(h,
+						       shards.length) - 1];
+			if (r.matches(h)) {
+				r.writeRecord();
+				r.next();
+			} else {
+				System.err.println(LocMsg.pr("w_merge_missing",
+					  h.name, String.valueOf(h.port),
+					  r.fileName));
+			}
+		}
+
+		for (int i = 0;  i < shards.length;  i++) {
+			ShardReader r = shards[i];
+			while (r.hasRecord()) {
+				System.err.println(LocMsg.pr("w_merge_extra",
+					  r.name, String.valueOf(r.port),
+					  r.fileName));
+				r.writeRecord();
+				r.next();
+			}
+		}
+		if (!frame.first) {
+			/* Otherwise there were no results at all, and
+			 * the whole shard went out as the header.
+			 */
+			writeLines(frame.lead);
+		}
+		out.flush();
+	}
+
+
+	static void usage() {
+		System.err.println(LocMsg.pr("s_merge_usage",
+						     SSLFingerprintMain.version));
+		System.exit(1);
+	}
+
+
+	public static void main(String args[])
+		throws IOException, Exception {
+
+		String optArgListFile = null;
+		String optArgProto = null;
+		boolean optXML = false;
+		int port = SSLFingerprintMain.defaultPort;
+		int nextopt;
+
+		for (nextopt = 0;  nextopt < args.length;  nextopt++) {
+			if (!args[nextopt].startsWith("-")) {
+				break;
+			}
+			if (args[nextopt].equals("-x")) {
+				optXML = true;
+			} else if (args[nextopt].equals("-c")) {
+				optXML = false;
+			} else if (args[nextopt].equals("-p")
+				   && (nextopt+1 < args.length)) {
+				nextopt++;
+				optArgProto = args[nextopt];
+			} else if (args[nextopt].equals("-f")
+				   && (nextopt+1 < args.length)) {
+				nextopt++;
+				optArgListFile = args[nextopt];
+			} else {
+				usage();
+			}
+		}
+		if ((optArgListFile == null) || (nextopt >= args.length)) {
+			usage();
+		}
+
+		if (optArgProto != null) {
+			SocketInitialiser si = SSLFingerprintMain
+				.getSocketInitialiserFromProto(optArgProto);
+			if (si == null) {
+				System.err.println(LocMsg.pr("e_unsupp_proto",
+							     optArgProto));
+				System.exit(-1);
+			}
+			port = si.getDefaultPort();
+		}
+
+		String[] shardFiles = new String[args.length - nextopt];
+		System.arraycopy(args, nextopt, shardFiles, 0,
+				 shardFiles.length);
+
+		ShardMerge sm = new ShardMerge(new OutputStreamWriter(System.out),
+					       optXML);
+		sm.merge(FileHostIterator.getInstance(optArgListFile, port),
+			 shardFiles);
+	}
+
+}
@@ -52,19 +52,17 @@ public class SmtpSocketInitialiser extends SocketInitialiser {
 	}
 
 
-	public Socket createSocket(String host, int port)
+	public Socket createSocket(String host, int port, Deadline d)
 		throws IOException, FingerprintException, FingerprintError {
 
 		Socket s;
 
 		if (chainedInit != null) {
-			s = chainedInit.createSocket(host, port);
+			s = chainedInit.createSocket(host, port, d);
 		} else {
 			//SocketFactory f = SocketFactory.getDefault();
 			//s = (Socket)f.createSocket(host, port);
-			s = new Socket();
-			s.connect(new InetSocketAddress(host, port),
-				  1000*timeout);
+			s = openSocket(host, port, d, 1000*timeout);
 		}
 		startTLSwithSmtp(s);
 		return s;
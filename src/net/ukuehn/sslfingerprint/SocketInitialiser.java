@@ -36,6 +36,7 @@ public class SocketInitialiser {
 	static final int defaultPort = 443;
 
 	protected final int defaultTimeout = 30; 
+	static final int lifetimeFactor = 2;
 
 	SocketInitialiser chainedInit;
 
@@ -50,6 +51,28 @@ public class SocketInitialiser {
 	}
 
 
+	/* Create the initialiser for a protocol name as given on the
+	 * command line, or null if the protocol is not supported.
+	 */
+	public static SocketInitialiser forProtocol(String proto) {
+
+		SocketInitialiser si = null;
+
+		if (proto.equals("plain")) {
+			si = new SocketInitialiser();
+		} else if (proto.equals("smtp")) {
+			si = new SmtpSocketInitialiser();
+		} else if (proto.equals("pop3")) {
+			si = new Pop3SocketInitialiser();
+		} else if (proto.equals("imap")) {
+			si = new ImapSocketInitialiser();
+		} else if (proto.equals("auto")) {
+			si = new AutoSocketInitialiser();
+		}
+		return si;
+	}
+
+
 	public void setChainedInitialiser(SocketInitialiser sockInit) {
 		chainedInit = sockInit;
 	}
@@ -58,11 +81,49 @@ public class SocketInitialiser {
 	public Socket createSocket(String host, int port)
 		throws IOException, FingerprintException, FingerprintError {
 
+		return createSocket(host, port, null);
+	}
+
+
+	/* Create the socket, finishing connect and any preamble before
+	 * the deadline, which may be null.
+	 */
+	public Socket createSocket(String host, int port, Deadline d)
+		throws IOException, FingerprintException, FingerprintError {
+
 		Socket s;
 		if (chainedInit != null) {
-			s = chainedInit.createSocket(host, port);
+			s = chainedInit.createSocket(host, port, d);
 		} else {
-			s = new Socket(host, port);
+			s = openSocket(host, port, d, 1000*defaultTimeout);
+		}
+		return s;
+	}
+
+
+	/* Connect to the given address. The timeout, bounded by the
+	 * deadline, applies to the connect as well as to every read
+	 * from the socket. In addition, the socket is registered with
+	 * the watchdog, which closes it when the connection takes much
+	 * longer than a single timeout in total, or the deadline has
+	 * passed. Whoever is done with the socket should release it
+	 * from SocketWatchdog.getDefault().
+	 */
+	public static Socket openSocket(String host, int port,
+					Deadline d, int timeout)
+		throws IOException {
+
+		int t = Deadline.timeout(d, timeout);
+		int lifetime = Deadline.timeout(d, lifetimeFactor*timeout);
+		Socket s = new Socket();
+		SocketWatchdog.getDefault().watch(s, lifetime);
+		try {
+			s.connect(new InetSocketAddress(host, port), t);
+			s.setSoTimeout(t);
+		} catch (IOException e) {
+			SocketWatchdog.getDefault().release(s);
+			s.close();
+			throw e;
 		}
 		return s;
 	}
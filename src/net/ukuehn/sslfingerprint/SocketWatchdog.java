@@ -0,0 +1,290 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A single watchdog for the deadlines of all open sockets. Socket
+ * timeouts only bound a single read, and the JSSE handshake has no
+ * overall deadline at all, so a server sending a byte now and then
+ * can keep a connection busy forever. The watchdog forcibly closes a
+ * socket once its deadline has passed, which makes the blocked read
+ * fail at once.
+ *
+ * The deadlines are kept in a hashed timing wheel: an array of slots,
+ * each a doubly linked list of the deadlines falling into it, and a
+ * thread advancing one slot per tick. Deadlines further away than
+ * one turn of the wheel carry the number of turns still to wait.
+ * Scheduling and cancelling a deadline are O(1), regardless of the
+ * number of sockets watched, and the thread only looks at the
+ * deadlines of the current slot.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.IOException;
+import java.net.Socket;
+
+import java.util.HashMap;
+
+
+
+public class SocketWatchdog {
+
+	static final long defaultTick = 100;
+	static final int defaultSlots = 512;
+
+	/* How long the watchdog remembers that it closed a socket,
+	 * for the owner to find out.
+	 */
+	static final long rememberExpired = 60000;
+
+	static SocketWatchdog defaultWatchdog = null;
+
+	long tick;
+	Slot[] wheel;
+	int cursor;
+	HashMap<Socket, Timeout> watched;
+	Thread timer;
+
+	long scheduled;
+	long expired;
+
+
+	public SocketWatchdog(long tickMsec, int slots) {
+		tick = Math.max(1, tickMsec);
+		wheel = new Slot[Math.max(1, slots)];
+		for (int i = 0;  i < wheel.length;  i++) {
+			wheel[i] = new Slot();
+		}
+		cursor = 0;
+		watched = new HashMap<Socket, Timeout>();
+		scheduled = 0;
+		expired = 0;
+		timer = new Thread(new Runnable() {
+				public void run() {
+					runTimer();
+				}
+			}, "sslfp-watchdog");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+
+	/* The watchdog shared by all socket initialisers */
+	public static synchronized SocketWatchdog getDefault() {
+		if (defaultWatchdog == null) {
+			defaultWatchdog = new SocketWatchdog(defaultTick,
+							     defaultSlots);
+		}
+		return defaultWatchdog;
+	}
+
+
+	/* Close the socket after the given number of milliseconds,
+	 * unless it is released before.
+	 */
+	public synchronized Timeout watch(Socket s, long msec) {
+		Timeout t = new Timeout(s);
+		schedule(t, msec);
+		Timeout old = watched.put(s, t);
+		if (old != null) {
+			unlink(old);
+		}
+		scheduled += 1;
+		return t;
+	}
+
+
+	/* The socket is no longer used, forget its deadline. Returns
+	 * true if the watchdog has closed the socket.
+	 */
+	public synchronized boolean release(Socket s) {
+		if (s == null) {
+			return false;
+		}
+		Timeout t = watched.remove(s);
+		if (t == null) {
+			return false;
+		}
+		unlink(t);
+		return t.expired;
+	}
+
+
+	public synchronized boolean hasExpired(Socket s) {
+		if (s == null) {
+			return false;
+		}
+		Timeout t = watched.get(s);
+		return (t != null) && t.expired;
+	}
+
+
+	public synchronized int getWatched() {
+		return watched.size();
+	}
+
+
+	protected void schedule(Timeout t, long msec) {
+		/* One tick more, as the current one is partly over */
+		long ticks = Math.max(0, (msec + tick - 1) / tick) + 1;
+		int idx = (int)((cursor + ticks) % wheel.length);
+		t.rounds = (ticks - 1) / wheel.length;
+		wheel[idx].add(t);
+	}
+
+
+	protected void unlink(Timeout t) {
+		if (t.slot != null) {
+			t.slot.remove(t);
+		}
+	}
+
+
+	protected void runTimer() {
+		long next = System.currentTimeMillis() + tick;
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (now < next) {
+					Thread.sleep(next - now);
+				}
+				next += tick;
+				advance();
+			}
+		} catch (InterruptedException e) {
+			/* done */
+		}
+	}
+
+
+	/* Move to the next slot and close the sockets due there. The
+	 * sockets are closed outside of the lock, as close() may take
+	 * a moment.
+	 */
+	protected void advance() {
+		Timeout due = null;
+
+		synchronized (this) {
+			cursor = (cursor + 1) % wheel.length;
+			Slot slot = wheel[cursor];
+			Timeout t = slot.head;
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.rounds > 0) {
+					t.rounds -= 1;
+				} else if (t.expired) {
+					/* Nobody asked, forget it */
+					slot.remove(t);
+					if (watched.get(t.sock) == t) {
+						watched.remove(t.sock);
+					}
+				} else {
+					slot.remove(t);
+					t.expired = true;
+					expired += 1;
+					t.nextDue = due;
+					due = t;
+					/* Remember for the owner */
+					schedule(t, rememberExpired);
+				}
+				t = next;
+			}
+		}
+
+		for ( /* */ ; due != null;  due = due.nextDue) {
+			if (Debug.get(Debug.Engine)) {
+				System.err.println("SocketWatchdog: closing "
+						   +due.sock);
+			}
+			try {
+				due.sock.close();
+			} catch (IOException e) {
+				/* ignore */
+			}
+		}
+	}
+
+
+	public synchronized String toString() {
+		return "watchdog: watched "+watched.size()
+			+" scheduled "+scheduled+" expired "+expired;
+	}
+
+
+	public static class Timeout {
+
+		Socket sock;
+		long rounds;
+		boolean expired;
+		Slot slot;
+		Timeout prev;
+		Timeout next;
+		Timeout nextDue;
+
+		Timeout(Socket s) {
+			sock = s;
+			rounds = 0;
+			expired = false;
+			slot = null;
+			prev = null;
+			next = null;
+			nextDue = null;
+		}
+
+		public boolean hasExpired() {
+			return expired;
+		}
+	}
+
+
+	static class Slot {
+
+		Timeout head = null;
+
+		void add(Timeout t) {
+			t.slot = this;
+			t.prev = null;
+			t.next = head;
+			if (head != null) {
+				head.prev = t;
+			}
+			head = t;
+		}
+
+		void remove(Timeout t) {
+			if (t.prev != null) {
+				t.prev.next = t.next;
+			} else {
+				head = t.next;
+			}
+			if (t.next != null) {
+				t.next.prev = t.prev;
+			}
+			t.slot = null;
+			t.prev = null;
+			t.next = null;
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2014 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+/*
+ * A stage for work which consists of a sequence of requests with a
+ * required pause in between, like the handshakes to a single host
+ * when a delay is set.
+ *
+ * Instead of having the thread sleep during the pause, the task is
+ * put back into a delay queue after each step, and the thread picks
+ * the next task whose pause is over. This way, a handful of threads
+ * keeps many hosts busy, each one still seeing the requested pause
+ * between two of its requests, and the total time of a scan is
+ * close to the time of the slowest host instead of the sum of all
+ * delays.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+public class SteppingStage extends ScanStage {
+
+	public interface Task {
+
+		/* Perform the next step, return true if there are more
+		 * steps to do.
+		 */
+		public boolean step();
+
+		/* Minimum time in milliseconds until the next step */
+		public long getStepDelay();
+
+		/* Called once after the last step */
+		public void finished();
+	}
+
+
+	DelayQueue<Entry> queue;
+	Semaphore room;
+	int maxTasks;
+	volatile boolean closed;
+	Thread[] workers;
+	AtomicInteger active;
+	AtomicLong steps;
+
+
+	public SteppingStage(String stageName, int threads, int maxTasks) {
+		super(stageName);
+		queue = new DelayQueue<Entry>();
+		this.maxTasks = maxTasks;
+		closed = false;
+		room = new Semaphore(maxTasks);
+		active = new AtomicInteger();
+		steps = new AtomicLong();
+		workers = new Thread[threads];
+		for (int i = 0;  i < threads;  i++) {
+			workers[i] = new Thread(new Worker(),
+						"sslfp-"+stageName+"-"+i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+
+	/* Add a task, blocking while the stage holds the maximum
+	 * number of tasks. Like ScanStage, throws
+	 * RejectedExecutionException if the stage is shut down, or
+	 * if interrupted while waiting, so the task is never lost
+	 * without the caller knowing.
+	 */
+	public void submit(Task t) {
+		if (closed) {
+			throw new RejectedExecutionException();
+		}
+		try {
+			room.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+		if (closed) {
+			/* drained while waiting for room */
+			room.release();
+			throw new RejectedExecutionException();
+		}
+		submitted.incrementAndGet();
+		queue.put(new Entry(t));
+	}
+
+
+	/* Work without pauses is a task of a single step */
+	public void submit(final Runnable work) {
+		submit(new Task() {
+			public boolean step() {
+				work.run();
+				return false;
+			}
+
+			public long getStepDelay() {
+				return 0;
+			}
+
+			public void finished() {
+			}
+		});
+	}
+
+
+	public void shutdown() {
+		closed = true;
+		for (int i = 0;  i < workers.length;  i++) {
+			workers[i].interrupt();
+		}
+	}
+
+
+	/* Take no more tasks, and wait until all tasks in the stage
+	 * are finished.
+	 */
+	public void drain() throws InterruptedException {
+		closed = true;
+		room.acquire(maxTasks);
+		room.release(maxTasks);
+	}
+
+
+	public int getThreads() {
+		return workers.length;
+	}
+
+
+	/* Tasks in the stage which are not running, either waiting
+	 * for a free thread or for their pause to end.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+
+	public int getActive() {
+		return active.get();
+	}
+
+
+	public long getSteps() {
+		return steps.get();
+	}
+
+
+	public String toString() {
+		return super.toString()+" steps "+getSteps();
+	}
+
+
+	class Worker implements Runnable {
+
+		public void run() {
+			try {
+				while (true) {
+					runStep(queue.take());
+				}
+			} catch (InterruptedException e) {
+				/* stage shut down */
+			}
+		}
+
+
+		void runStep(Entry e) {
+			boolean more;
+
+			active.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				more = e.task.step();
+			} finally {
+				busyNanos.addAndGet(System.nanoTime()-start);
+				steps.incrementAndGet();
+				active.decrementAndGet();
+			}
+			if (more) {
+				e.setDelay(e.task.getStepDelay());
+				queue.put(e);
+			} else {
+				completed.incrementAndGet();
+				/* room only after finished(), so drain()
+				 * also covers the hand-off to the next stage
+				 */
+				try {
+					e.task.finished();
+				} finally {
+					room.release();
+				}
+			}
+		}
+	}
+
+
+	static class Entry implements Delayed {
+
+		Task task;
+		long readyAt;
+
+		Entry(Task t) {
+			task = t;
+			readyAt = System.nanoTime();
+		}
+
+		void setDelay(long msec) {
+			readyAt = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(msec);
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(readyAt - System.nanoTime(),
+					    TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long d = readyAt - ((Entry)other).readyAt;
+			return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.ukuehn.security.CertValidator;
+
+
+
+/* Remembers the outcome of chain validation for recently seen
+ * certificate chains, so the services of a host, or hosts sharing a
+ * certificate, have their chain validated only once. Chains are
+ * identified by a digest over their encoding and the key exchange
+ * type. A validation in progress is waited for rather than done
+ * again. Results with the same chain get the same certificate
+ * objects, so only one copy is kept in memory. The name match
+ * depends on the host, and is checked for each result.
+ */
+public class ValidationCache {
+
+	static final int defaultCapacity = 256;
+
+	CertValidator cv;
+	Map<ChainKey,FutureTask<Validation>> entries;
+	int capacity;
+
+
+	public ValidationCache(CertValidator certval) {
+		this(certval, defaultCapacity);
+	}
+
+
+	public ValidationCache(CertValidator certval, int maxEntries) {
+		cv = certval;
+		capacity = Math.max(1, maxEntries);
+		entries = new LinkedHashMap<ChainKey,FutureTask<Validation>>(
+				  16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+			      Map.Entry<ChainKey,FutureTask<Validation>> e) {
+				return size() > capacity;
+			}
+		};
+	}
+
+
+	/* Validate the certificates of the result, using the outcome
+	 * for the same chain if known.
+	 */
+	public void validate(SSLResult r) throws InterruptedException {
+		if (!r.needsValidation() || (cv == null)) {
+			return;
+		}
+		ChainKey key = ChainKey.of(r.certs, r.certAuthType);
+		if (key == null) {
+			/* No digest for the chain, so no sharing */
+			r.validateCertificates(cv);
+			return;
+		}
+
+		final Certificate[] chain = r.certs;
+		final String authType = r.certAuthType;
+		FutureTask<Validation> task;
+		boolean owner = false;
+		synchronized (entries) {
+			task = entries.get(key);
+			if (task == null) {
+				task = new FutureTask<Validation>(
+					new Callable<Validation>() {
+						public Validation call() {
+							return new Validation(
+							      chain,
+							      cv.isValidChain(
+								  chain,
+								  authType));
+						}
+					});
+				entries.put(key, task);
+				owner = true;
+			}
+		}
+		if (owner) {
+			task.run();
+		} else if (Debug.get(Debug.Certs)) {
+			System.err.println("ValidationCache: reusing chain"
+					   +" validation for "+r.host);
+		}
+
+		Validation v;
+		try {
+			v = task.get();
+		} catch (ExecutionException e) {
+			synchronized (entries) {
+				entries.remove(key);
+			}
+			r.validateCertificates(cv);
+			return;
+		}
+		r.setValidation(v.chain, v.verifies,
+				cv.nameMatches(v.chain[0], r.host));
+	}
+
+
+	static class Validation {
+
+		Certificate[] chain;
+		boolean verifies;
+
+		Validation(Certificate[] c, boolean valid) {
+			chain = c;
+			verifies = valid;
+		}
+	}
+
+
+	static class ChainKey {
+
+		byte[] digest;
+		String authType;
+
+		ChainKey(byte[] d, String type) {
+			digest = d;
+			authType = type;
+		}
+
+		static ChainKey of(Certificate[] chain, String authType) {
+			try {
+				MessageDigest md
+					= MessageDigest.getInstance("SHA-256");
+				for (int i = 0; i < chain.length; i++) {
+					md.update(chain[i].getEncoded());
+				}
+				return new ChainKey(md.digest(), authType);
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			} catch (CertificateEncodingException e) {
+				return null;
+			}
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ChainKey)) {
+				return false;
+			}
+			ChainKey k = (ChainKey)o;
+			return Arrays.equals(digest, k.digest)
+				&& ((authType == null) ? (k.authType == null)
+				    : authType.equals(k.authType));
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(digest);
+		}
+	}
+
+
+}
@@ -44,6 +44,7 @@ import java.util.Date;
 import java.util.Set;
 import java.util.LinkedHashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.text.SimpleDateFormat;
 
 import org.xml.sax.SAXException;
@@ -84,6 +85,18 @@ public class XMLFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
+	public void flush() throws IOException {
+		xw.flush();
+	}
+
+
+	public void publishEvent(ScanEvent e)
+		throws IOException, FingerprintError {
+		writeEvent(xw, e,
+			   new SimpleDateFormat(LocMsg.pr("s_dateformat")));
+	}
+
+
 	public void publishFooter() throws IOException, FingerprintError {
 		try {
 			xw.endElement(); // </analysis>
@@ -132,15 +145,30 @@ public class XMLFingerprintPublisher extends ClassifyingPublisher {
 			xw.startElement("Host");  // <host>
 			xw.attribute("Name", fr.host);
 			xw.attribute("Port", String.valueOf(fr.port));
+			if (fr.service != null) {
+				xw.attribute("Service", fr.service);
+			}
 			xw.attribute("SSL", resSupport);
 			xw.attribute("Date", format.format(fr.startDate));
+			if (fr.incomplete) {
+				xw.attribute("Incomplete", "true");
+				xw.attribute("Reason", fr.incompleteReason);
+			}
+			if ((fr.depth < FingerprintResult.DEPTH_FULL)
+			    && (fr.sslSupport == SSLResult.SUPPORTED)) {
+				xw.attribute("Depth", fr.getDepthName());
+			}
 			if (fr.sslSupport == SSLResult.SUPPORTED) {
 				xw.startElement("SSLConfig");
 				protoToXML(fr);
 				ciphersuitesToXML(fr);
+				matrixToXML(fr);
 				certificateToXML(fr);
 				xw.endElement();  // </SSLConfig>
 			}
+			if (fr.incomplete) {
+				undecidedToXML(fr);
+			}
 
 			xw.endElement();  // </host>
 		} catch (SAXException e) {
@@ -149,6 +177,71 @@ public class XMLFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
+	protected void undecidedToXML(FingerprintResult fr)
+		throws IOException, FingerprintError, SAXException {
+
+		if ((fr.undecidedProtos == null)
+		    || (fr.undecidedSuites == null)) {
+			return;
+		}
+		xw.startElement("Undecided");
+		for (Iterator<String> itr = fr.undecidedProtos.iterator();
+		     itr.hasNext();  /* nothing */ ) {
+			xw.startElement("Protocol");
+			xw.attribute("Name", itr.next());
+			xw.endElement();
+		}
+		for (Iterator<String> itr = fr.undecidedSuites.iterator();
+		     itr.hasNext();  /* nothing */ ) {
+			xw.startElement("Ciphersuite");
+			xw.attribute("Name", itr.next());
+			xw.endElement();
+		}
+		if (fr.undecidedPairs != null) {
+			for (Iterator<Map.Entry<String, Set<String>>>
+				     it = fr.undecidedPairs.entrySet().iterator();
+			     it.hasNext();  /* nothing */ ) {
+				Map.Entry<String, Set<String>> e = it.next();
+				for (Iterator<String> itr
+					     = e.getValue().iterator();
+				     itr.hasNext();  /* nothing */ ) {
+					xw.startElement("Pair");
+					xw.attribute("Protocol", e.getKey());
+					xw.attribute("Ciphersuite",
+						     itr.next());
+					xw.endElement();
+				}
+			}
+		}
+		xw.endElement();  // </Undecided>
+	}
+
+
+	protected void matrixToXML(FingerprintResult fr)
+		throws IOException, FingerprintError, SAXException {
+
+		if ((fr.suiteMatrix == null) || (verbLevel < 2)) {
+			return;
+		}
+		xw.startElement("SuiteMatrix");
+		for (Iterator<Map.Entry<String, Set<String>>>
+			     it = fr.suiteMatrix.entrySet().iterator();
+		     it.hasNext();  /* nothing */ ) {
+			Map.Entry<String, Set<String>> e = it.next();
+			xw.startElement("Protocol");
+			xw.attribute("Name", e.getKey());
+			for (Iterator<String> itr = e.getValue().iterator();
+			     itr.hasNext();  /* nothing */ ) {
+				xw.startElement("Ciphersuite");
+				xw.attribute("Name", itr.next());
+				xw.endElement();
+			}
+			xw.endElement();  // </Protocol>
+		}
+		xw.endElement();  // </SuiteMatrix>
+	}
+
+
 	protected void protoToXML(FingerprintResult fr)
 		throws IOException, FingerprintError, SAXException {
 		boolean secureProto = false;
@@ -264,17 +357,11 @@ public class XMLFingerprintPublisher extends ClassifyingPublisher {
 	protected void certificateToXML(FingerprintResult fr)
 		throws IOException, FingerprintError, SAXException {
 
-		boolean certNameMatch = false;
-
-		if (fr.certs == null) {
-			// no cert, no entry...
-			return;
-		}
-		if (!(fr.certs[0] instanceof X509Certificate)) {
+		CertSummary cert = fr.getServerCertSummary();
+		if (cert == null) {
 			// no X509 cert, no entry...
 			return;
 		}
-		X509Certificate cert = (X509Certificate)fr.certs[0];
 
 		xw.startElement("Certificate");
 		xw.attribute("CertValid",
@@ -288,40 +375,29 @@ public class XMLFingerprintPublisher extends ClassifyingPublisher {
 	}
 
 
-	protected void certificateDetailsToXML(X509Certificate cert)
+	protected void certificateDetailsToXML(CertSummary cert)
 		throws IOException, FingerprintError, SAXException {
 
-		String subjDN =	cert.getSubjectX500Principal().getName();
-		String issuerDN = cert.getIssuerX500Principal().getName();
-		boolean selfSigned = subjDN.equals(issuerDN);
-		PublicKey pk = cert.getPublicKey();
-		String alg = pk.getAlgorithm();
-
 		xw.startElement("CertDetails");
-		xw.attribute("CertAlgorithm", alg);
-
-		if (pk instanceof RSAPublicKey) {
-			RSAPublicKey rpk = (RSAPublicKey)pk;
-			int size = rpk.getModulus().bitLength();
+		xw.attribute("CertAlgorithm", cert.getKeyAlgorithm());
 
-			xw.attribute("KeyLength", String.valueOf(size));
-			String hashVal = getRSAKeyHash(rpk);
+		if (cert.getKeyType() == CertSummary.KEY_RSA) {
+			xw.attribute("KeyLength",
+				     String.valueOf(cert.getKeySize()));
+			String hashVal = getKeyHash(cert);
 			if (opensslModHash) {
 				xw.attribute("ModHash", hashVal);
 			} else {
 				xw.attribute("KeyHash", hashVal);
 			}
-		} else if (pk instanceof DHPublicKey) {
-			DHPublicKey dpk = (DHPublicKey)pk;
-			int gsize = dpk.getParams().getP().bitLength();
-			xw.attribute("KeyLength", String.valueOf(gsize));
-		} else if (pk instanceof ECPublicKey) {
-			// 
+		} else if (cert.getKeyType() == CertSummary.KEY_DH) {
+			xw.attribute("KeyLength",
+				     String.valueOf(cert.getKeySize()));
 		}
-		xw.attribute("SelfSigned", String.valueOf(selfSigned));
+		xw.attribute("SelfSigned", String.valueOf(cert.isSelfSigned()));
 		if (verbLevel > 1) {
-			xw.attribute("Subject", subjDN);
-			xw.attribute("Issuer", issuerDN);
+			xw.attribute("Subject", cert.getSubject());
+			xw.attribute("Issuer", cert.getIssuer());
 			xw.attribute("ValidFrom",
 				     cert.getNotBefore().toString());
 			xw.attribute("ValidUntil",
@@ -0,0 +1,137 @@
+/* -*- java -*-
+ *
+ * This is sslfingerprint, an fingerprinting and security analysis tool
+ * for server ssl configurations.
+ *
+ * (C) 2010, 2012 Ulrich Kuehn <ukuehn@acm.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package net.ukuehn.sslfingerprint;
+
+
+import java.io.*;
+
+import java.text.SimpleDateFormat;
+
+import org.xml.sax.SAXException;
+
+import net.ukuehn.xml.*;
+
+
+
+public class XMLPolicyPublisher extends Publisher {
+
+	SimpleXMLWriter xw;
+
+
+	public XMLPolicyPublisher(SimpleXMLWriter xmlWr) {
+		xw = xmlWr;
+	}
+
+
+	public void publishHeader() throws IOException, FingerprintError {
+		try {
+			xw.startDocument();
+			xw.startElement("PolicyResults");
+		} catch (SAXException e) {
+			throw new FingerprintError(e);
+		}
+	}
+
+
+	public void flush() throws IOException {
+		xw.flush();
+	}
+
+
+	public void publishFooter() throws IOException, FingerprintError {
+		try {
+			xw.endElement(); // </PolicyResults>
+			xw.endDocumentNL();
+			xw.flush();
+		} catch (SAXException e) {
+			throw new FingerprintError(e);
+		}
+	}
+
+
+	public void publish(SSLResult sr)
+		throws IOException, FingerprintError {
+		if (sr instanceof PolicyResult) {
+			publish((PolicyResult)sr);
+		} else {
+			throw new FingerprintError(
+				     "Trying to publish mismatching type"
+				     );
+		}
+	}
+
+
+	public void publish(PolicyResult pr)
+		throws IOException, FingerprintError {
+
+		SimpleDateFormat format
+			= new SimpleDateFormat(LocMsg.pr("s_dateformat"));
+		String resSupport = "unknown";
+
+		switch (pr.sslSupport) {
+		case SSLResult.UNSUPPORTED:
+			resSupport = "false";
+			break;
+		case SSLResult.SUPPORTED:
+			resSupport = "true";
+			break;
+		case SSLResult.UNKNOWN:
+		default:
+			resSupport = "unknown";
+			break;
+		}
+
+		try {
+			xw.startElement("Host");  // <host>
+			xw.attribute("Name", pr.host);
+			xw.attribute("Port", String.valueOf(pr.port));
+			if (pr.service != null) {
+				xw.attribute("Service", pr.service);
+			}
+			xw.attribute("SSL", resSupport);
+			xw.attribute("Date", format.format(pr.startDate));
+			xw.attribute("Compliant", String.valueOf(pr.passes()));
+			xw.attribute("Handshakes",
+				     String.valueOf(pr.handshakes));
+			if (pr.incomplete) {
+				xw.attribute("Incomplete", "true");
+				xw.attribute("Reason", pr.incompleteReason);
+			}
+			for (int i = 0;  i < pr.getRuleCount();  i++) {
+				xw.startElement("Rule");
+				xw.attribute("Name", pr.getRule(i).getName());
+				xw.attribute("Verdict", pr.getVerdictName(i));
+				if (pr.getEvidence(i) != null) {
+					xw.attribute("Accepted",
+						     pr.getEvidence(i));
+				}
+				xw.endElement();  // </Rule>
+			}
+			xw.endElement();  // </host>
+		} catch (SAXException e) {
+			throw new FingerprintError(e);
+		}
+	}
+
+}
@@ -68,6 +68,18 @@ public class XMLProbePublisher extends Publisher {
 	}
 
 
+	public void flush() throws IOException {
+		xw.flush();
+	}
+
+
+	public void publishEvent(ScanEvent e)
+		throws IOException, FingerprintError {
+		writeEvent(xw, e,
+			   new SimpleDateFormat(LocMsg.pr("s_dateformat")));
+	}
+
+
 	public void publishFooter() throws IOException, FingerprintError {
 		try {
 			xw.endElement(); // </ProbeResults>
@@ -115,6 +127,9 @@ public class XMLProbePublisher extends Publisher {
 			xw.startElement("Host");  // <host>
 			xw.attribute("Name", pr.host);
 			xw.attribute("Port", String.valueOf(pr.port));
+			if (pr.service != null) {
+				xw.attribute("Service", pr.service);
+			}
 			xw.attribute("SSL", resSupport);
 			xw.attribute("Date", format.format(pr.startDate));
 			if (pr.sslSupport == SSLResult.SUPPORTED) {
@@ -133,21 +148,13 @@ public class XMLProbePublisher extends Publisher {
 
 	protected void certificateEssentialsToXML(ProbeResult pr)
 		throws IOException, FingerprintError, SAXException {
-		boolean certNameMatch = false;
 
-		if (pr.certs == null) {
-			// no cert, no entry...
-			return;
-		}
-		if (!(pr.certs[0] instanceof X509Certificate)) {
+		CertSummary cert = pr.getServerCertSummary();
+		if (cert == null) {
 			// no X509 cert, no entry...
 			return;
 		}
-
-		X509Certificate cert = (X509Certificate)pr.certs[0];
-		if (cv != null) {
-			certNameMatch = cv.nameMatches(cert, pr.host);
-		} else {
+		if (cv == null) {
 			throw new FingerprintError("No certificate validator");
 		}
 
@@ -155,7 +162,7 @@ public class XMLProbePublisher extends Publisher {
 		xw.attribute("CertValid",
 			     String.valueOf(pr.certVerifies));
 		xw.attribute("CertNameMatch",
-			     String.valueOf(certNameMatch));
+			     String.valueOf(pr.certNameMatch));
 		if (verbLevel > 0) {
 			certificateDetailsToXML(cert);
 		}
@@ -163,40 +170,29 @@ public class XMLProbePublisher extends Publisher {
 	}
 
 
-	protected void certificateDetailsToXML(X509Certificate cert)
+	protected void certificateDetailsToXML(CertSummary cert)
 		throws IOException, FingerprintError, SAXException {
 
-		String subjDN =	cert.getSubjectX500Principal().getName();
-		String issuerDN = cert.getIssuerX500Principal().getName();
-		boolean selfSigned = subjDN.equals(issuerDN);
-		PublicKey pk = cert.getPublicKey();
-		String alg = pk.getAlgorithm();
-
 		xw.startElement("CertDetails");
-		xw.attribute("CertAlgorithm", alg);
-
-		if (pk instanceof RSAPublicKey) {
-			RSAPublicKey rpk = (RSAPublicKey)pk;
-			int size = rpk.getModulus().bitLength();
+		xw.attribute("CertAlgorithm", cert.getKeyAlgorithm());
 
-			xw.attribute("KeyLength", String.valueOf(size));
-			String hashVal = getRSAKeyHash(rpk);
+		if (cert.getKeyType() == CertSummary.KEY_RSA) {
+			xw.attribute("KeyLength",
+				     String.valueOf(cert.getKeySize()));
+			String hashVal = getKeyHash(cert);
 			if (opensslModHash) {
 				xw.attribute("ModHash", hashVal);
 			} else {
 				xw.attribute("KeyHash", hashVal);
 			}
-		} else if (pk instanceof DHPublicKey) {
-			DHPublicKey dpk = (DHPublicKey)pk;
-			int gsize = dpk.getParams().getP().bitLength();
-			xw.attribute("KeyLength", String.valueOf(gsize));
-		} else if (pk instanceof ECPublicKey) {
-			// 
+		} else if (cert.getKeyType() == CertSummary.KEY_DH) {
+			xw.attribute("KeyLength",
+				     String.valueOf(cert.getKeySize()));
 		}
-		xw.attribute("SelfSigned", String.valueOf(selfSigned));
+		xw.attribute("SelfSigned", String.valueOf(cert.isSelfSigned()));
 		if (verbLevel > 1) {
-			xw.attribute("Subject", subjDN);
-			xw.attribute("Issuer", issuerDN);
+			xw.attribute("Subject", cert.getSubject());
+			xw.attribute("Issuer", cert.getIssuer());
 			xw.attribute("ValidFrom",
 				     cert.getNotBefore().toString());
 			xw.attribute("ValidUntil",